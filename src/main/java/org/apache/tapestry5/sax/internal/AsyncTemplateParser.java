@@ -0,0 +1,23 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.concurrent.Future;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+
+/**
+ * Parses templates whose content arrives over time, without tying up a thread while waiting for it. This is an
+ * asynchronous, buffered parse, not an incremental one: the content is buffered in memory until all of it has arrived,
+ * and only then parsed, in one piece.
+ */
+public interface AsyncTemplateParser
+{
+    /**
+     * Starts reading the resource's content and returns at once. The content is collected (and hashed) as its chunks
+     * arrive; once the last has arrived, the template is parsed in one of the {@link TemplateParseScheduler}'s
+     * threads. The XML parsers can't be fed content a chunk at a time, so no parsing happens before then.
+     *
+     * @return the template, or (wrapped in an {@link java.util.concurrent.ExecutionException}) the {@link
+     *         org.apache.tapestry5.ioc.internal.util.TapestryException} for a content or parse failure
+     */
+    Future<ComponentTemplate> parseTemplateAsync(ChunkedResource templateResource);
+}
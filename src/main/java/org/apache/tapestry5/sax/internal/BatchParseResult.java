@@ -0,0 +1,46 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.TapestryException;
+
+/**
+ * The outcome of {@link BatchTemplateParser#parseTemplates(java.util.Collection)}: each resource appears either in the
+ * templates or in the failures, never in both.
+ */
+public class BatchParseResult
+{
+    private final Map<Resource, ComponentTemplate> templates;
+
+    private final Map<Resource, TapestryException> failures;
+
+    public BatchParseResult(Map<Resource, ComponentTemplate> templates, Map<Resource, TapestryException> failures)
+    {
+        this.templates = Collections.unmodifiableMap(templates);
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Successfully parsed templates, keyed on resource.
+     */
+    public Map<Resource, ComponentTemplate> getTemplates()
+    {
+        return templates;
+    }
+
+    /**
+     * Resources that could not be parsed, mapped to the exception describing the failure.
+     */
+    public Map<Resource, TapestryException> getFailures()
+    {
+        return failures;
+    }
+
+    public boolean hasFailures()
+    {
+        return !failures.isEmpty();
+    }
+}
@@ -0,0 +1,25 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Collection;
+
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * Extension of {@link TemplateParser} that parses a number of templates at once, sharing parser infrastructure (XML
+ * readers, resolved DTDs and entities, interned names and scratch buffers) across the whole batch, and that parses
+ * templates whose content arrives in chunks.
+ */
+public interface BatchTemplateParser extends TemplateParser, AsyncTemplateParser
+{
+    /**
+     * Parses each of the resources, splitting the work across several worker threads. A failure parsing one resource
+     * does not affect the others; it is reported in the result as the same {@link
+     * org.apache.tapestry5.ioc.internal.util.TapestryException} that {@link #parseTemplate(Resource)} would have
+     * thrown.
+     *
+     * @param templateResources resources to parse, duplicates are parsed only once
+     * @return the parsed templates and the failures, both in the iteration order of the input
+     */
+    BatchParseResult parseTemplates(Collection<Resource> templateResources);
+}
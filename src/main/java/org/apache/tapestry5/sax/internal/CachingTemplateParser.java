@@ -0,0 +1,27 @@
+package org.apache.tapestry5.sax.internal;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.services.InvalidationEventHub;
+
+/**
+ * A {@link TemplateParser} that caches templates for resources watched by the {@link TemplateChangeWatcher}.
+ */
+public interface CachingTemplateParser extends TemplateParser
+{
+    /**
+     * Invalidation events are fired when a template has been re-parsed in the background and the new version has
+     * replaced the old, or when cached templates have been discarded because they changed; anything built from the old
+     * version of a template should be discarded.
+     *
+     * @see SaxParserSymbols#REVALIDATE_IN_BACKGROUND
+     */
+    InvalidationEventHub getInvalidationEventHub();
+
+    /**
+     * Returns the current version of a template obtained from this parser: the template itself, unless its resource
+     * has changed since (or was in the middle of changing when it was parsed), in which case the latest version is
+     * returned.
+     */
+    ComponentTemplate getCurrentTemplate(ComponentTemplate template);
+}
@@ -0,0 +1,216 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tapestry5.internal.event.InvalidationEventHubImpl;
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Invokable;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.services.InvalidationEventHub;
+import org.slf4j.Logger;
+
+/**
+ * Caches parsed templates for resources that are watched by the {@link TemplateChangeWatcher}, and discards exactly
+ * the templates whose resources change. When Tapestry discards all of its templates after detecting a change, only
+ * the changed templates are actually re-parsed.
+ * <p/>
+ * Resources that can not be watched are always parsed.
+ * <p/>
+ * Tapestry's own periodic check may notice a change before the watcher reports it (some watch service implementations
+ * poll, every few seconds), and obtain the old template from this cache. Templates discarded after a change (and
+ * templates parsed while a change was pending, which are not cached) are therefore remembered as superseded, and an
+ * invalidation event is fired; {@link #getCurrentTemplate(ComponentTemplate)} swaps a superseded template held by
+ * Tapestry for the current version.
+ * <p/>
+ * When revalidating in the background, a changed template is not discarded: the old version continues to be served
+ * while the new version is parsed by the {@link TemplateParseScheduler}. Once the new version parses successfully it
+ * is swapped in and an invalidation event is fired. If it fails to parse, the error is logged and the old version
+ * stays live.
+ */
+public class CachingTemplateParserImpl extends InvalidationEventHubImpl
+        implements CachingTemplateParser, TemplateChangeListener
+{
+    private final TemplateParser delegate;
+
+    private final TemplateChangeWatcher watcher;
+
+    private final TemplateParseScheduler scheduler;
+
+    private final boolean revalidateInBackground;
+
+    private final Logger logger;
+
+    private final Map<Resource, ComponentTemplate> cache = new ConcurrentHashMap<Resource, ComponentTemplate>();
+
+    /**
+     * Templates handed out that are known to be out of date (compared by identity, and held weakly).
+     */
+    private final Map<ComponentTemplate, Boolean> superseded = Collections.synchronizedMap(
+            new WeakHashMap<ComponentTemplate, Boolean>());
+
+    /**
+     * Incremented on every change notification; a template is only cached if no notification arrived while it was
+     * being parsed, since it may have been parsed from the old content.
+     */
+    private final AtomicLong changeCount = new AtomicLong();
+
+    /**
+     * Resources with a background re-parse in progress, mapped to true if a further change has arrived since it
+     * started (in which case another re-parse follows).
+     */
+    private final ConcurrentMap<Resource, Boolean> revalidating = CollectionFactory.newConcurrentMap();
+
+    public CachingTemplateParserImpl(TemplateParser delegate, TemplateChangeWatcher watcher,
+            TemplateParseScheduler scheduler, boolean revalidateInBackground, Logger logger)
+    {
+        this.delegate = delegate;
+        this.watcher = watcher;
+        this.scheduler = scheduler;
+        this.revalidateInBackground = revalidateInBackground;
+        this.logger = logger;
+    }
+
+    public ComponentTemplate parseTemplate(Resource templateResource)
+    {
+        // A pending change means the cached template may be out of date, and that the file
+        // may still be in the middle of being written, so it is parsed but not cached. When revalidating
+        // in the background, the cached template is served anyway.
+
+        boolean pending = watcher.isPending(templateResource);
+
+        ComponentTemplate result = pending && !revalidateInBackground ? null : cache.get(templateResource);
+
+        if (result != null) return result;
+
+        // Start watching before parsing, so that a change made during the parse is not missed.
+
+        boolean watched = watcher.watch(templateResource);
+
+        long changeCountBeforeParse = changeCount.get();
+
+        result = delegate.parseTemplate(templateResource);
+
+        if (revalidateInBackground)
+            result = new RevalidatingComponentTemplate(result);
+
+        if (!watched) return result;
+
+        if (changeCount.get() == changeCountBeforeParse && !watcher.isPending(templateResource))
+            cache.put(templateResource, result);
+        else
+            superseded.put(result, true);
+
+        return result;
+    }
+
+    public void templatesChanged(Set<Resource> resources)
+    {
+        changeCount.incrementAndGet();
+
+        if (!revalidateInBackground)
+        {
+            boolean removed = false;
+
+            for (Resource resource : resources)
+            {
+                ComponentTemplate template = cache.remove(resource);
+
+                if (template == null) continue;
+
+                superseded.put(template, true);
+                removed = true;
+            }
+
+            if (removed) fireInvalidationEvent();
+
+            return;
+        }
+
+        for (Resource resource : resources)
+        {
+            if (cache.containsKey(resource))
+                revalidate(resource);
+        }
+    }
+
+    private void revalidate(final Resource resource)
+    {
+        while (true)
+        {
+            Boolean rerun = revalidating.putIfAbsent(resource, false);
+
+            if (rerun == null) break;
+
+            // Already in progress; have it run again once complete.
+
+            if (rerun || revalidating.replace(resource, false, true)) return;
+        }
+
+        scheduler.submit(new Invokable<Void>()
+        {
+            public Void invoke()
+            {
+                reparse(resource);
+
+                return null;
+            }
+        });
+    }
+
+    private void reparse(Resource resource)
+    {
+        try
+        {
+            RevalidatingComponentTemplate cached = (RevalidatingComponentTemplate) cache.get(resource);
+
+            if (cached == null) return;
+
+            try
+            {
+                cached.setCurrent(delegate.parseTemplate(resource));
+            }
+            catch (RuntimeException ex)
+            {
+                logger.error(SaxParserMessages.revalidationFailed(resource, ex), ex);
+
+                return;
+            }
+
+            fireInvalidationEvent();
+        }
+        finally
+        {
+            // If another change arrived while parsing, go again.
+
+            if (!revalidating.remove(resource, false))
+            {
+                revalidating.remove(resource);
+
+                revalidate(resource);
+            }
+        }
+    }
+
+    public ComponentTemplate getCurrentTemplate(ComponentTemplate template)
+    {
+        return superseded.containsKey(template) ? parseTemplate(template.getResource()) : template;
+    }
+
+    public InvalidationEventHub getInvalidationEventHub()
+    {
+        return this;
+    }
+
+    int getCachedTemplateCount()
+    {
+        return cache.size();
+    }
+}
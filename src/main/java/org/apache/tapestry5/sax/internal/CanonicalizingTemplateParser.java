@@ -0,0 +1,26 @@
+package org.apache.tapestry5.sax.internal;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * Passes each template obtained from the delegate parser through the {@link TokenCanonicalizer}.
+ */
+class CanonicalizingTemplateParser implements TemplateParser
+{
+    private final TemplateParser delegate;
+
+    private final TokenCanonicalizer canonicalizer;
+
+    CanonicalizingTemplateParser(TemplateParser delegate, TokenCanonicalizer canonicalizer)
+    {
+        this.delegate = delegate;
+        this.canonicalizer = canonicalizer;
+    }
+
+    public ComponentTemplate parseTemplate(Resource templateResource)
+    {
+        return canonicalizer.canonicalize(delegate.parseTemplate(templateResource));
+    }
+}
@@ -0,0 +1,23 @@
+package org.apache.tapestry5.sax.internal;
+
+/**
+ * Receives the content of a {@link ChunkedResource} as it arrives. Calls must not overlap, but may come from any
+ * thread.
+ */
+public interface ChunkReceiver
+{
+    /**
+     * Receives the next chunk of content. The bytes are copied, so the array may be reused once this returns.
+     */
+    void chunk(byte[] bytes, int offset, int length);
+
+    /**
+     * Invoked once all of the content has been received.
+     */
+    void complete();
+
+    /**
+     * Invoked, instead of {@link #complete()}, if the content can't be read.
+     */
+    void failed(Throwable cause);
+}
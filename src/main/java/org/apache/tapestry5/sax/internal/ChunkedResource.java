@@ -0,0 +1,17 @@
+package org.apache.tapestry5.sax.internal;
+
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * A resource (typically stored remotely, or in a database) whose content can be delivered a chunk at a time, as it
+ * arrives, rather than read through a blocking {@link #openStream()}.
+ *
+ * @see AsyncTemplateParser
+ */
+public interface ChunkedResource extends Resource
+{
+    /**
+     * Starts delivering the content to the receiver, and returns without waiting for it to arrive.
+     */
+    void readChunks(ChunkReceiver receiver);
+}
@@ -0,0 +1,28 @@
+package org.apache.tapestry5.sax.internal;
+
+/**
+ * Loads (and transforms) the classes of the component and mixin types recorded by the {@link ComponentTypeIndex}, so
+ * that the first request for a page doesn't wait for the classes of the components it uses. When symbol {@link
+ * SaxParserSymbols#PRELOAD_COMPONENT_CLASSES} is true, this starts at registry startup (in the background, so startup
+ * doesn't wait for it), for the templates parsed during startup.
+ */
+public interface ComponentClassPreloader
+{
+    /**
+     * Loads the classes of all indexed types that haven't been loaded yet, one after another, in the calling thread.
+     * Types that can't be resolved or loaded are logged and skipped.
+     *
+     * @return the number of classes loaded
+     */
+    int preload();
+
+    /**
+     * Starts {@link #preload()} in a new background thread, and returns at once.
+     */
+    void preloadInBackground();
+
+    /**
+     * Returns the number of classes loaded since startup (or since component classes were last invalidated).
+     */
+    int getPreloadedClassCount();
+}
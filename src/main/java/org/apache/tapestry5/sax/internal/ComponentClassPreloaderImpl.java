@@ -0,0 +1,116 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Set;
+
+import org.apache.tapestry5.internal.services.ComponentInstantiatorSource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.services.ComponentClassResolver;
+import org.apache.tapestry5.services.InvalidationListener;
+import org.slf4j.Logger;
+
+public class ComponentClassPreloaderImpl implements ComponentClassPreloader, InvalidationListener
+{
+    private final ComponentTypeIndex index;
+
+    private final ComponentClassResolver resolver;
+
+    private final ComponentInstantiatorSource instantiatorSource;
+
+    private final Logger logger;
+
+    /**
+     * Names of classes already loaded.
+     */
+    private final Set<String> preloaded = CollectionFactory.newSet();
+
+    public ComponentClassPreloaderImpl(ComponentTypeIndex index, ComponentClassResolver resolver,
+            ComponentInstantiatorSource instantiatorSource, Logger logger)
+    {
+        this.index = index;
+        this.resolver = resolver;
+        this.instantiatorSource = instantiatorSource;
+        this.logger = logger;
+    }
+
+    public void preloadInBackground()
+    {
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                preload();
+            }
+        }, "ComponentClassPreloader");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Classes are loaded one at a time: the instantiator source loads (and transforms) classes while holding its own
+     * lock, so there's nothing to be gained from loading them in several threads.
+     */
+    public synchronized int preload()
+    {
+        Set<String> classNames = CollectionFactory.newSet();
+
+        for (String type : index.getComponentTypes())
+        {
+            try
+            {
+                classNames.add(resolver.resolveComponentTypeToClassName(type));
+            }
+            catch (RuntimeException ex)
+            {
+                logger.warn(SaxParserMessages.unableToPreloadType(type, ex));
+            }
+        }
+
+        for (String type : index.getMixinTypes())
+        {
+            try
+            {
+                classNames.add(resolver.resolveMixinTypeToClassName(type));
+            }
+            catch (RuntimeException ex)
+            {
+                logger.warn(SaxParserMessages.unableToPreloadType(type, ex));
+            }
+        }
+
+        classNames.removeAll(preloaded);
+
+        int count = 0;
+
+        for (String className : classNames)
+        {
+            try
+            {
+                instantiatorSource.getInstantiator(className);
+
+                preloaded.add(className);
+
+                count++;
+            }
+            catch (RuntimeException ex)
+            {
+                logger.warn(SaxParserMessages.unableToPreloadType(className, ex));
+            }
+        }
+
+        return count;
+    }
+
+    public synchronized int getPreloadedClassCount()
+    {
+        return preloaded.size();
+    }
+
+    /**
+     * Component classes have been discarded (because a class changed), so they'll need loading again.
+     */
+    public synchronized void objectWasInvalidated()
+    {
+        preloaded.clear();
+    }
+}
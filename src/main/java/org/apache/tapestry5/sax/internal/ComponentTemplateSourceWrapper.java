@@ -0,0 +1,112 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.services.ComponentTemplateSource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.model.ComponentModel;
+import org.apache.tapestry5.services.InvalidationEventHub;
+import org.apache.tapestry5.services.InvalidationListener;
+
+/**
+ * Decorates Tapestry's ComponentTemplateSource so that:
+ * <ul>
+ * <li>listeners to its invalidation events (page pools, page loaders) are also informed of the {@link
+ * CachingTemplateParser}'s invalidation events</li>
+ * <li>a template the parser knows to be out of date is replaced by its current version</li>
+ * <li>an extension template is merged with the templates it extends by the {@link ExtendedTemplateResolver}, so the
+ * page loader receives a single, already merged token stream</li>
+ * <li>the parent of each extension template is recorded in the {@link TemplateExtensionGraph}</li>
+ * <li>each use of a template is counted by the {@link TemplateUsageRecorder}</li>
+ * </ul>
+ */
+public class ComponentTemplateSourceWrapper implements ComponentTemplateSource
+{
+    private final ComponentTemplateSource delegate;
+
+    private final CachingTemplateParser parser;
+
+    private final TemplateExtensionGraph extensionGraph;
+
+    private final TemplateUsageRecorder recorder;
+
+    private final ExtendedTemplateResolver resolver;
+
+    private final InvalidationEventHub hub;
+
+    public ComponentTemplateSourceWrapper(ComponentTemplateSource delegate, final CachingTemplateParser parser,
+            TemplateExtensionGraph extensionGraph, TemplateUsageRecorder recorder, ExtendedTemplateResolver resolver)
+    {
+        this.delegate = delegate;
+        this.parser = parser;
+        this.extensionGraph = extensionGraph;
+        this.recorder = recorder;
+        this.resolver = resolver;
+
+        hub = new InvalidationEventHub()
+        {
+            public void addInvalidationListener(InvalidationListener listener)
+            {
+                ComponentTemplateSourceWrapper.this.delegate.getInvalidationEventHub().addInvalidationListener(
+                        listener);
+
+                parser.getInvalidationEventHub().addInvalidationListener(listener);
+            }
+        };
+    }
+
+    public ComponentTemplate getTemplate(ComponentModel componentModel, Locale locale)
+    {
+        ComponentTemplate template = getCurrentTemplate(componentModel, locale);
+
+        if (!template.isMissing())
+            recorder.templateUsed(template.getResource());
+
+        if (!template.isExtension()) return template;
+
+        // Build the same override search as the page loader: the component's template, then the template of each
+        // base class up to and including the first that is not an extension.
+
+        List<ComponentTemplate> overrideSearch = CollectionFactory.newList();
+
+        overrideSearch.add(template);
+
+        ComponentModel model = componentModel;
+        ComponentTemplate current = template;
+
+        while (current.isExtension())
+        {
+            model = model.getParentModel();
+
+            // Leave it to the page loader to report an extension template without a base template.
+
+            if (model == null) return template;
+
+            ComponentTemplate parentTemplate = getCurrentTemplate(model, locale);
+
+            if (!parentTemplate.isMissing())
+                extensionGraph.extensionResolved(current.getResource(), parentTemplate.getResource());
+
+            overrideSearch.add(parentTemplate);
+
+            current = parentTemplate;
+        }
+
+        return resolver.resolve(overrideSearch);
+    }
+
+    /**
+     * Tapestry may be holding a template that the parser has since found to be out of date.
+     */
+    private ComponentTemplate getCurrentTemplate(ComponentModel componentModel, Locale locale)
+    {
+        return parser.getCurrentTemplate(delegate.getTemplate(componentModel, locale));
+    }
+
+    public InvalidationEventHub getInvalidationEventHub()
+    {
+        return hub;
+    }
+}
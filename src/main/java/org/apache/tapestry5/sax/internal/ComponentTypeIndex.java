@@ -0,0 +1,40 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Set;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * Records the component and mixin types referenced by each parsed template (from t:type, library namespaces and
+ * t:mixins), so that their classes can be loaded by the {@link ComponentClassPreloader} before they are first needed.
+ * Components whose type is defined only by the component class (with the @Component annotation) can't be known from
+ * the template, and are not indexed.
+ */
+public interface ComponentTypeIndex
+{
+    /**
+     * Records (or re-records) the types referenced by a freshly parsed template.
+     */
+    void templateParsed(Resource resource, ComponentTemplate template);
+
+    /**
+     * Returns every component type referenced by the templates parsed so far.
+     */
+    Set<String> getComponentTypes();
+
+    /**
+     * Returns every mixin type referenced by the templates parsed so far.
+     */
+    Set<String> getMixinTypes();
+
+    /**
+     * Returns the templates that reference the component type, or an empty set.
+     */
+    Set<Resource> getTemplatesUsingComponent(String componentType);
+
+    /**
+     * Returns the templates that reference the mixin type, or an empty set.
+     */
+    Set<Resource> getTemplatesUsingMixin(String mixinType);
+}
@@ -0,0 +1,164 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.parser.StartComponentToken;
+import org.apache.tapestry5.internal.parser.TemplateToken;
+import org.apache.tapestry5.internal.parser.TokenType;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.ioc.internal.util.InternalUtils;
+
+public class ComponentTypeIndexImpl implements ComponentTypeIndex, TemplateChangeListener
+{
+    /**
+     * Component and mixin types, like component ids, are case insensitive.
+     */
+    private final Map<String, Set<Resource>> componentUsage = CollectionFactory.newCaseInsensitiveMap();
+
+    private final Map<String, Set<Resource>> mixinUsage = CollectionFactory.newCaseInsensitiveMap();
+
+    private final Map<Resource, Usage> templates = CollectionFactory.newMap();
+
+    private static class Usage
+    {
+        final Set<String> componentTypes = CollectionFactory.newSet();
+
+        final Set<String> mixinTypes = CollectionFactory.newSet();
+    }
+
+    public synchronized void templateParsed(Resource resource, ComponentTemplate template)
+    {
+        forget(resource);
+
+        Usage usage = new Usage();
+
+        addTypes(usage, template.getTokens());
+
+        if (template instanceof SaxComponentTemplate)
+        {
+            Map<String, List<TemplateToken>> overrides = ((SaxComponentTemplate) template).getOverrides();
+
+            if (overrides != null)
+            {
+                for (List<TemplateToken> tokens : overrides.values())
+                    addTypes(usage, tokens);
+            }
+        }
+
+        templates.put(resource, usage);
+
+        for (String type : usage.componentTypes)
+            add(componentUsage, type, resource);
+
+        for (String type : usage.mixinTypes)
+            add(mixinUsage, type, resource);
+    }
+
+    private void addTypes(Usage usage, List<TemplateToken> tokens)
+    {
+        for (TemplateToken token : tokens)
+        {
+            if (token.getTokenType() != TokenType.START_COMPONENT) continue;
+
+            StartComponentToken component = (StartComponentToken) token;
+
+            // The component type for a library namespace element is the library path plus the
+            // element name, which the parser has already combined.
+
+            String type = component.getComponentType();
+
+            if (type != null) usage.componentTypes.add(type);
+
+            String mixins = component.getMixins();
+
+            if (mixins == null) continue;
+
+            for (String mixin : mixins.split(","))
+            {
+                String mixinType = mixin.trim();
+
+                if (!InternalUtils.isBlank(mixinType)) usage.mixinTypes.add(mixinType);
+            }
+        }
+    }
+
+    private void add(Map<String, Set<Resource>> usage, String type, Resource resource)
+    {
+        Set<Resource> resources = usage.get(type);
+
+        if (resources == null)
+        {
+            resources = CollectionFactory.newSet();
+            usage.put(type, resources);
+        }
+
+        resources.add(resource);
+    }
+
+    private void forget(Resource resource)
+    {
+        Usage usage = templates.remove(resource);
+
+        if (usage == null) return;
+
+        for (String type : usage.componentTypes)
+            remove(componentUsage, type, resource);
+
+        for (String type : usage.mixinTypes)
+            remove(mixinUsage, type, resource);
+    }
+
+    private void remove(Map<String, Set<Resource>> usage, String type, Resource resource)
+    {
+        Set<Resource> resources = usage.get(type);
+
+        // Types differing only in case share an entry, which may already be gone.
+
+        if (resources == null) return;
+
+        resources.remove(resource);
+
+        if (resources.isEmpty()) usage.remove(type);
+    }
+
+    public synchronized Set<String> getComponentTypes()
+    {
+        return CollectionFactory.newSet(componentUsage.keySet());
+    }
+
+    public synchronized Set<String> getMixinTypes()
+    {
+        return CollectionFactory.newSet(mixinUsage.keySet());
+    }
+
+    public synchronized Set<Resource> getTemplatesUsingComponent(String componentType)
+    {
+        return copy(componentUsage.get(componentType));
+    }
+
+    public synchronized Set<Resource> getTemplatesUsingMixin(String mixinType)
+    {
+        return copy(mixinUsage.get(mixinType));
+    }
+
+    private Set<Resource> copy(Set<Resource> resources)
+    {
+        if (resources == null) return Collections.emptySet();
+
+        return CollectionFactory.newSet(resources);
+    }
+
+    /**
+     * Changed templates are forgotten; they are recorded again when re-parsed.
+     */
+    public synchronized void templatesChanged(Set<Resource> resources)
+    {
+        for (Resource resource : resources)
+            forget(resource);
+    }
+}
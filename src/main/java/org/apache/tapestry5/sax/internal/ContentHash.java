@@ -0,0 +1,59 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.InternalUtils;
+
+/**
+ * A fast, non-cryptographic (64 bit FNV-1a) hash of template content, used to recognize identical versions of
+ * templates.
+ */
+final class ContentHash
+{
+    static final long INITIAL = 0xcbf29ce484222325L;
+
+    private static final long PRIME = 0x100000001b3L;
+
+    private ContentHash()
+    {
+    }
+
+    static long update(long hash, byte[] bytes, int offset, int length)
+    {
+        long result = hash;
+
+        for (int i = offset; i < offset + length; i++)
+        {
+            result ^= bytes[i] & 0xff;
+            result *= PRIME;
+        }
+
+        return result;
+    }
+
+    static long update(long hash, int b)
+    {
+        return (hash ^ (b & 0xff)) * PRIME;
+    }
+
+    /**
+     * Computes the hash of the complete content of the resource.
+     */
+    static long hash(Resource resource) throws IOException
+    {
+        ContentHashInputStream stream = new ContentHashInputStream(resource.openStream());
+
+        try
+        {
+            stream.drain();
+        }
+        finally
+        {
+            InternalUtils.close(stream);
+        }
+
+        return stream.getHash();
+    }
+}
@@ -0,0 +1,77 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Computes the {@link ContentHash} of the bytes read through it.
+ */
+class ContentHashInputStream extends FilterInputStream
+{
+    private long hash = ContentHash.INITIAL;
+
+    private boolean eof;
+
+    ContentHashInputStream(InputStream in)
+    {
+        super(in);
+    }
+
+    public int read() throws IOException
+    {
+        int b = super.read();
+
+        if (b >= 0)
+            hash = ContentHash.update(hash, b);
+        else
+            eof = true;
+
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        int count = super.read(b, off, len);
+
+        if (count > 0)
+            hash = ContentHash.update(hash, b, off, count);
+        else if (count < 0)
+            eof = true;
+
+        return count;
+    }
+
+    public long skip(long n) throws IOException
+    {
+        // Skipped bytes must still contribute to the hash.
+
+        byte[] buffer = new byte[(int) Math.min(n, 4096)];
+
+        int count = read(buffer, 0, buffer.length);
+
+        return Math.max(count, 0);
+    }
+
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    /**
+     * Reads (and hashes) any remaining content; the XML parser may stop before the end of the stream. Does nothing
+     * once the end of the stream has been reached (the parser may already have closed the stream).
+     */
+    void drain() throws IOException
+    {
+        byte[] buffer = new byte[4096];
+
+        while (!eof)
+            read(buffer, 0, buffer.length);
+    }
+
+    long getHash()
+    {
+        return hash;
+    }
+}
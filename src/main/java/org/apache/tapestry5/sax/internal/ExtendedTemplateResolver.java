@@ -0,0 +1,24 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.List;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+
+/**
+ * Merges chains of extension templates into a single token stream, following the same rules Tapestry uses when
+ * assembling a page: starting from the base template's tokens, each extension point is replaced by the tokens of the
+ * nearest override (searching from the most derived template towards the base template). Merged streams are cached
+ * by the content hashes of the templates in the chain, so the merge is performed once per version of the chain.
+ * <p/>
+ * {@link ComponentTemplateSourceWrapper} hands the merged template to Tapestry's page loader in place of the extension
+ * template; as the merged template is not an extension, the page loader assembles its tokens directly.
+ */
+public interface ExtendedTemplateResolver
+{
+    /**
+     * @param overrideSearch the component's template first, then the template of each base class, ending with the
+     *                       first template that is not an extension
+     * @return the merged template
+     */
+    MergedTemplate resolve(List<ComponentTemplate> overrideSearch);
+}
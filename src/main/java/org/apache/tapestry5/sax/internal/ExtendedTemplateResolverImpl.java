@@ -0,0 +1,231 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.parser.ExtensionPointToken;
+import org.apache.tapestry5.internal.parser.TemplateToken;
+import org.apache.tapestry5.internal.parser.TokenType;
+import org.apache.tapestry5.ioc.Location;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.ioc.internal.util.InternalUtils;
+import org.apache.tapestry5.ioc.internal.util.TapestryException;
+import org.apache.tapestry5.ioc.util.Stack;
+
+public class ExtendedTemplateResolverImpl implements ExtendedTemplateResolver, TemplateChangeListener
+{
+    private final ConcurrentMap<ChainKey, MergedTemplate> cache = CollectionFactory.newConcurrentMap();
+
+    /**
+     * Identifies a particular version of a chain of templates.
+     */
+    private static final class ChainKey
+    {
+        private final Resource[] resources;
+
+        /**
+         * For each template, its content hash (a Long), or the template itself, compared by identity.
+         */
+        private final Object[] versions;
+
+        private final int hashCode;
+
+        ChainKey(List<ComponentTemplate> overrideSearch)
+        {
+            int count = overrideSearch.size();
+
+            resources = new Resource[count];
+            versions = new Object[count];
+
+            for (int i = 0; i < count; i++)
+            {
+                ComponentTemplate template = unwrap(overrideSearch.get(i));
+
+                resources[i] = template.getResource();
+
+                // Templates not produced by this parser (such as the missing template) are identified
+                // by the instance.
+
+                versions[i] = template instanceof SaxComponentTemplate
+                              ? (Object) ((SaxComponentTemplate) template).getContentHash()
+                              : template;
+            }
+
+            int versionsHashCode = 0;
+
+            for (Object version : versions)
+                versionsHashCode = 31 * versionsHashCode + (version instanceof Long
+                                                            ? version.hashCode()
+                                                            : System.identityHashCode(version));
+
+            hashCode = 31 * Arrays.hashCode(resources) + versionsHashCode;
+        }
+
+        boolean contains(Set<Resource> changed)
+        {
+            for (Resource resource : resources)
+            {
+                if (changed.contains(resource)) return true;
+            }
+
+            return false;
+        }
+
+        public int hashCode()
+        {
+            return hashCode;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof ChainKey)) return false;
+
+            ChainKey other = (ChainKey) obj;
+
+            return sameVersions(other) && Arrays.equals(resources, other.resources);
+        }
+
+        private boolean sameVersions(ChainKey other)
+        {
+            if (versions.length != other.versions.length) return false;
+
+            for (int i = 0; i < versions.length; i++)
+            {
+                Object version = versions[i];
+                Object otherVersion = other.versions[i];
+
+                boolean same = version instanceof Long
+                               ? version.equals(otherVersion)
+                               : version == otherVersion;
+
+                if (!same) return false;
+            }
+
+            return true;
+        }
+    }
+
+    private static ComponentTemplate unwrap(ComponentTemplate template)
+    {
+        return template instanceof RevalidatingComponentTemplate
+               ? ((RevalidatingComponentTemplate) template).getCurrent()
+               : template;
+    }
+
+    public MergedTemplate resolve(List<ComponentTemplate> overrideSearch)
+    {
+        ChainKey key = new ChainKey(overrideSearch);
+
+        MergedTemplate result = cache.get(key);
+
+        if (result == null)
+        {
+            result = merge(overrideSearch);
+
+            MergedTemplate existing = cache.putIfAbsent(key, result);
+
+            if (existing != null)
+                result = existing;
+        }
+
+        return result;
+    }
+
+    private MergedTemplate merge(List<ComponentTemplate> overrideSearch)
+    {
+        // The base template is the first non-extension template upwards in the hierarchy.
+
+        ComponentTemplate baseTemplate = overrideSearch.get(overrideSearch.size() - 1);
+
+        if (baseTemplate.isExtension())
+            throw new IllegalArgumentException(SaxParserMessages.noBaseTemplate(baseTemplate.getResource()));
+
+        List<TemplateToken> tokens = CollectionFactory.newList();
+
+        Stack<TemplateToken> queue = CollectionFactory.newStack();
+
+        pushAll(queue, baseTemplate.getTokens());
+
+        while (!queue.isEmpty())
+        {
+            TemplateToken token = queue.pop();
+
+            // An extension point is replaced with the tokens of its override, which may
+            // themselves contain further extension points.
+
+            if (token.getTokenType() == TokenType.EXTENSION_POINT)
+                pushOverride((ExtensionPointToken) token, queue, overrideSearch);
+            else
+                tokens.add(token);
+        }
+
+        Map<String, Location> componentIds = CollectionFactory.newCaseInsensitiveMap();
+
+        Iterator<ComponentTemplate> i = InternalUtils.reverseIterator(overrideSearch);
+
+        while (i.hasNext())
+            componentIds.putAll(i.next().getComponentIds());
+
+        return new MergedTemplate(overrideSearch.get(0).getResource(), tokens, componentIds);
+    }
+
+    private void pushOverride(ExtensionPointToken token, Stack<TemplateToken> queue,
+            List<ComponentTemplate> overrideSearch)
+    {
+        String extensionPointId = token.getExtentionPointId();
+
+        // Work up from the component, through its base classes, towards the base template.
+
+        for (ComponentTemplate template : overrideSearch)
+        {
+            List<TemplateToken> tokens = template.getExtensionPointTokens(extensionPointId);
+
+            if (tokens != null)
+            {
+                pushAll(queue, tokens);
+                return;
+            }
+        }
+
+        // Since an extension point defines its own default, it's going to be hard to
+        // not find an override, somewhere, for it.
+
+        throw new TapestryException(SaxParserMessages.couldNotFindOverride(extensionPointId), token.getLocation(),
+                                    null);
+    }
+
+    /**
+     * Pushes the tokens in reverse order, so that they pop off in their original order.
+     */
+    private void pushAll(Stack<TemplateToken> queue, List<TemplateToken> tokens)
+    {
+        for (int i = tokens.size() - 1; i >= 0; i--)
+            queue.push(tokens.get(i));
+    }
+
+    /**
+     * Invoked by the {@link TemplateExtensionGraph} with the changed templates plus their dependents; discards every
+     * merged chain involving any of them.
+     */
+    public void templatesChanged(Set<Resource> resources)
+    {
+        Iterator<ChainKey> i = cache.keySet().iterator();
+
+        while (i.hasNext())
+        {
+            if (i.next().contains(resources))
+                i.remove();
+        }
+    }
+
+    int getCachedChainCount()
+    {
+        return cache.size();
+    }
+}
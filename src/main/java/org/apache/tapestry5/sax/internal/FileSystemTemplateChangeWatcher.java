@@ -0,0 +1,324 @@
+package org.apache.tapestry5.sax.internal;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.ioc.services.RegistryShutdownListener;
+import org.slf4j.Logger;
+
+/**
+ * Watches the directories containing file system templates using a {@link WatchService}. Events are collected until
+ * no further change to a watched template has arrived for the debounce period (editors often write a file in several
+ * steps), then listeners are notified of exactly the resources that changed. Events for other files in the same
+ * directories do not extend the wait, and a change is never held back for more than {@link #MAX_DEBOUNCE_PERIODS}
+ * debounce periods.
+ * <p/>
+ * The watching thread is started when the first resource is watched.
+ */
+public class FileSystemTemplateChangeWatcher implements TemplateChangeWatcher, RegistryShutdownListener, Runnable
+{
+    /**
+     * A change is reported no later than this many debounce periods after it was first seen, however often the
+     * template keeps changing.
+     */
+    static final int MAX_DEBOUNCE_PERIODS = 10;
+
+    private final long debounceMillis;
+
+    private final Logger logger;
+
+    private final WatchService watchService;
+
+    /**
+     * Watched directory to the resources (keyed on file name) within it.
+     */
+    private final Map<Path, Map<Path, Set<Resource>>> watched = new ConcurrentHashMap<Path, Map<Path, Set<Resource>>>();
+
+    /**
+     * Resources that have changed, but whose listeners have not yet been notified.
+     */
+    private final Map<Resource, Boolean> pending = CollectionFactory.newConcurrentMap();
+
+    private final List<TemplateChangeListener> listeners = new CopyOnWriteArrayList<TemplateChangeListener>();
+
+    /**
+     * Guarded by {@link #watched}; null until the first resource is watched.
+     */
+    private Thread thread;
+
+    private boolean shutdown;
+
+    /**
+     * When the oldest pending change, and the latest change, were seen; used only by the watching thread.
+     */
+    private long firstChangeMillis, lastChangeMillis;
+
+    public FileSystemTemplateChangeWatcher(long debounceMillis, Logger logger) throws IOException
+    {
+        this.debounceMillis = debounceMillis;
+        this.logger = logger;
+
+        watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    public boolean watch(Resource resource)
+    {
+        File file = toFile(resource.toURL());
+
+        if (file == null) return false;
+
+        Path path = file.toPath().toAbsolutePath();
+        Path directory = path.getParent();
+
+        synchronized (watched)
+        {
+            Map<Path, Set<Resource>> files = watched.get(directory);
+
+            if (files == null)
+            {
+                try
+                {
+                    directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                }
+                catch (IOException ex)
+                {
+                    logger.warn(SaxParserMessages.unableToWatchDirectory(directory, ex));
+
+                    return false;
+                }
+                catch (ClosedWatchServiceException ex)
+                {
+                    return false;
+                }
+
+                files = new ConcurrentHashMap<Path, Set<Resource>>();
+                watched.put(directory, files);
+
+                startThread();
+            }
+
+            Set<Resource> resources = files.get(path.getFileName());
+
+            if (resources == null)
+            {
+                resources = new CopyOnWriteArraySet<Resource>();
+                files.put(path.getFileName(), resources);
+            }
+
+            resources.add(resource);
+        }
+
+        return true;
+    }
+
+    /**
+     * Invoked while synchronized on {@link #watched}.
+     */
+    private void startThread()
+    {
+        if (thread != null || shutdown) return;
+
+        thread = new Thread(this, "TemplateChangeWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private File toFile(URL url)
+    {
+        if (url == null || !"file".equals(url.getProtocol())) return null;
+
+        try
+        {
+            return new File(url.toURI());
+        }
+        catch (Exception ex)
+        {
+            return new File(url.getPath());
+        }
+    }
+
+    public boolean isPending(Resource resource)
+    {
+        return pending.containsKey(resource);
+    }
+
+    public void addChangeListener(TemplateChangeListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void run()
+    {
+        try
+        {
+            while (true)
+            {
+                // Block until something happens; once changes are pending, wait only until the
+                // debounce period (or the maximum delay) is up.
+
+                WatchKey key;
+
+                if (pending.isEmpty())
+                    key = watchService.take();
+                else
+                {
+                    long wait = getNotifyMillis() - System.currentTimeMillis();
+
+                    key = wait > 0 ? watchService.poll(wait, TimeUnit.MILLISECONDS) : null;
+                }
+
+                if (key == null)
+                {
+                    fireTemplatesChanged();
+                    continue;
+                }
+
+                Path directory = (Path) key.watchable();
+
+                for (WatchEvent<?> event : key.pollEvents())
+                {
+                    if (event.kind() == OVERFLOW)
+                    {
+                        addAllWatched();
+                        continue;
+                    }
+
+                    Map<Path, Set<Resource>> files = watched.get(directory);
+
+                    Set<Resource> resources = files == null ? null : files.get((Path) event.context());
+
+                    if (resources != null)
+                        addPending(resources);
+                }
+
+                // A key that can not be reset is no longer valid: the directory was deleted, or replaced
+                // by a new directory. Its resources are treated as changed, and the directory is watched
+                // again when they are next requested.
+
+                if (!key.reset())
+                    unwatch(directory);
+
+                // Events for other files must not hold back the notification.
+
+                if (!pending.isEmpty() && System.currentTimeMillis() >= getNotifyMillis())
+                    fireTemplatesChanged();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            // Shutting down.
+        }
+        catch (ClosedWatchServiceException ex)
+        {
+            // Shutting down.
+        }
+    }
+
+    private long getNotifyMillis()
+    {
+        return Math.min(lastChangeMillis + debounceMillis, firstChangeMillis + MAX_DEBOUNCE_PERIODS * debounceMillis);
+    }
+
+    /**
+     * Events were lost, so every watched resource must be considered changed.
+     */
+    private void addAllWatched()
+    {
+        for (Map<Path, Set<Resource>> files : watched.values())
+        {
+            for (Set<Resource> resources : files.values())
+                addPending(resources);
+        }
+    }
+
+    private void unwatch(Path directory)
+    {
+        Map<Path, Set<Resource>> files;
+
+        synchronized (watched)
+        {
+            files = watched.remove(directory);
+        }
+
+        if (files == null) return;
+
+        for (Set<Resource> resources : files.values())
+            addPending(resources);
+    }
+
+    private void addPending(Set<Resource> resources)
+    {
+        if (resources.isEmpty()) return;
+
+        long now = System.currentTimeMillis();
+
+        if (pending.isEmpty()) firstChangeMillis = now;
+
+        lastChangeMillis = now;
+
+        for (Resource resource : resources)
+            pending.put(resource, true);
+    }
+
+    private void fireTemplatesChanged()
+    {
+        Set<Resource> changed = CollectionFactory.newSet(pending.keySet());
+
+        // Listeners are notified before the resources stop being pending, so that there's no
+        // window in which a change is neither pending nor acted upon.
+
+        for (TemplateChangeListener listener : listeners)
+        {
+            try
+            {
+                listener.templatesChanged(changed);
+            }
+            catch (RuntimeException ex)
+            {
+                logger.error(SaxParserMessages.changeListenerFailure(listener, ex), ex);
+            }
+        }
+
+        pending.keySet().removeAll(changed);
+    }
+
+    public void registryDidShutdown()
+    {
+        synchronized (watched)
+        {
+            shutdown = true;
+
+            if (thread != null) thread.interrupt();
+        }
+
+        try
+        {
+            watchService.close();
+        }
+        catch (IOException ex)
+        {
+            // Ignore.
+        }
+    }
+}
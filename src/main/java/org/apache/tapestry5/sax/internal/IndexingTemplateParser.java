@@ -0,0 +1,30 @@
+package org.apache.tapestry5.sax.internal;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * Records each template obtained from the delegate parser in the {@link ComponentTypeIndex}.
+ */
+class IndexingTemplateParser implements TemplateParser
+{
+    private final TemplateParser delegate;
+
+    private final ComponentTypeIndex index;
+
+    IndexingTemplateParser(TemplateParser delegate, ComponentTypeIndex index)
+    {
+        this.delegate = delegate;
+        this.index = index;
+    }
+
+    public ComponentTemplate parseTemplate(Resource templateResource)
+    {
+        ComponentTemplate template = delegate.parseTemplate(templateResource);
+
+        index.templateParsed(templateResource, template);
+
+        return template;
+    }
+}
@@ -0,0 +1,70 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.parser.TemplateToken;
+import org.apache.tapestry5.ioc.Location;
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * The result of merging an extension template with the templates it extends: a single token stream in which every
+ * extension point has been replaced by its override. A merged template is not itself an extension, so Tapestry's page
+ * loader assembles it as it is, without searching the component's base classes for overrides.
+ */
+public class MergedTemplate implements ComponentTemplate
+{
+    private final Resource resource;
+
+    private final List<TemplateToken> tokens;
+
+    private final Map<String, Location> componentIds;
+
+    public MergedTemplate(Resource resource, List<TemplateToken> tokens, Map<String, Location> componentIds)
+    {
+        this.resource = resource;
+        this.tokens = Collections.unmodifiableList(tokens);
+        this.componentIds = Collections.unmodifiableMap(componentIds);
+    }
+
+    /**
+     * The resource of the most derived template in the chain.
+     */
+    public Resource getResource()
+    {
+        return resource;
+    }
+
+    public List<TemplateToken> getTokens()
+    {
+        return tokens;
+    }
+
+    /**
+     * Component ids from all templates in the chain; where ids collide, the most derived template wins.
+     */
+    public Map<String, Location> getComponentIds()
+    {
+        return componentIds;
+    }
+
+    public boolean isMissing()
+    {
+        return false;
+    }
+
+    public boolean isExtension()
+    {
+        return false;
+    }
+
+    /**
+     * Always null: every extension point has already been replaced.
+     */
+    public List<TemplateToken> getExtensionPointTokens(String extensionPointId)
+    {
+        return null;
+    }
+}
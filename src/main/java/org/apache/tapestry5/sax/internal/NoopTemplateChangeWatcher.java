@@ -0,0 +1,24 @@
+package org.apache.tapestry5.sax.internal;
+
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * Used when templates are not watched (in production mode, or when the JVM does not provide a watch service); no
+ * resource is ever watched, so nothing is ever cached on the basis of change notifications.
+ */
+public class NoopTemplateChangeWatcher implements TemplateChangeWatcher
+{
+    public boolean watch(Resource resource)
+    {
+        return false;
+    }
+
+    public boolean isPending(Resource resource)
+    {
+        return false;
+    }
+
+    public void addChangeListener(TemplateChangeListener listener)
+    {
+    }
+}
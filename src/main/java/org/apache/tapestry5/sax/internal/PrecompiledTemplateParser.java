@@ -0,0 +1,15 @@
+package org.apache.tapestry5.sax.internal;
+
+import org.apache.tapestry5.internal.services.TemplateParser;
+
+/**
+ * Provides templates from the precompiled template archives (see {@link TemplatePrecompiler}) found on the classpath,
+ * when the template's source is unchanged since it was precompiled; other templates are passed to the SAX parser.
+ */
+public interface PrecompiledTemplateParser extends TemplateParser
+{
+    /**
+     * Returns the number of templates available from archives.
+     */
+    int getArchivedTemplateCount();
+}
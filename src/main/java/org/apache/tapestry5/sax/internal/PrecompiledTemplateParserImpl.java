@@ -0,0 +1,140 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.Map;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.ioc.internal.util.InternalUtils;
+import org.slf4j.Logger;
+
+public class PrecompiledTemplateParserImpl implements PrecompiledTemplateParser
+{
+    private final TemplateParser delegate;
+
+    private final TemplateExtensionGraph extensionGraph;
+
+    private final Logger logger;
+
+    private final Map<String, TemplateArchive.Entry> entries = CollectionFactory.newMap();
+
+    private final StringInterner interner = new StringInterner();
+
+    /**
+     * @param delegate           parses templates that are not archived, or that have changed
+     * @param classLoader        used to locate archives
+     * @param compressWhitespace the default whitespace compression
+     * @param minify             whether templates are minified
+     * @param whitespacePreservation
+     *                           elements whose whitespace is preserved; archives precompiled with different options
+     *                           are ignored
+     * @param extensionGraph     informed of the templates provided from archives, as if they had been parsed
+     * @param logger             for warnings about unusable archives
+     */
+    public PrecompiledTemplateParserImpl(TemplateParser delegate, ClassLoader classLoader,
+            boolean compressWhitespace, boolean minify, WhitespacePreservation whitespacePreservation,
+            TemplateExtensionGraph extensionGraph, Logger logger)
+    {
+        this.delegate = delegate;
+        this.extensionGraph = extensionGraph;
+        this.logger = logger;
+
+        String options = TemplateArchive.options(compressWhitespace, minify, whitespacePreservation);
+
+        try
+        {
+            Enumeration<URL> urls = classLoader.getResources(TemplateArchive.PATH);
+
+            while (urls.hasMoreElements())
+                load(urls.nextElement(), options);
+        }
+        catch (IOException ex)
+        {
+            logger.warn(SaxParserMessages.unableToReadTemplateArchive(TemplateArchive.PATH, ex));
+        }
+    }
+
+    private void load(URL url, String options)
+    {
+        InputStream stream = null;
+
+        try
+        {
+            stream = url.openStream();
+
+            TemplateArchive archive = TemplateArchive.read(stream);
+
+            if (archive == null)
+            {
+                logger.warn(SaxParserMessages.templateArchiveWrongVersion(url, TemplateArchive.FORMAT_VERSION));
+                return;
+            }
+
+            if (!archive.getOptions().equals(options))
+            {
+                logger.warn(SaxParserMessages.templateArchiveWrongOptions(url, archive.getOptions(), options));
+                return;
+            }
+
+            // Where the same template is in several archives, the first on the classpath wins,
+            // just as for the template itself.
+
+            for (Map.Entry<String, TemplateArchive.Entry> entry : archive.getEntries().entrySet())
+            {
+                if (!entries.containsKey(entry.getKey()))
+                    entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        catch (IOException ex)
+        {
+            logger.warn(SaxParserMessages.unableToReadTemplateArchive(url, ex));
+        }
+        finally
+        {
+            InternalUtils.close(stream);
+        }
+    }
+
+    public ComponentTemplate parseTemplate(Resource templateResource)
+    {
+        TemplateArchive.Entry entry = entries.get(templateResource.getPath());
+
+        if (entry == null)
+            return delegate.parseTemplate(templateResource);
+
+        try
+        {
+            // The source must still be read, to make sure it's the version that was precompiled,
+            // but it doesn't need to be parsed.
+
+            if (ContentHash.hash(templateResource) == entry.contentHash)
+            {
+                SaxComponentTemplate template = TemplateCodec.decode(entry.data, templateResource,
+                                                                     entry.contentHash, interner);
+
+                extensionGraph.templateParsed(templateResource, template.isExtension(),
+                                              TemplateTokens.extensionPointIds(template));
+
+                return template;
+            }
+        }
+        catch (IOException ex)
+        {
+            // Let the parser report the problem, if there's one with the resource itself.
+
+            logger.warn(SaxParserMessages.unableToDecodeTemplate(templateResource, ex));
+        }
+
+        return delegate.parseTemplate(templateResource);
+    }
+
+    public int getArchivedTemplateCount()
+    {
+        return entries.size();
+    }
+}
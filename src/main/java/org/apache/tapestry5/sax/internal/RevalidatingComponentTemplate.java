@@ -0,0 +1,64 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.parser.TemplateToken;
+import org.apache.tapestry5.ioc.Location;
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * Handed out when templates are re-parsed in the background: it delegates to the latest successfully parsed version of
+ * the template, so that holders of the template (including Tapestry's own template cache) see the new version once it
+ * has been swapped in.
+ */
+class RevalidatingComponentTemplate implements ComponentTemplate
+{
+    private volatile ComponentTemplate current;
+
+    RevalidatingComponentTemplate(ComponentTemplate current)
+    {
+        this.current = current;
+    }
+
+    ComponentTemplate getCurrent()
+    {
+        return current;
+    }
+
+    void setCurrent(ComponentTemplate current)
+    {
+        this.current = current;
+    }
+
+    public boolean isMissing()
+    {
+        return current.isMissing();
+    }
+
+    public boolean isExtension()
+    {
+        return current.isExtension();
+    }
+
+    public List<TemplateToken> getExtensionPointTokens(String extensionPointId)
+    {
+        return current.getExtensionPointTokens(extensionPointId);
+    }
+
+    public Resource getResource()
+    {
+        return current.getResource();
+    }
+
+    public List<TemplateToken> getTokens()
+    {
+        return current.getTokens();
+    }
+
+    public Map<String, Location> getComponentIds()
+    {
+        return current.getComponentIds();
+    }
+}
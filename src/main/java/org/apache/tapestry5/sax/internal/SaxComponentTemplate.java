@@ -0,0 +1,71 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplateImpl;
+import org.apache.tapestry5.internal.parser.TemplateToken;
+import org.apache.tapestry5.ioc.Location;
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * The template produced by {@link SaxTemplateParserImpl}; adds information gathered while parsing.
+ */
+public class SaxComponentTemplate extends ComponentTemplateImpl
+{
+    private final Map<String, List<TemplateToken>> overrides;
+
+    private final long contentHash;
+
+    private final Set<String> expressions;
+
+    private final TemplateStatistics statistics;
+
+    public SaxComponentTemplate(Resource resource, List<TemplateToken> tokens, Map<String, Location> componentIds,
+            boolean extension, Map<String, List<TemplateToken>> overrides, long contentHash)
+    {
+        super(resource, tokens, componentIds, extension, overrides);
+
+        this.overrides = overrides;
+        this.contentHash = contentHash;
+
+        expressions = Collections.unmodifiableSet(TemplateTokens.expressions(tokens, overrides));
+        statistics = new TemplateStatistics(tokens, overrides);
+    }
+
+    /**
+     * The tokens for each override (and for each extension point) defined by the template, keyed on id; null if the
+     * template defines none.
+     */
+    public Map<String, List<TemplateToken>> getOverrides()
+    {
+        return overrides;
+    }
+
+    /**
+     * The {@link ContentHash} of the template resource's content.
+     */
+    public long getContentHash()
+    {
+        return contentHash;
+    }
+
+    /**
+     * The distinct expressions of all expansions in the template, in text or in attribute values; binding factories
+     * may use these to prepare their caches before the template is first rendered.
+     */
+    public Set<String> getExpressions()
+    {
+        return expressions;
+    }
+
+    /**
+     * Counts of the template's tokens, components, expansions and so forth, for sizing the structures built from it.
+     */
+    public TemplateStatistics getStatistics()
+    {
+        return statistics;
+    }
+}
@@ -1,14 +1,33 @@
 package org.apache.tapestry5.sax.internal;
 
+import java.io.File;
+import java.util.Collection;
+
 import org.apache.tapestry5.ioc.Location;
 import org.apache.tapestry5.ioc.Messages;
 import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.InternalUtils;
 import org.apache.tapestry5.ioc.internal.util.MessagesImpl;
 
 class SaxParserMessages
 {
     private static final Messages MESSAGES = MessagesImpl.forClass(SaxParserMessages.class);
 
+    static String elementDepthExceeded(int maxElementDepth)
+    {
+        return MESSAGES.format("element-depth-exceeded", maxElementDepth);
+    }
+
+    static String tokenCountExceeded(int maxTokens)
+    {
+        return MESSAGES.format("token-count-exceeded", maxTokens);
+    }
+
+    static String textLengthExceeded(int maxTextLength)
+    {
+        return MESSAGES.format("text-length-exceeded", maxTextLength);
+    }
+
     static String contentInsideBodyNotAllowed(Location location)
     {
         return MESSAGES.format("content-inside-body-not-allowed", location);
@@ -49,4 +68,118 @@ class SaxParserMessages
         return MESSAGES.format("invalid-path-for-library-namespace", URI);
     }
 
+    static String virtualThreadsUnavailable()
+    {
+        return MESSAGES.get("virtual-threads-unavailable");
+    }
+
+    static String watchServiceUnavailable(Throwable cause)
+    {
+        return MESSAGES.format("watch-service-unavailable", cause);
+    }
+
+    static String unableToWatchDirectory(Object directory, Throwable cause)
+    {
+        return MESSAGES.format("unable-to-watch-directory", directory, cause);
+    }
+
+    static String changeListenerFailure(TemplateChangeListener listener, Throwable cause)
+    {
+        return MESSAGES.format("change-listener-failure", listener, cause);
+    }
+
+    static String revalidationFailed(Resource resource, Throwable cause)
+    {
+        return MESSAGES.format("revalidation-failed", resource, cause);
+    }
+
+    static String noBaseTemplate(Resource resource)
+    {
+        return MESSAGES.format("no-base-template", resource);
+    }
+
+    static String couldNotFindOverride(String extensionPointId)
+    {
+        return MESSAGES.format("could-not-find-override", extensionPointId);
+    }
+
+    static String unableToReadTemplateArchive(Object archive, Throwable cause)
+    {
+        return MESSAGES.format("unable-to-read-template-archive", archive, cause);
+    }
+
+    static String templateArchiveWrongVersion(Object archive, int expectedVersion)
+    {
+        return MESSAGES.format("template-archive-wrong-version", archive, expectedVersion);
+    }
+
+    static String templateArchiveWrongOptions(Object archive, String archiveOptions, String options)
+    {
+        return MESSAGES.format("template-archive-wrong-options", archive, archiveOptions, options);
+    }
+
+    static String unableToDecodeTemplate(Resource resource, Throwable cause)
+    {
+        return MESSAGES.format("unable-to-decode-template", resource, cause);
+    }
+
+    static String templateNotPrecompiled(Resource resource, Throwable cause)
+    {
+        return MESSAGES.format("template-not-precompiled", resource, cause);
+    }
+
+    static String templatesPrecompiled(int count, Object archive)
+    {
+        return MESSAGES.format("templates-precompiled", count, archive);
+    }
+
+    static String unableToPreloadType(String type, Throwable cause)
+    {
+        return MESSAGES.format("unable-to-preload-type", type, cause);
+    }
+
+    static String unableToReadTemplateUsage(File file, Throwable cause)
+    {
+        return MESSAGES.format("unable-to-read-template-usage", file, cause);
+    }
+
+    static String unableToSaveTemplateUsage(File file, Throwable cause)
+    {
+        return MESSAGES.format("unable-to-save-template-usage", file, cause);
+    }
+
+    static String templateWarmupFailed(Resource resource, Throwable cause)
+    {
+        return MESSAGES.format("template-warmup-failed", resource, cause);
+    }
+
+    static String templatesWarmedUp(int count, long elapsedMillis)
+    {
+        return MESSAGES.format("templates-warmed-up", count, elapsedMillis);
+    }
+
+    static String shadowMismatch(Resource resource, String difference)
+    {
+        return MESSAGES.format("shadow-mismatch", resource, difference);
+    }
+
+    static String coreTemplateParserUnavailable(Throwable cause)
+    {
+        return MESSAGES.format("core-template-parser-unavailable", cause);
+    }
+
+    static String shadowParseFailed(Throwable cause)
+    {
+        return MESSAGES.format("shadow-parse-failed", InternalUtils.toMessage(cause));
+    }
+
+    static String unknownParserBackend(String backend, Collection<String> backends)
+    {
+        return MESSAGES.format("unknown-parser-backend", backend, InternalUtils.joinSorted(backends));
+    }
+
+    static String staxEntityLimitUnsupported(int maxEntityExpansions, Object inputFactory)
+    {
+        return MESSAGES.format("stax-entity-limit-unsupported", maxEntityExpansions, inputFactory.getClass().getName());
+    }
 }
@@ -1,43 +1,370 @@
 package org.apache.tapestry5.sax.internal;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.tapestry5.SymbolConstants;
+import org.apache.tapestry5.internal.services.ComponentInstantiatorSource;
+import org.apache.tapestry5.internal.services.ComponentTemplateSource;
 import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.internal.services.TemplateParserImpl;
 import org.apache.tapestry5.internal.services.UpdateListenerHubImpl;
+import org.apache.tapestry5.ioc.Configuration;
 import org.apache.tapestry5.ioc.MappedConfiguration;
-import org.apache.tapestry5.ioc.ServiceBinder;
+import org.apache.tapestry5.ioc.OrderedConfiguration;
+import org.apache.tapestry5.ioc.annotations.InjectService;
 import org.apache.tapestry5.ioc.annotations.Local;
+import org.apache.tapestry5.ioc.annotations.Symbol;
+import org.apache.tapestry5.ioc.internal.util.InternalUtils;
+import org.apache.tapestry5.ioc.services.ClassFactory;
+import org.apache.tapestry5.ioc.services.RegistryShutdownHub;
+import org.apache.tapestry5.ioc.services.SymbolSource;
+import org.apache.tapestry5.services.ComponentClassResolver;
+import org.slf4j.Logger;
 
 public class SaxParserModule
 {
-    public static void bind(ServiceBinder binder)
+    /**
+     * Elements whose whitespace is preserved by default; see {@link WhitespacePreservation}.
+     */
+    static final List<String> DEFAULT_PRESERVED_ELEMENTS = Arrays.asList("pre", "textarea", "script", "style");
+
+    public static BatchTemplateParser buildTemplateParserOverride(Map<String, URL> configuration,
+            @Symbol(SymbolConstants.COMPRESS_WHITESPACE) boolean compressWhitespace,
+            @Symbol(SaxParserSymbols.MINIFY_TEMPLATES) boolean minify,
+            @Symbol(SaxParserSymbols.PLAIN_MARKUP_FAST_PATH) boolean plainMarkupFastPath,
+            @Symbol(SaxParserSymbols.TEXT_CHUNK_SIZE) int textChunkSize,
+            WhitespacePreservation whitespacePreservation, TemplateLimits limits, TemplateReaderFactory readerFactory,
+            TemplateParseScheduler scheduler, TemplateExtensionGraph extensionGraph,
+            ComponentTemplateSource templateSource)
+    {
+        SaxTemplateParserImpl service = new SaxTemplateParserImpl(configuration, compressWhitespace, minify,
+                                                                  plainMarkupFastPath, textChunkSize,
+                                                                  whitespacePreservation, limits, readerFactory,
+                                                                  scheduler, extensionGraph);
+
+        // Invalidations from Tapestry and from the CachingTemplateParser, which is informed of deleted templates.
+
+        templateSource.getInvalidationEventHub().addInvalidationListener(service);
+
+        return service;
+    }
+
+    public static WhitespacePreservation buildWhitespacePreservation(Collection<String> configuration)
+    {
+        return new WhitespacePreservationImpl(configuration);
+    }
+
+    public static TemplateLimits buildTemplateLimits(
+            @Symbol(SaxParserSymbols.MAX_ELEMENT_DEPTH) int maxElementDepth,
+            @Symbol(SaxParserSymbols.MAX_TOKENS) int maxTokens,
+            @Symbol(SaxParserSymbols.MAX_TEXT_LENGTH) int maxTextLength,
+            @Symbol(SaxParserSymbols.MAX_ENTITY_EXPANSIONS) int maxEntityExpansions)
+    {
+        return new TemplateLimits(maxElementDepth, maxTokens, maxTextLength, maxEntityExpansions);
+    }
+
+    public static void contributeWhitespacePreservation(Configuration<String> configuration)
+    {
+        for (String element : DEFAULT_PRESERVED_ELEMENTS)
+            configuration.add(element);
+    }
+
+    /**
+     * (Symbols are obtained from the SymbolSource because a String parameter of a service builder method is always the
+     * service id.)
+     */
+    public static TemplateReaderFactory buildTemplateReaderFactory(Map<String, TemplateReaderFactory> configuration,
+            SymbolSource symbolSource)
+    {
+        return selectTemplateReaderFactory(configuration, symbolSource.valueForSymbol(SaxParserSymbols.PARSER_BACKEND));
+    }
+
+    static TemplateReaderFactory selectTemplateReaderFactory(Map<String, TemplateReaderFactory> configuration,
+            String backend)
+    {
+        TemplateReaderFactory factory = configuration.get(backend);
+
+        if (factory == null)
+            throw new RuntimeException(SaxParserMessages.unknownParserBackend(backend, configuration.keySet()));
+
+        return factory;
+    }
+
+    public static void contributeTemplateReaderFactory(MappedConfiguration<String, TemplateReaderFactory> configuration)
+    {
+        configuration.add("sax", SaxTemplateReader.FACTORY);
+        configuration.add("stax", StaxTemplateReader.FACTORY);
+    }
+
+    public static TemplateParseScheduler buildTemplateParseScheduler(
+            @Symbol(SaxParserSymbols.MAX_CONCURRENT_PARSES) int maxConcurrentParses,
+            @Symbol(SaxParserSymbols.USE_VIRTUAL_THREADS) boolean useVirtualThreads,
+            Logger logger, RegistryShutdownHub shutdownHub)
+    {
+        TemplateParseSchedulerImpl service = new TemplateParseSchedulerImpl(maxConcurrentParses, useVirtualThreads,
+                                                                            logger);
+
+        shutdownHub.addRegistryShutdownListener(service);
+
+        return service;
+    }
+
+    public static TemplateChangeWatcher buildTemplateChangeWatcher(
+            @Symbol(SymbolConstants.PRODUCTION_MODE) boolean productionMode,
+            @Symbol(SaxParserSymbols.WATCH_TEMPLATES) boolean watchTemplates,
+            @Symbol(SaxParserSymbols.WATCH_DEBOUNCE_MILLIS) long debounceMillis,
+            Logger logger, RegistryShutdownHub shutdownHub)
+    {
+        // In production mode Tapestry never reloads templates, so there's nothing to watch for.
+
+        if (productionMode || !watchTemplates)
+            return new NoopTemplateChangeWatcher();
+
+        try
+        {
+            FileSystemTemplateChangeWatcher service = new FileSystemTemplateChangeWatcher(debounceMillis, logger);
+
+            shutdownHub.addRegistryShutdownListener(service);
+
+            return service;
+        }
+        catch (IOException ex)
+        {
+            logger.warn(SaxParserMessages.watchServiceUnavailable(ex));
+
+            return new NoopTemplateChangeWatcher();
+        }
+    }
+
+    public static PrecompiledTemplateParser buildPrecompiledTemplateParser(
+            @InjectService("TemplateParserOverride") TemplateParser parser, ClassFactory classFactory,
+            @Symbol(SymbolConstants.COMPRESS_WHITESPACE) boolean compressWhitespace,
+            @Symbol(SaxParserSymbols.MINIFY_TEMPLATES) boolean minify,
+            WhitespacePreservation whitespacePreservation, TemplateExtensionGraph extensionGraph, Logger logger)
+    {
+        return new PrecompiledTemplateParserImpl(parser, classFactory.getClassLoader(), compressWhitespace, minify,
+                                                 whitespacePreservation, extensionGraph, logger);
+    }
+
+    public static TokenCanonicalizer buildTokenCanonicalizer(TemplateChangeWatcher watcher, Logger logger)
+    {
+        TokenCanonicalizerImpl service = new TokenCanonicalizerImpl(logger);
+
+        watcher.addChangeListener(service);
+
+        return service;
+    }
+
+    public static ComponentTypeIndex buildComponentTypeIndex(TemplateChangeWatcher watcher)
+    {
+        ComponentTypeIndexImpl service = new ComponentTypeIndexImpl();
+
+        watcher.addChangeListener(service);
+
+        return service;
+    }
+
+    public static ComponentClassPreloader buildComponentClassPreloader(@Local ComponentTypeIndex index,
+            ComponentClassResolver resolver, ComponentInstantiatorSource instantiatorSource, Logger logger)
+    {
+        ComponentClassPreloaderImpl service = new ComponentClassPreloaderImpl(index, resolver, instantiatorSource,
+                                                                              logger);
+
+        instantiatorSource.getInvalidationEventHub().addInvalidationListener(service);
+
+        return service;
+    }
+
+    public static TemplateUsageRecorder buildTemplateUsageRecorder(SymbolSource symbolSource,
+            @Symbol(SaxParserSymbols.TEMPLATE_USAGE_SAVE_INTERVAL_MILLIS) long saveIntervalMillis,
+            ClassFactory classFactory, Logger logger, RegistryShutdownHub shutdownHub)
+    {
+        String usageFile = symbolSource.valueForSymbol(SaxParserSymbols.TEMPLATE_USAGE_FILE);
+
+        TemplateUsageRecorderImpl service = new TemplateUsageRecorderImpl(
+                InternalUtils.isBlank(usageFile) ? null : new File(usageFile), saveIntervalMillis,
+                classFactory.getClassLoader(), logger);
+
+        shutdownHub.addRegistryShutdownListener(service);
+
+        return service;
+    }
+
+    /**
+     * Warms up the most used templates, then starts loading the classes of the components they use.
+     */
+    public static void contributeRegistryStartup(OrderedConfiguration<Runnable> configuration,
+            @Symbol(SaxParserSymbols.WARMUP_TIME_BUDGET_MILLIS) final long warmupBudgetMillis,
+            @Local final TemplateUsageRecorder recorder, @Local final CachingTemplateParser parser,
+            @Symbol(SaxParserSymbols.PRELOAD_COMPONENT_CLASSES) final boolean preloadComponentClasses,
+            @Local final ComponentClassPreloader preloader)
+    {
+        configuration.add("TemplateWarmup", new Runnable()
+        {
+            public void run()
+            {
+                if (warmupBudgetMillis > 0) recorder.warmUp(parser, warmupBudgetMillis);
+            }
+        });
+
+        configuration.add("PreloadComponentClasses", new Runnable()
+        {
+            public void run()
+            {
+                if (preloadComponentClasses) preloader.preloadInBackground();
+            }
+        }, "after:TemplateWarmup");
+    }
+
+    public static CachingTemplateParser buildCachingTemplateParser(
+            @Local PrecompiledTemplateParser parser, TemplateChangeWatcher watcher,
+            TemplateParseScheduler scheduler,
+            @Symbol(SaxParserSymbols.REVALIDATE_IN_BACKGROUND) boolean revalidateInBackground,
+            @Symbol(SaxParserSymbols.CANONICALIZE_STATIC_TOKENS) boolean canonicalizeStaticTokens,
+            @Local TokenCanonicalizer canonicalizer, @Local ComponentTypeIndex index,
+            @Symbol(SaxParserSymbols.SHADOW_VERIFICATION_SAMPLE_RATE) double shadowSampleRate,
+            @Local ShadowVerifier verifier, Logger logger)
+    {
+        TemplateParser delegate = new IndexingTemplateParser(parser, index);
+
+        if (shadowSampleRate > 0)
+            delegate = new ShadowVerifyingTemplateParser(delegate, verifier);
+
+        if (canonicalizeStaticTokens)
+            delegate = new CanonicalizingTemplateParser(delegate, canonicalizer);
+
+        CachingTemplateParserImpl service = new CachingTemplateParserImpl(delegate, watcher, scheduler,
+                                                                          revalidateInBackground, logger);
+
+        watcher.addChangeListener(service);
+
+        return service;
+    }
+
+    public static ShadowVerifier buildShadowVerifier(
+            @Symbol(SaxParserSymbols.SHADOW_VERIFICATION_SAMPLE_RATE) double sampleRate,
+            @Symbol(SymbolConstants.COMPRESS_WHITESPACE) boolean compressWhitespace,
+            @Symbol(SaxParserSymbols.MINIFY_TEMPLATES) boolean minify,
+            WhitespacePreservation whitespacePreservation, Logger logger, RegistryShutdownHub shutdownHub)
+    {
+        TemplateParser coreParser = sampleRate > 0 ? createCoreTemplateParser(compressWhitespace, logger) : null;
+
+        ShadowVerifierImpl service = new ShadowVerifierImpl(coreParser, sampleRate, compressWhitespace, minify,
+                                                            whitespacePreservation, logger);
+
+        shutdownHub.addRegistryShutdownListener(service);
+
+        return service;
+    }
+
+    /**
+     * Returns tapestry-core's own parser, or null if it can't be used (it depends on Woodstox, which this module
+     * excludes).
+     */
+    private static TemplateParser createCoreTemplateParser(boolean compressWhitespace, Logger logger)
+    {
+        try
+        {
+            return new TemplateParserImpl(getEntityResources(), compressWhitespace);
+        }
+        catch (LinkageError ex)
+        {
+            logger.warn(SaxParserMessages.coreTemplateParserUnavailable(ex));
+
+            return null;
+        }
+    }
+
+    public static TemplateExtensionGraph buildTemplateExtensionGraph(TemplateChangeWatcher watcher, Logger logger)
+    {
+        TemplateExtensionGraphImpl service = new TemplateExtensionGraphImpl(logger);
+
+        watcher.addChangeListener(service);
+
+        return service;
+    }
+
+    public static ExtendedTemplateResolver buildExtendedTemplateResolver(TemplateExtensionGraph extensionGraph)
     {
-        binder.bind(TemplateParser.class, SaxTemplateParserImpl.class).withId(
-                "TemplateParserOverride");
+        ExtendedTemplateResolverImpl service = new ExtendedTemplateResolverImpl();
+
+        extensionGraph.addChangeListener(service);
+
+        return service;
+    }
+
+    public static ComponentTemplateSource decorateComponentTemplateSource(ComponentTemplateSource delegate,
+            @Local CachingTemplateParser parser, @Local TemplateExtensionGraph extensionGraph,
+            @Local TemplateUsageRecorder recorder, @Local ExtendedTemplateResolver resolver)
+    {
+        return new ComponentTemplateSourceWrapper(delegate, parser, extensionGraph, recorder, resolver);
+    }
+
+    public static void contributeFactoryDefaults(MappedConfiguration<String, String> configuration)
+    {
+        configuration.add(SaxParserSymbols.PARSER_BACKEND, "sax");
+        configuration.add(SaxParserSymbols.MAX_CONCURRENT_PARSES, "0");
+        configuration.add(SaxParserSymbols.USE_VIRTUAL_THREADS, "false");
+        configuration.add(SaxParserSymbols.WATCH_TEMPLATES, "true");
+        configuration.add(SaxParserSymbols.WATCH_DEBOUNCE_MILLIS, "200");
+        configuration.add(SaxParserSymbols.REVALIDATE_IN_BACKGROUND, "false");
+        configuration.add(SaxParserSymbols.CANONICALIZE_STATIC_TOKENS, "false");
+        configuration.add(SaxParserSymbols.MINIFY_TEMPLATES, "false");
+        configuration.add(SaxParserSymbols.PLAIN_MARKUP_FAST_PATH, "true");
+        configuration.add(SaxParserSymbols.TEXT_CHUNK_SIZE, "0");
+        configuration.add(SaxParserSymbols.MAX_ELEMENT_DEPTH, "256");
+        configuration.add(SaxParserSymbols.MAX_TOKENS, "1000000");
+        configuration.add(SaxParserSymbols.MAX_TEXT_LENGTH, "8388608");
+        configuration.add(SaxParserSymbols.MAX_ENTITY_EXPANSIONS, "64000");
+        configuration.add(SaxParserSymbols.SHADOW_VERIFICATION_SAMPLE_RATE, "0");
+        configuration.add(SaxParserSymbols.PRELOAD_COMPONENT_CLASSES, "false");
+        configuration.add(SaxParserSymbols.TEMPLATE_USAGE_FILE, "");
+        configuration.add(SaxParserSymbols.TEMPLATE_USAGE_SAVE_INTERVAL_MILLIS, "300000");
+        configuration.add(SaxParserSymbols.WARMUP_TIME_BUDGET_MILLIS, "10000");
     }
 
     public static void contributeTemplateParserOverride(MappedConfiguration<String, URL> config)
+    {
+        for (Map.Entry<String, URL> entry : getEntityResources().entrySet())
+            config.add(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * The local copies of the standard DTDs and entity files, keyed on public id.
+     */
+    static Map<String, URL> getEntityResources()
     {
         // Any class inside the internal module would do. Or we could move all these
         // files to o.a.t.services.
 
         Class<UpdateListenerHubImpl> c = UpdateListenerHubImpl.class;
 
-        config.add("-//W3C//DTD XHTML 1.0 Strict//EN", c.getResource("xhtml1-strict.dtd"));
-        config.add("-//W3C//DTD XHTML 1.0 Transitional//EN", c
+        Map<String, URL> result = new LinkedHashMap<String, URL>();
+
+        result.put("-//W3C//DTD XHTML 1.0 Strict//EN", c.getResource("xhtml1-strict.dtd"));
+        result.put("-//W3C//DTD XHTML 1.0 Transitional//EN", c
                 .getResource("xhtml1-transitional.dtd"));
-        config.add("-//W3C//DTD XHTML 1.0 Frameset//EN", c.getResource("xhtml1-frameset.dtd"));
-        config.add("-//W3C//DTD HTML 4.01//EN", c.getResource("xhtml1-strict.dtd"));
-        config.add("-//W3C//DTD HTML 4.01 Transitional//EN", c
+        result.put("-//W3C//DTD XHTML 1.0 Frameset//EN", c.getResource("xhtml1-frameset.dtd"));
+        result.put("-//W3C//DTD HTML 4.01//EN", c.getResource("xhtml1-strict.dtd"));
+        result.put("-//W3C//DTD HTML 4.01 Transitional//EN", c
                 .getResource("xhtml1-transitional.dtd"));
-        config.add("-//W3C//DTD HTML 4.01 Frameset//EN", c.getResource("xhtml1-frameset.dtd"));
-        config.add("-//W3C//ENTITIES Latin 1 for XHTML//EN", c.getResource("xhtml-lat1.ent"));
-        config.add("-//W3C//ENTITIES Symbols for XHTML//EN", c.getResource("xhtml-symbol.ent"));
-        config.add("-//W3C//ENTITIES Special for XHTML//EN", c.getResource("xhtml-special.ent"));
+        result.put("-//W3C//DTD HTML 4.01 Frameset//EN", c.getResource("xhtml1-frameset.dtd"));
+        result.put("-//W3C//ENTITIES Latin 1 for XHTML//EN", c.getResource("xhtml-lat1.ent"));
+        result.put("-//W3C//ENTITIES Symbols for XHTML//EN", c.getResource("xhtml-symbol.ent"));
+        result.put("-//W3C//ENTITIES Special for XHTML//EN", c.getResource("xhtml-special.ent"));
+
+        return result;
     }
 
     public static void contributeServiceOverride(MappedConfiguration<Class, Object> configuration,
-            @Local TemplateParser override)
+            @Local CachingTemplateParser override)
     {
         configuration.add(TemplateParser.class, override);
     }
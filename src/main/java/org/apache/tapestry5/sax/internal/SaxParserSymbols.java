@@ -0,0 +1,131 @@
+package org.apache.tapestry5.sax.internal;
+
+/**
+ * Symbols used to configure the SAX template parser. Defaults for each are contributed by {@link SaxParserModule}.
+ */
+public class SaxParserSymbols
+{
+    /**
+     * The XML parser used to read templates: "sax" (the default) or "stax", or the name of any other {@link
+     * TemplateReaderFactory} contributed to the TemplateReaderFactory service. All produce identical templates, but
+     * "stax" is a partial backend (see {@link StaxTemplateReader}) that reports errors within entities less precisely.
+     */
+    public static final String PARSER_BACKEND = "tapestry.sax-parser.parser-backend";
+
+    /**
+     * The maximum number of templates that may be parsed at the same time; further parses wait, in arrival order, for
+     * a running parse to finish. The default, 0, means the number of available processors.
+     */
+    public static final String MAX_CONCURRENT_PARSES = "tapestry.sax-parser.max-concurrent-parses";
+
+    /**
+     * If true, background parses are run on virtual threads (when the JVM supports them) rather than on a fixed pool
+     * of platform threads. Defaults to false.
+     */
+    public static final String USE_VIRTUAL_THREADS = "tapestry.sax-parser.use-virtual-threads";
+
+    /**
+     * If true (the default), and not in production mode, file system templates are watched for changes (using the
+     * Java 7 watch service) and cached between Tapestry's template reloads, so that only changed templates are
+     * re-parsed.
+     */
+    public static final String WATCH_TEMPLATES = "tapestry.sax-parser.watch-templates";
+
+    /**
+     * Time, in milliseconds, that a changed template must be left unmodified before change listeners are notified.
+     * Defaults to 200.
+     */
+    public static final String WATCH_DEBOUNCE_MILLIS = "tapestry.sax-parser.watch-debounce-millis";
+
+    /**
+     * If true, a watched template that changes continues to be served while it is re-parsed in the background; the
+     * new version is swapped in once it parses successfully, and a failed parse leaves the old version in place.
+     * Defaults to false, meaning the next request for the template parses it.
+     */
+    public static final String REVALIDATE_IN_BACKGROUND = "tapestry.sax-parser.revalidate-in-background";
+
+    /**
+     * If true, identical fragments of static markup in different templates share their content (see {@link
+     * TokenCanonicalizer}). Defaults to false.
+     */
+    public static final String CANONICALIZE_STATIC_TOKENS = "tapestry.sax-parser.canonicalize-static-tokens";
+
+    /**
+     * If true, templates are parsed for the smallest output: comments are dropped (except for conditional comments),
+     * and compressed whitespace next to the tags of block elements (such as div, p and li) is removed. Only applies
+     * where whitespace is compressed (see {@link WhitespacePreservation}). Defaults to false.
+     */
+    public static final String MINIFY_TEMPLATES = "tapestry.sax-parser.minify-templates";
+
+    /**
+     * If true, templates that make no reference to the Tapestry namespaces (plain HTML, perhaps with expansions) are
+     * parsed without checking each element and attribute for Tapestry markup. The tokens produced are the same either
+     * way. Defaults to true.
+     */
+    public static final String PLAIN_MARKUP_FAST_PATH = "tapestry.sax-parser.plain-markup-fast-path";
+
+    /**
+     * If positive, text and CDATA content longer than this many characters (such as a large inline script) is split
+     * into several tokens of about this size as it is parsed, rather than collected in full first. Text is only split
+     * between two non-whitespace characters outside of any expansion, so the tokens render exactly as the unsplit
+     * text would. Defaults to 0, meaning content is never split.
+     */
+    public static final String TEXT_CHUNK_SIZE = "tapestry.sax-parser.text-chunk-size";
+
+    /**
+     * The maximum depth to which the elements of a template may be nested. Defaults to 256; 0 means no limit.
+     *
+     * @see TemplateLimits
+     */
+    public static final String MAX_ELEMENT_DEPTH = "tapestry.sax-parser.max-element-depth";
+
+    /**
+     * The maximum number of tokens a single template may produce. Defaults to 1000000; 0 means no limit.
+     */
+    public static final String MAX_TOKENS = "tapestry.sax-parser.max-tokens";
+
+    /**
+     * The maximum length, in characters, of any one text node or CDATA section in a template. Defaults to 8388608
+     * (8M); 0 means no limit.
+     */
+    public static final String MAX_TEXT_LENGTH = "tapestry.sax-parser.max-text-length";
+
+    /**
+     * The maximum number of entity references expanded while reading a template (each reference inside the
+     * replacement text of another entity counts separately). Defaults to 64000; 0 leaves the XML parser's own limit in
+     * place.
+     */
+    public static final String MAX_ENTITY_EXPANSIONS = "tapestry.sax-parser.max-entity-expansions";
+
+    /**
+     * The fraction (from 0 to 1) of template parses that are checked, in the background, against tapestry-core's own
+     * template parser (see {@link ShadowVerifier}). Defaults to 0, meaning no templates are checked.
+     */
+    public static final String SHADOW_VERIFICATION_SAMPLE_RATE = "tapestry.sax-parser.shadow-verification-sample-rate";
+
+    /**
+     * If true, the classes of the components and mixins used by templates parsed during startup are loaded (see {@link
+     * ComponentClassPreloader}) in a background thread started at registry startup; combine with {@link
+     * #WARMUP_TIME_BUDGET_MILLIS} so that templates are parsed during startup. Defaults to false.
+     */
+    public static final String PRELOAD_COMPONENT_CLASSES = "tapestry.sax-parser.preload-component-classes";
+
+    /**
+     * The file in which the {@link TemplateUsageRecorder} keeps the number of times each template has been used,
+     * across restarts. The default, blank, means usage is not saved (and so there is nothing to warm up).
+     */
+    public static final String TEMPLATE_USAGE_FILE = "tapestry.sax-parser.template-usage-file";
+
+    /**
+     * Time, in milliseconds, between saves of the template usage file. It is also saved at shutdown. Defaults to
+     * 300000 (five minutes).
+     */
+    public static final String TEMPLATE_USAGE_SAVE_INTERVAL_MILLIS =
+            "tapestry.sax-parser.template-usage-save-interval-millis";
+
+    /**
+     * Time, in milliseconds, that registry startup may spend parsing the templates recorded in the template usage
+     * file, most used first. Defaults to 10000; 0 disables the warmup.
+     */
+    public static final String WARMUP_TIME_BUDGET_MILLIS = "tapestry.sax-parser.warmup-time-budget-millis";
+}
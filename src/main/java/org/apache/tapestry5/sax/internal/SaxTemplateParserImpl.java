@@ -1,10 +1,24 @@
 package org.apache.tapestry5.sax.internal;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,11 +29,9 @@ import org.apache.tapestry5.internal.parser.BodyToken;
 import org.apache.tapestry5.internal.parser.CDATAToken;
 import org.apache.tapestry5.internal.parser.CommentToken;
 import org.apache.tapestry5.internal.parser.ComponentTemplate;
-import org.apache.tapestry5.internal.parser.ComponentTemplateImpl;
 import org.apache.tapestry5.internal.parser.DTDToken;
 import org.apache.tapestry5.internal.parser.DefineNamespacePrefixToken;
 import org.apache.tapestry5.internal.parser.EndElementToken;
-import org.apache.tapestry5.internal.parser.ExpansionToken;
 import org.apache.tapestry5.internal.parser.ExtensionPointToken;
 import org.apache.tapestry5.internal.parser.ParameterToken;
 import org.apache.tapestry5.internal.parser.StartComponentToken;
@@ -27,7 +39,7 @@ import org.apache.tapestry5.internal.parser.StartElementToken;
 import org.apache.tapestry5.internal.parser.TemplateToken;
 import org.apache.tapestry5.internal.parser.TextToken;
 import org.apache.tapestry5.internal.parser.TokenType;
-import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Invokable;
 import org.apache.tapestry5.ioc.Location;
 import org.apache.tapestry5.ioc.Resource;
 import org.apache.tapestry5.ioc.annotations.Symbol;
@@ -36,17 +48,16 @@ import org.apache.tapestry5.ioc.internal.util.InternalUtils;
 import org.apache.tapestry5.ioc.internal.util.LocationImpl;
 import org.apache.tapestry5.ioc.internal.util.TapestryException;
 import org.apache.tapestry5.ioc.util.Stack;
+import org.apache.tapestry5.services.InvalidationListener;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 import org.xml.sax.ext.LexicalHandler;
-import org.xml.sax.helpers.XMLReaderFactory;
 
-public class SaxTemplateParserImpl implements TemplateParser
+public class SaxTemplateParserImpl implements BatchTemplateParser, InvalidationListener
 {
     private static final String MIXINS_ATTRIBUTE_NAME = "mixins";
 
@@ -111,33 +122,383 @@ public class SaxTemplateParserImpl implements TemplateParser
 
     private static final Pattern EXPANSION_PATTERN = Pattern.compile("\\$\\{\\s*(.*?)\\s*}");
 
-    private final Map<String, URL> configuration;
+    static final String XHTML_NAMESPACE_URI = "http://www.w3.org/1999/xhtml";
+
+    /**
+     * HTML elements that are rendered as blocks; whitespace next to their tags never affects the page's layout.
+     */
+    static final Set<String> BLOCK_ELEMENTS = CollectionFactory.newSet(
+            "address", "article", "aside", "blockquote", "body", "dd", "div", "dl", "dt", "fieldset", "figcaption",
+            "figure", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "head", "header", "hr", "html", "li",
+            "link", "main", "meta", "nav", "ol", "p", "section", "table", "tbody", "td", "tfoot", "th", "thead",
+            "title", "tr", "ul");
 
     private final boolean defaultCompressWhitespace;
 
+    private final boolean minify;
+
+    private final boolean plainMarkupFastPath;
+
+    private final int textChunkSize;
+
+    private final WhitespacePreservation whitespacePreservation;
+
+    private final TemplateLimits limits;
+
+    /**
+     * Shared by all parses; caches the content of the DTDs and entity files so that each is only read once.
+     */
+    private final TemplateEntityResolver entityResolver;
+
+    private final StringInterner interner = new StringInterner();
+
+    /**
+     * Identical content is parsed once, whichever resource it is read from.
+     */
+    private final TemplateContentIndex contentIndex = new TemplateContentIndex();
+
+    private final TemplateParseScheduler scheduler;
+
+    private final TemplateExtensionGraph extensionGraph;
+
+    private final TemplateReaderFactory readerFactory;
+
+    /**
+     * Idle parse contexts, each with its reader and content handler; a parse takes one (or creates one, if none are
+     * idle) and returns it when done. There are never more contexts than there have been parses running at once.
+     */
+    private final Queue<ParseContext> contextPool = new ConcurrentLinkedQueue<ParseContext>();
+
     public SaxTemplateParserImpl(Map<String, URL> configuration,
-            @Symbol(SymbolConstants.COMPRESS_WHITESPACE) boolean defaultCompressWhitespace)
+            @Symbol(SymbolConstants.COMPRESS_WHITESPACE) boolean defaultCompressWhitespace,
+            @Symbol(SaxParserSymbols.MINIFY_TEMPLATES) boolean minify,
+            @Symbol(SaxParserSymbols.PLAIN_MARKUP_FAST_PATH) boolean plainMarkupFastPath,
+            @Symbol(SaxParserSymbols.TEXT_CHUNK_SIZE) int textChunkSize,
+            WhitespacePreservation whitespacePreservation, TemplateLimits limits, TemplateReaderFactory readerFactory,
+            TemplateParseScheduler scheduler, TemplateExtensionGraph extensionGraph)
     {
-        this.configuration = configuration;
         this.defaultCompressWhitespace = defaultCompressWhitespace;
+        this.minify = minify;
+        this.plainMarkupFastPath = plainMarkupFastPath;
+        this.textChunkSize = textChunkSize;
+        this.whitespacePreservation = whitespacePreservation;
+        this.limits = limits;
+        this.readerFactory = readerFactory;
+        this.scheduler = scheduler;
+        this.extensionGraph = extensionGraph;
+
+        entityResolver = new TemplateEntityResolver(configuration);
+    }
+
+    public ComponentTemplate parseTemplate(final Resource templateResource)
+    {
+        return scheduler.execute(new Invokable<ComponentTemplate>()
+        {
+            public ComponentTemplate invoke()
+            {
+                return readAndParse(templateResource);
+            }
+        });
+    }
+
+    public BatchParseResult parseTemplates(Collection<Resource> templateResources)
+    {
+        final List<Resource> resources = CollectionFactory.newList(new LinkedHashSet<Resource>(templateResources));
+
+        Map<Resource, ComponentTemplate> templates = new LinkedHashMap<Resource, ComponentTemplate>();
+        Map<Resource, TapestryException> failures = new LinkedHashMap<Resource, TapestryException>();
+
+        if (resources.isEmpty())
+            return new BatchParseResult(templates, failures);
+
+        Map<Resource, Future<ComponentTemplate>> futures = new LinkedHashMap<Resource, Future<ComponentTemplate>>();
+
+        for (final Resource resource : resources)
+        {
+            futures.put(resource, scheduler.submit(new Invokable<ComponentTemplate>()
+            {
+                public ComponentTemplate invoke()
+                {
+                    return readAndParse(resource);
+                }
+            }));
+        }
+
+        for (Map.Entry<Resource, Future<ComponentTemplate>> entry : futures.entrySet())
+        {
+            try
+            {
+                templates.put(entry.getKey(), entry.getValue().get());
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+
+                throw new RuntimeException(ex);
+            }
+            catch (ExecutionException ex)
+            {
+                if (!(ex.getCause() instanceof TapestryException))
+                    throw new RuntimeException(ex.getCause());
+
+                failures.put(entry.getKey(), (TapestryException) ex.getCause());
+            }
+        }
+
+        return new BatchParseResult(templates, failures);
+    }
+
+    public Future<ComponentTemplate> parseTemplateAsync(final ChunkedResource templateResource)
+    {
+        final TemplateFuture future = new TemplateFuture();
+
+        templateResource.readChunks(new ChunkReceiver()
+        {
+            private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+            // Hashed as the chunks arrive, so that no further pass over the content is needed.
+
+            private long contentHash = ContentHash.INITIAL;
+
+            public void chunk(byte[] bytes, int offset, int length)
+            {
+                content.write(bytes, offset, length);
+
+                contentHash = ContentHash.update(contentHash, bytes, offset, length);
+            }
+
+            public void complete()
+            {
+                final byte[] bytes = content.toByteArray();
+
+                // The parse itself runs in one of the scheduler's threads, not the thread delivering the content.
+                // Anything thrown completes the future, so that no caller waits forever.
+
+                try
+                {
+                    scheduler.submit(new Invokable<Object>()
+                    {
+                        public Object invoke()
+                        {
+                            try
+                            {
+                                future.set(parseContent(templateResource, bytes, contentHash));
+                            }
+                            catch (Throwable ex)
+                            {
+                                future.setException(ex);
+                            }
+
+                            return null;
+                        }
+                    });
+                }
+                catch (RuntimeException ex)
+                {
+                    future.setException(ex);
+                }
+            }
+
+            public void failed(Throwable cause)
+            {
+                future.setException(new TapestryException(SaxParserMessages.newParserError(templateResource, cause),
+                                                          new LocationImpl(templateResource), cause));
+            }
+        });
+
+        return future;
     }
 
-    public ComponentTemplate parseTemplate(Resource templateResource)
+    /**
+     * Forgets the content of previously parsed templates, including templates that have since been deleted or
+     * renamed, and the strings interned from them.
+     */
+    public void objectWasInvalidated()
     {
-        XMLReader xmlReader;
-        TemplateContentHandler handler = new TemplateContentHandler(templateResource, defaultCompressWhitespace);
+        contentIndex.clear();
+        interner.clear();
+    }
+
+    private ComponentTemplate readAndParse(Resource templateResource)
+    {
+        byte[] content;
+
+        try
+        {
+            content = TemplateContent.read(templateResource);
+        }
+        catch (IOException ex)
+        {
+            throw new TapestryException(SaxParserMessages.newParserError(templateResource, ex),
+                                        new LocationImpl(templateResource), ex);
+        }
+
+        return parseContent(templateResource, content, ContentHash.update(ContentHash.INITIAL, content, 0,
+                                                                          content.length));
+    }
+
+    private ComponentTemplate parseContent(Resource templateResource, byte[] content, long contentHash)
+    {
+        ParseContext context = contextPool.poll();
+
+        if (context == null)
+            context = new ParseContext();
+
         try
         {
-            xmlReader = XMLReaderFactory.createXMLReader();
-            xmlReader.setContentHandler(handler);
-            xmlReader.setProperty("http://xml.org/sax/properties/lexical-handler", handler);
-            xmlReader.setEntityResolver(new TemplateEntityResolver(configuration));
-            xmlReader.parse(new InputSource(templateResource.openStream()));
-            return new ComponentTemplateImpl(templateResource, handler.getTokens(), handler.getComponentIds(), handler.hasExtension(), handler.getOverrides());
+            return parseContent(templateResource, content, contentHash, context);
+        }
+        finally
+        {
+            contextPool.offer(context);
+        }
+    }
+
+    private ComponentTemplate parseContent(Resource templateResource, byte[] content, long contentHash,
+                                           ParseContext context)
+    {
+        boolean plain = plainMarkupFastPath && TemplateContent.isPlainMarkup(content);
+
+        TemplateContentHandler handler = context.getHandler(templateResource, plain);
+        try
+        {
+            byte[] digest = TemplateContentIndex.digest(content);
+
+            SaxComponentTemplate template = contentIndex.get(templateResource, digest);
+
+            if (template == null)
+            {
+                try
+                {
+                    context.getReader().parse(TemplateContent.newInputSource(content), handler, handler);
+                }
+                catch (TapestryMarkupFoundException ex)
+                {
+                    // The pre-scan was wrong (say, a namespace URI written with character references); start
+                    // over, checking for Tapestry markup throughout.
+
+                    handler = context.getHandler(templateResource, false);
+
+                    context.getReader().parse(TemplateContent.newInputSource(content), handler, handler);
+                }
+
+                template = new SaxComponentTemplate(templateResource, handler.getTokens(), handler.getComponentIds(),
+                                                    handler.hasExtension(), handler.getOverrides(), contentHash);
+
+                contentIndex.put(template, digest);
+            }
+
+            extensionGraph.templateParsed(templateResource, template.isExtension(),
+                                          TemplateTokens.extensionPointIds(template));
+
+            return template;
         }
         catch (Exception ex)
         {
-            throw new TapestryException(SaxParserMessages.newParserError(templateResource, ex), handler.getLocation(), ex);
+            throw new TapestryException(SaxParserMessages.newParserError(templateResource, ex), handler.getErrorLocation(),
+                                        ex);
+        }
+    }
+
+    /**
+     * Completed, once, when an asynchronous parse finishes or fails; it can't be cancelled.
+     */
+    private static final class TemplateFuture implements Future<ComponentTemplate>
+    {
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private ComponentTemplate template;
+
+        private Throwable failure;
+
+        void set(ComponentTemplate template)
+        {
+            complete(template, null);
+        }
+
+        void setException(Throwable cause)
+        {
+            complete(null, cause);
+        }
+
+        private synchronized void complete(ComponentTemplate template, Throwable failure)
+        {
+            if (isDone()) return;
+
+            this.template = template;
+            this.failure = failure;
+
+            done.countDown();
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return false;
+        }
+
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        public boolean isDone()
+        {
+            return done.getCount() == 0;
+        }
+
+        public ComponentTemplate get() throws InterruptedException, ExecutionException
+        {
+            done.await();
+
+            return getResult();
+        }
+
+        public ComponentTemplate get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException
+        {
+            if (!done.await(timeout, unit)) throw new TimeoutException();
+
+            return getResult();
+        }
+
+        private synchronized ComponentTemplate getResult() throws ExecutionException
+        {
+            if (failure != null) throw new ExecutionException(failure);
+
+            return template;
+        }
+    }
+
+    /**
+     * Parser state that is kept between parses: a template reader and a content handler (each created on first use). A
+     * context may be reused for any number of sequential parses, but never by two threads at once.
+     */
+    private final class ParseContext
+    {
+        private TemplateReader reader;
+
+        private TemplateContentHandler handler;
+
+        TemplateReader getReader() throws Exception
+        {
+            if (reader == null)
+                reader = readerFactory.newTemplateReader(entityResolver, limits.getMaxEntityExpansions());
+
+            return reader;
+        }
+
+        /**
+         * Returns the context's handler, reset for a new parse.
+         */
+        TemplateContentHandler getHandler(Resource templateResource, boolean plain)
+        {
+            if (handler == null)
+                handler = new TemplateContentHandler(defaultCompressWhitespace, minify, textChunkSize,
+                                                     whitespacePreservation, limits, interner);
+
+            handler.reset(templateResource, plain);
+
+            return handler;
         }
     }
 
@@ -145,6 +506,11 @@ public class SaxTemplateParserImpl implements TemplateParser
     {
         private final Map<String, URL> configuration;
 
+        /**
+         * Content of resolved entities, keyed on public id.
+         */
+        private final ConcurrentMap<String, byte[]> cache = new ConcurrentHashMap<String, byte[]>();
+
         public TemplateEntityResolver(Map<String, URL> configuration)
         {
             this.configuration = configuration;
@@ -155,10 +521,18 @@ public class SaxTemplateParserImpl implements TemplateParser
         {
             URL url = configuration.get(publicId);
 
+            if (url == null) return null;
+
+            byte[] content = cache.get(publicId);
+
             try
             {
-                if (url != null)
-                    return new InputSource(url.openStream());
+                if (content == null)
+                {
+                    content = TemplateContent.read(url.openStream());
+
+                    cache.putIfAbsent(publicId, content);
+                }
             }
             catch (IOException ex)
             {
@@ -168,16 +542,68 @@ public class SaxTemplateParserImpl implements TemplateParser
                                       InternalUtils.toMessage(ex)), ex);
             }
 
-            return null;
+            InputSource source = new InputSource(new ByteArrayInputStream(content));
+
+            // Keep the system id, so that relative references from within the DTD still resolve.
+
+            source.setPublicId(publicId);
+            source.setSystemId(url.toExternalForm());
+
+            return source;
         }
     }
 
+    /**
+     * Thrown when a template parsed as plain markup turns out to reference a Tapestry namespace.
+     */
+    private static final class TapestryMarkupFoundException extends SAXException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Parses one template at a time; {@link #reset(Resource, boolean)} prepares it for the next. The buffers it grows
+     * while parsing are kept for the next parse, unless they have grown very large.
+     */
     private static class TemplateContentHandler implements ContentHandler, LexicalHandler
     {
-        private final Resource resource;
+        /**
+         * Largest text buffer capacity (in characters) kept between parses.
+         */
+        private static final int MAX_RETAINED_TEXT_CAPACITY = 64 * 1024;
+
+        /**
+         * Largest token list kept between parses.
+         */
+        private static final int MAX_RETAINED_TOKENS = 16 * 1024;
+
+        private static final int MAX_RETAINED_COMPONENT_IDS = 1024;
+
+        private Resource resource;
+
+        private final boolean defaultCompressWhitespace;
 
         private boolean compressWhitespace;
 
+        /**
+         * If true, comments (other than conditional comments) are dropped, and compressed whitespace adjacent to
+         * block element tags is removed.
+         */
+        private final boolean minify;
+
+        /**
+         * If true, every element is an ordinary element; there are no components, parameters, blocks or other Tapestry
+         * elements and attributes to look for.
+         */
+        private boolean plain;
+
+        private final WhitespacePreservation whitespacePreservation;
+
+        /**
+         * True if the most recent tag (start or end) was that of a block element.
+         */
+        private boolean previousTagIsBlock;
+
         /**
          * A stack to remember the last values of compressWhitespace.
          */
@@ -186,7 +612,12 @@ public class SaxTemplateParserImpl implements TemplateParser
         /**
          * All template tokens.
          */
-        private List<TemplateToken> tokens = CollectionFactory.newList();
+        private List<TemplateToken> templateTokens = CollectionFactory.newList();
+
+        /**
+         * The list tokens are currently added to; the template's tokens, or those of an override.
+         */
+        private List<TemplateToken> tokens;
 
         /**
          * Temporarily saved list of tokens (when inside override - this is the outside list)
@@ -212,7 +643,7 @@ public class SaxTemplateParserImpl implements TemplateParser
         /**
          * Primarily used as a set of componentIds (to check for duplicates and conflicts).
          */
-        private final Map<String, Location> componentIds = CollectionFactory.newCaseInsensitiveMap();
+        private Map<String, Location> componentIds = CollectionFactory.newCaseInsensitiveMap();
 
         private Locator locator;
 
@@ -249,22 +680,122 @@ public class SaxTemplateParserImpl implements TemplateParser
 
         private Location cachedLocation;
 
-        private final StringBuilder textBuffer = new StringBuilder();
+        private final StringInterner interner;
+
+        private StringBuilder textBuffer = new StringBuilder();
+
+        private final int textChunkSize;
+
+        private boolean inCDATA;
+
+        private final TemplateLimits limits;
+
+        private int elementDepth;
+
+        private int tokenCount;
 
-        public TemplateContentHandler(Resource resource, boolean compressWhitespace)
+        /**
+         * Length of the current text node or CDATA section, including any chunks already converted to tokens.
+         */
+        private int textLength;
+
+        /**
+         * Number of entities (outside of the DTD) being expanded.
+         */
+        private int entityDepth;
+
+        /**
+         * The most recent location outside of any entity; once the parser starts to expand an entity, its locator
+         * reports lines of the entity's replacement text instead.
+         */
+        private Location documentLocation;
+
+        /**
+         * Text is only split where it can be split without changing its tokens; the positions of the text buffer up to
+         * this one are known not to be such places.
+         */
+        private int unsplittableTextLength;
+
+        /**
+         * @param textChunkSize if positive, the approximate size of the pieces that long text and CDATA are split into
+         */
+        public TemplateContentHandler(boolean defaultCompressWhitespace, boolean minify, int textChunkSize,
+                WhitespacePreservation whitespacePreservation, TemplateLimits limits, StringInterner interner)
+        {
+            this.defaultCompressWhitespace = defaultCompressWhitespace;
+            this.minify = minify;
+            this.textChunkSize = textChunkSize;
+            this.whitespacePreservation = whitespacePreservation;
+            this.limits = limits;
+            this.interner = interner;
+        }
+
+        /**
+         * Prepares the handler to parse a template, discarding anything left from the previous parse (which may have
+         * failed part way through).
+         *
+         * @param plain if true, the template is expected to contain no Tapestry markup
+         */
+        void reset(Resource resource, boolean plain)
         {
             this.resource = resource;
-            this.compressWhitespace = compressWhitespace;
+            this.plain = plain;
+
+            if (textBuffer.capacity() > MAX_RETAINED_TEXT_CAPACITY)
+                textBuffer = new StringBuilder();
+            else
+                textBuffer.setLength(0);
+
+            if (tokenCount > MAX_RETAINED_TOKENS)
+                templateTokens = CollectionFactory.newList();
+            else
+                templateTokens.clear();
+
+            if (componentIds.size() > MAX_RETAINED_COMPONENT_IDS)
+                componentIds = CollectionFactory.newCaseInsensitiveMap();
+            else
+                componentIds.clear();
+
+            tokens = templateTokens;
+            savedTokens = null;
+            overrides = null;
+            namespacePrefixToken.clear();
+            compressWhitespaceStack.clear();
+            insideComponentStack.clear();
+
+            compressWhitespace = defaultCompressWhitespace;
+            previousTagIsBlock = false;
+            extension = false;
+            locator = null;
+            inRemove = false;
+            inBody = false;
+            inReplace = false;
+            inCDATA = false;
+            contentState = ContentState.OUTSIDE_CONTENT;
+            textStartLocation = null;
+            cachedLocation = null;
+            documentLocation = null;
+            elementDepth = 0;
+            tokenCount = 0;
+            textLength = 0;
+            entityDepth = 0;
+            unsplittableTextLength = 0;
         }
 
+        /**
+         * Returns a copy of the component ids, independent of the handler.
+         */
         public Map<String, Location> getComponentIds()
         {
-            return componentIds;
+            return CollectionFactory.newCaseInsensitiveMap(componentIds);
         }
 
+        /**
+         * Returns a copy of the tokens, independent of the handler.
+         */
         public List<TemplateToken> getTokens()
         {
-            return tokens;
+            return CollectionFactory.newList(tokens);
         }
 
         public Map<String, List<TemplateToken>> getOverrides()
@@ -277,6 +808,22 @@ public class SaxTemplateParserImpl implements TemplateParser
             return extension;
         }
 
+        private void addToken(TemplateToken token)
+        {
+            tokenCount++;
+
+            if (limits.getMaxTokens() > 0 && tokenCount > limits.getMaxTokens())
+                throw new IllegalStateException(SaxParserMessages.tokenCountExceeded(limits.getMaxTokens()));
+
+            tokens.add(token);
+        }
+
+        private void addTokens(List<? extends TemplateToken> tokens)
+        {
+            for (TemplateToken token : tokens)
+                addToken(token);
+        }
+
         public void characters(char[] ch, int start, int length) throws SAXException
         {
             if (inRemove || contentState == ContentState.AFTER_CONTENT) return;
@@ -288,6 +835,110 @@ public class SaxTemplateParserImpl implements TemplateParser
                 textStartLocation = getLocation();
 
             textBuffer.append(ch, start, length);
+
+            if (entityDepth == 0) documentLocation = getLocation();
+
+            textLength += length;
+
+            if (limits.getMaxTextLength() > 0 && textLength > limits.getMaxTextLength())
+                throw new IllegalStateException(SaxParserMessages.textLengthExceeded(limits.getMaxTextLength()));
+
+            if (textChunkSize > 0 && textBuffer.length() > textChunkSize)
+                convertTextBufferChunks();
+        }
+
+        /**
+         * Converts as much of very long text or CDATA content as possible to tokens, chunk by chunk, so that the text
+         * buffer stays small.
+         */
+        private void convertTextBufferChunks()
+        {
+            while (textBuffer.length() > textChunkSize)
+            {
+                int end = inCDATA ? findCDATASplit() : findTextSplit();
+
+                if (end < 0) return;
+
+                String chunk = textBuffer.substring(0, end);
+
+                textBuffer.delete(0, end);
+
+                unsplittableTextLength = 0;
+
+                if (inCDATA)
+                {
+                    // Adjacent CDATA sections render the same as a single section.
+
+                    addToken(new CDATAToken(chunk, textStartLocation));
+                    continue;
+                }
+
+                convertTextToTokens(chunk, false);
+
+                previousTagIsBlock = false;
+            }
+        }
+
+        private int findCDATASplit()
+        {
+            int end = textChunkSize;
+
+            // Never between the two halves of a surrogate pair.
+
+            return Character.isHighSurrogate(textBuffer.charAt(end - 1)) ? end - 1 : end;
+        }
+
+        /**
+         * Finds where the text may be split (as close to the chunk size as possible), or returns -1 if there is no such
+         * place.
+         */
+        private int findTextSplit()
+        {
+            int length = textBuffer.length();
+
+            for (int i = Math.min(textChunkSize, length - 1); i > unsplittableTextLength; i--)
+            {
+                if (isTextSplit(i)) return i;
+            }
+
+            for (int i = Math.max(textChunkSize + 1, unsplittableTextLength + 1); i < length; i++)
+            {
+                if (isTextSplit(i)) return i;
+            }
+
+            unsplittableTextLength = length - 1;
+
+            return -1;
+        }
+
+        /**
+         * Text may be split between two characters that are not whitespace (so that whitespace compression works the
+         * same on the pieces as on the whole), where no expansion could begin before and end after.
+         */
+        private boolean isTextSplit(int index)
+        {
+            char before = textBuffer.charAt(index - 1);
+            char after = textBuffer.charAt(index);
+
+            if (Character.isWhitespace(before) || Character.isWhitespace(after) || before == '$'
+                    || Character.isHighSurrogate(before))
+                return false;
+
+            int expansionStart = textBuffer.lastIndexOf("${", index - 2);
+
+            if (expansionStart < 0) return true;
+
+            // An expansion ends at the first '}', and can't span lines.
+
+            for (int i = expansionStart + 2; i < index; i++)
+            {
+                char ch = textBuffer.charAt(i);
+
+                if (ch == '}' || ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029')
+                    return true;
+            }
+
+            return false;
         }
 
         public void endDocument() throws SAXException
@@ -328,6 +979,13 @@ public class SaxTemplateParserImpl implements TemplateParser
         public void startElement(String uri, String localName, String qName, Attributes atts)
                 throws SAXException
         {
+            elementDepth++;
+
+            if (entityDepth == 0) documentLocation = getLocation();
+
+            if (limits.getMaxElementDepth() > 0 && elementDepth > limits.getMaxElementDepth())
+                throw new IllegalStateException(SaxParserMessages.elementDepthExceeded(limits.getMaxElementDepth()));
+
             if (inRemove || contentState == ContentState.AFTER_CONTENT) return;
 
             if(inBody)
@@ -336,9 +994,19 @@ public class SaxTemplateParserImpl implements TemplateParser
             if(extension && !inReplace && !"replace".equalsIgnoreCase(localName))
                 throw new RuntimeException("Child element of <extend> must be <replace>.");
 
-            processTextBuffer();
+            boolean blockTag = isBlockElement(uri, localName);
+
+            processTextBuffer(blockTag);
 
-            checkForXMLSpaceAttribute(atts);
+            previousTagIsBlock = blockTag;
+
+            checkForXMLSpaceAttribute(uri, localName, atts);
+
+            if (plain)
+            {
+                plainElement(atts, localName, uri);
+                return;
+            }
 
             if(TAPESTRY_SCHEMA_URIS.contains(uri))
             {
@@ -346,6 +1014,11 @@ public class SaxTemplateParserImpl implements TemplateParser
                 {
                     if ("remove".equalsIgnoreCase(localName))
                     {
+                        // Nothing is popped at the end of a removed element (inRemove is still set), so
+                        // nothing is pushed for it either.
+
+                        compressWhitespace = compressWhitespaceStack.pop();
+
                         inRemove = true;
                         return;
                     }
@@ -368,7 +1041,7 @@ public class SaxTemplateParserImpl implements TemplateParser
                         if(savedTokens != null)
                             throw new IllegalStateException("The <extension-point> element may not be nested within another <extension-point> element.");
 
-                        tokens.add(new ExtensionPointToken(id, getLocation()));
+                        addToken(new ExtensionPointToken(id, getLocation()));
 
                         savedTokens = tokens;
                         tokens = CollectionFactory.newList();
@@ -391,6 +1064,10 @@ public class SaxTemplateParserImpl implements TemplateParser
 
                         String id = getRequiredIdAttribute(localName, atts);
 
+                        // The override's tokens must not share the handler's own list, which is reused.
+
+                        tokens = CollectionFactory.newList();
+
                         saveTokensToOverrides(id);
 
                         inReplace = true;
@@ -401,7 +1078,7 @@ public class SaxTemplateParserImpl implements TemplateParser
 
                 if("body".equalsIgnoreCase(localName))
                 {
-                    tokens.add(new BodyToken(getLocation()));
+                    addToken(new BodyToken(getLocation()));
                     inBody = true;
                     return;
                 }
@@ -411,7 +1088,7 @@ public class SaxTemplateParserImpl implements TemplateParser
 
                     validateId(blockId, "invalid-block-id");
 
-                    tokens.add(new BlockToken(blockId ,getLocation()));
+                    addToken(new BlockToken(blockId ,getLocation()));
 
                     insideComponentStack.push(false);
 
@@ -426,7 +1103,7 @@ public class SaxTemplateParserImpl implements TemplateParser
 
                     ensureParameterWithinComponent();
 
-                    tokens.add(new ParameterToken(name, getLocation()));
+                    addToken(new ParameterToken(name, getLocation()));
 
                     insideComponentStack.push(false);
 
@@ -452,7 +1129,7 @@ public class SaxTemplateParserImpl implements TemplateParser
                     throw new TapestryException(SaxParserMessages.parameterElementDoesNotAllowAttributes(), getLocation(),
                                                 null);
 
-                tokens.add(new ParameterToken(localName, getLocation()));
+                addToken(new ParameterToken(localName, getLocation()));
 
                 insideComponentStack.push(false);
 
@@ -546,7 +1223,8 @@ public class SaxTemplateParserImpl implements TemplateParser
                     // not part of the template's doctype for the element being instrumented.
                 }
 
-                attributeTokens.add(new AttributeToken(uri, localName, value, location));
+                attributeTokens.add(new ScannedAttributeToken(interner.intern(uri), interner.intern(localName), value,
+                                                              location));
             }
 
             boolean isComponent = (id != null || type != null);
@@ -558,17 +1236,18 @@ public class SaxTemplateParserImpl implements TemplateParser
 
             if (isComponent)
             {
-                tokens.add(new StartComponentToken(elementName, id, type, mixins, location));
+                addToken(new StartComponentToken(interner.intern(elementName), id, type, mixins, location));
             }
             else
             {
-                tokens.add(new StartElementToken(elementNamespaceUri, elementName, location));
+                addToken(new StartElementToken(interner.intern(elementNamespaceUri), interner.intern(elementName),
+                                                 location));
             }
 
-            tokens.addAll(namespacePrefixToken);
+            addTokens(namespacePrefixToken);
             namespacePrefixToken.clear();
 
-            tokens.addAll(attributeTokens);
+            addTokens(attributeTokens);
 
             if (id != null)
                 componentIds.put(id, location);
@@ -576,8 +1255,48 @@ public class SaxTemplateParserImpl implements TemplateParser
             insideComponentStack.push(isComponent);
         }
 
-        private void checkForXMLSpaceAttribute(Attributes atts)
+        /**
+         * The equivalent of {@link #possibleTapestryComponent(Attributes, String, String, String)} for templates that
+         * contain no Tapestry markup.
+         */
+        private void plainElement(Attributes atts, String elementName, String elementNamespaceUri)
         {
+            Location location = getLocation();
+
+            addToken(new StartElementToken(interner.intern(elementNamespaceUri), interner.intern(elementName),
+                                             location));
+
+            addTokens(namespacePrefixToken);
+            namespacePrefixToken.clear();
+
+            int count = atts.getLength();
+
+            for (int i = 0; i < count; i++)
+            {
+                String localName = atts.getLocalName(i);
+
+                if (InternalUtils.isBlank(localName)) continue;
+
+                String uri = atts.getURI(i);
+
+                if (isXMLSpaceAttribute(uri, localName)) continue;
+
+                addToken(new ScannedAttributeToken(interner.intern(uri), interner.intern(localName), atts.getValue(i),
+                                                     location));
+            }
+
+            insideComponentStack.push(false);
+        }
+
+        private void checkForXMLSpaceAttribute(String uri, String localName, Attributes atts)
+        {
+            // Remember the enclosing element's setting, restored when this element ends.
+
+            compressWhitespaceStack.push(compressWhitespace);
+
+            if (whitespacePreservation.isPreserved(uri, localName))
+                compressWhitespace = false;
+
             for (int i = 0; i < atts.getLength(); i++)
             {
                 if (isXMLSpaceAttribute(atts.getURI(i), atts.getLocalName(i)))
@@ -586,20 +1305,27 @@ public class SaxTemplateParserImpl implements TemplateParser
                     break;
                 }
             }
-            compressWhitespaceStack.push(compressWhitespace);
         }
 
         public void endElement(String uri, String localName, String qName) throws SAXException
         {
+            elementDepth--;
+
+            if (entityDepth == 0) documentLocation = getLocation();
+
             if(contentState == ContentState.AFTER_CONTENT)
                 return;
 
-            processTextBuffer();
+            boolean blockTag = isBlockElement(uri, localName);
+
+            processTextBuffer(blockTag);
+
+            previousTagIsBlock = blockTag;
 
             if(!inRemove)
                 compressWhitespace = compressWhitespaceStack.pop();
 
-            if (TAPESTRY_SCHEMA_URIS.contains(uri))
+            if (!plain && TAPESTRY_SCHEMA_URIS.contains(uri))
             {
                 if (TAPESTRY_SCHEMA_5_1_0.equals(uri))
                 {
@@ -641,7 +1367,7 @@ public class SaxTemplateParserImpl implements TemplateParser
 
             if(inRemove) return;
 
-            tokens.add(new EndElementToken(getLocation()));
+            addToken(new EndElementToken(getLocation()));
 
             insideComponentStack.pop();
         }
@@ -656,13 +1382,16 @@ public class SaxTemplateParserImpl implements TemplateParser
         {
             if (InternalUtils.isBlank(uri)) return;
 
-            if (TAPESTRY_SCHEMA_URIS.contains(uri)) return;
-
-            if (uri.equals(TAPESTRY_PARAMETERS_URI)) return;
+            if (TAPESTRY_SCHEMA_URIS.contains(uri) || uri.equals(TAPESTRY_PARAMETERS_URI)
+                    || uri.startsWith(LIB_NAMESPACE_URI_PREFIX))
+            {
+                if (plain) throw new TapestryMarkupFoundException();
 
-            if (uri.startsWith(LIB_NAMESPACE_URI_PREFIX)) return;
+                return;
+            }
 
-            namespacePrefixToken.add(new DefineNamespacePrefixToken(uri, prefix, getLocation()));
+            namespacePrefixToken.add(new DefineNamespacePrefixToken(interner.intern(uri), interner.intern(prefix),
+                                                                    getLocation()));
         }
 
         private String nullForBlank(String input)
@@ -712,12 +1441,32 @@ public class SaxTemplateParserImpl implements TemplateParser
             throw new TapestryException(SaxParserMessages.invalidId(messageKey, id), getLocation(), null);
         }
 
+        private boolean isBlockElement(String uri, String localName)
+        {
+            return minify && isHTMLElement(uri, localName, BLOCK_ELEMENTS);
+        }
+
+        private boolean isHTMLElement(String uri, String localName, Set<String> names)
+        {
+            return (InternalUtils.isBlank(uri) || XHTML_NAMESPACE_URI.equals(uri)) &&
+                    names.contains(localName.toLowerCase());
+        }
+
         private boolean isXMLSpaceAttribute(String uri, String localName)
         {
             return XML_NAMESPACE_URI.equals(uri) &&
                     "space".equals(localName);
         }
 
+        /**
+         * Returns the location to report for a failed parse: within the expansion of an entity, the last location seen
+         * before the expansion started, near the reference to the entity.
+         */
+        Location getErrorLocation()
+        {
+            return entityDepth > 0 && documentLocation != null ? documentLocation : getLocation();
+        }
+
         Location getLocation()
         {
             int lineNumber = locator == null ? -1 : locator.getLineNumber();
@@ -735,29 +1484,70 @@ public class SaxTemplateParserImpl implements TemplateParser
          * Processes the accumulated text in the text buffer as a text token.
          */
         private void processTextBuffer()
+        {
+            processTextBuffer(false);
+        }
+
+        /**
+         * @param beforeBlockTag true if the text is followed by the tag of a block element
+         */
+        private void processTextBuffer(boolean beforeBlockTag)
         {
             if (textBuffer.length() != 0)
-                convertTextBufferToTokens();
+                convertTextBufferToTokens(beforeBlockTag);
 
              textStartLocation = null;
+             unsplittableTextLength = 0;
+             textLength = 0;
         }
 
-        private void convertTextBufferToTokens()
+        private void convertTextBufferToTokens(boolean beforeBlockTag)
         {
             String text = textBuffer.toString();
 
             textBuffer.setLength(0);
 
+            convertTextToTokens(text, beforeBlockTag);
+        }
+
+        private void convertTextToTokens(String text, boolean beforeBlockTag)
+        {
             if (compressWhitespace)
             {
                 text = compressWhitespaceInText(text);
 
+                if (minify)
+                    text = trimAtBlockTags(text, beforeBlockTag);
+
                 if (InternalUtils.isBlank(text)) return;
             }
 
             addTokensForText(text);
         }
 
+        /**
+         * Removes (already compressed) whitespace between the text and adjacent block element tags.
+         */
+        private String trimAtBlockTags(String text, boolean beforeBlockTag)
+        {
+            int start = 0;
+            int end = text.length();
+
+            if (previousTagIsBlock)
+            {
+                while (start < end && Character.isWhitespace(text.charAt(start)))
+                    start++;
+            }
+
+            if (beforeBlockTag)
+            {
+                while (end > start && Character.isWhitespace(text.charAt(end - 1)))
+                    end--;
+            }
+
+            return text.substring(start, end);
+        }
+
         /**
          * Reduces vertical whitespace to a single newline, then reduces horizontal whitespace to a single space.
          *
@@ -776,10 +1566,18 @@ public class SaxTemplateParserImpl implements TemplateParser
          * it finds.
          *
          * @param text to add as {@link org.apache.tapestry5.internal.parser.TextToken}s and {@link
-         *             org.apache.tapestry5.internal.parser.ExpansionToken}s
+         *             SplitExpansionToken}s
          */
         private void addTokensForText(String text)
         {
+            // Most text contains no expansions at all.
+
+            if (text.indexOf("${") < 0)
+            {
+                addToken(new TextToken(text, textStartLocation));
+                return;
+            }
+
             Matcher matcher = EXPANSION_PATTERN.matcher(text);
 
             int startx = 0;
@@ -798,7 +1596,7 @@ public class SaxTemplateParserImpl implements TemplateParser
                 {
                     String prefix = text.substring(startx, matchStart);
 
-                    tokens.add(new TextToken(prefix, textStartLocation));
+                    addToken(new TextToken(prefix, textStartLocation));
                 }
 
                 // Group 1 includes the real text of the expansion, with whitespace around the
@@ -806,7 +1604,7 @@ public class SaxTemplateParserImpl implements TemplateParser
 
                 String expression = matcher.group(1);
 
-                tokens.add(new ExpansionToken(expression, textStartLocation));
+                addToken(new SplitExpansionToken(expression, textStartLocation, interner));
 
                 startx = matcher.end();
             }
@@ -814,16 +1612,33 @@ public class SaxTemplateParserImpl implements TemplateParser
             // Catch anything after the final regexp match.
 
             if (startx < text.length())
-                tokens.add(new TextToken(text.substring(startx, text.length()), textStartLocation));
+                addToken(new TextToken(text.substring(startx, text.length()), textStartLocation));
         }
 
         public void comment(char[] ch, int start, int length) throws SAXException
         {
             if (inRemove || contentState == ContentState.AFTER_CONTENT) return;
 
+            String comment = new String(ch, start, length).trim();
+
+            // A dropped comment doesn't interrupt the text around it.
+
+            if (minify && compressWhitespace && !isConditionalComment(comment)) return;
+
             processTextBuffer();
 
-            tokens.add(new CommentToken(new String(ch, start, length).trim(), getLocation()));
+            previousTagIsBlock = false;
+
+            addToken(new CommentToken(comment, getLocation()));
+        }
+
+        /**
+         * Conditional comments (<code>&lt;!--[if IE]&gt;...&lt;![endif]--&gt;</code>) are interpreted by some browsers,
+         * so must be kept.
+         */
+        private boolean isConditionalComment(String comment)
+        {
+            return comment.startsWith("[if") || comment.startsWith("<![endif]");
         }
 
         public void startCDATA() throws SAXException
@@ -832,21 +1647,29 @@ public class SaxTemplateParserImpl implements TemplateParser
 
             processTextBuffer();
 
+            previousTagIsBlock = false;
+
             textStartLocation = getLocation();
+
+            inCDATA = true;
         }
 
         public void endCDATA() throws SAXException
         {
             if (inRemove || contentState == ContentState.AFTER_CONTENT) return;
 
-            tokens.add(new CDATAToken(textBuffer.toString(), textStartLocation));
+            addToken(new CDATAToken(textBuffer.toString(), textStartLocation));
             textBuffer.setLength(0);
             textStartLocation = null;
+            unsplittableTextLength = 0;
+            textLength = 0;
+
+            inCDATA = false;
         }
 
         public void startDTD(String name, String publicId, String systemId) throws SAXException
         {
-            tokens.add(new DTDToken(name, publicId, systemId, getLocation()));
+            addToken(new DTDToken(name, publicId, systemId, getLocation()));
             inRemove = true;
         }
 
@@ -857,12 +1680,16 @@ public class SaxTemplateParserImpl implements TemplateParser
 
         public void startEntity(String name) throws SAXException
         {
-            // ignore
+            if (inRemove) return;
+
+            entityDepth++;
         }
 
         public void endEntity(String name) throws SAXException
         {
-            // ignore
+            if (inRemove) return;
+
+            entityDepth--;
         }
     }
 
@@ -0,0 +1,66 @@
+package org.apache.tapestry5.sax.internal;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+/**
+ * Reads templates with the JVM's default SAX parser.
+ */
+public class SaxTemplateReader implements TemplateReader
+{
+    public static final TemplateReaderFactory FACTORY = new TemplateReaderFactory()
+    {
+        public TemplateReader newTemplateReader(EntityResolver entityResolver, int maxEntityExpansions)
+                throws SAXException
+        {
+            return new SaxTemplateReader(entityResolver, maxEntityExpansions);
+        }
+    };
+
+    /**
+     * Property of the JDK's parsers (and so of both the SAX and the StAX reader) limiting entity expansion.
+     */
+    static final String ENTITY_EXPANSION_LIMIT_PROPERTY =
+            "http://www.oracle.com/xml/jaxp/properties/entityExpansionLimit";
+
+    private final XMLReader xmlReader;
+
+    public SaxTemplateReader(EntityResolver entityResolver, int maxEntityExpansions) throws SAXException
+    {
+        xmlReader = XMLReaderFactory.createXMLReader();
+        xmlReader.setEntityResolver(entityResolver);
+
+        if (maxEntityExpansions > 0)
+        {
+            try
+            {
+                xmlReader.setProperty(ENTITY_EXPANSION_LIMIT_PROPERTY, String.valueOf(maxEntityExpansions));
+            }
+            catch (SAXException ex)
+            {
+                // Not the JDK's parser; it keeps its own limit, if any.
+            }
+        }
+    }
+
+    /**
+     * Returns the underlying reader, configured with the entity resolver and the entity expansion limit.
+     */
+    XMLReader getXMLReader()
+    {
+        return xmlReader;
+    }
+
+    public void parse(InputSource input, ContentHandler contentHandler, LexicalHandler lexicalHandler)
+            throws Exception
+    {
+        xmlReader.setContentHandler(contentHandler);
+        xmlReader.setProperty("http://xml.org/sax/properties/lexical-handler", lexicalHandler);
+        xmlReader.parse(input);
+    }
+}
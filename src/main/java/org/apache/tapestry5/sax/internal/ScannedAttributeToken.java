@@ -0,0 +1,115 @@
+package org.apache.tapestry5.sax.internal;
+
+import org.apache.tapestry5.internal.parser.AttributeToken;
+import org.apache.tapestry5.ioc.Location;
+
+/**
+ * An attribute token whose value has already been scanned for expansions (<code>${...}</code>), so that the (great
+ * majority of) attributes that are simple literals need not be scanned again when the page is assembled.
+ */
+public class ScannedAttributeToken extends AttributeToken
+{
+    private static final int[] NO_EXPANSIONS = new int[0];
+
+    /**
+     * Start (inclusive, the '$') and end (exclusive, after the '}') offsets of each expansion, in pairs.
+     */
+    private final int[] expansionBounds;
+
+    public ScannedAttributeToken(String namespaceURI, String name, String value, Location location)
+    {
+        this(namespaceURI, name, value, location, scan(value));
+    }
+
+    ScannedAttributeToken(String namespaceURI, String name, String value, Location location, int[] expansionBounds)
+    {
+        super(namespaceURI, name, value, location);
+
+        this.expansionBounds = expansionBounds;
+    }
+
+    /**
+     * Finds the expansions in an attribute value.
+     *
+     * @return start and end offset of each expansion, in pairs
+     */
+    static int[] scan(String value)
+    {
+        int start = value.indexOf("${");
+
+        if (start < 0) return NO_EXPANSIONS;
+
+        int[] result = new int[4];
+        int count = 0;
+
+        while (start >= 0)
+        {
+            int end = value.indexOf('}', start + 2);
+
+            // An unclosed expansion is left for the page loader to report.
+
+            if (end < 0) break;
+
+            if (count == result.length)
+            {
+                int[] expanded = new int[count * 2];
+                System.arraycopy(result, 0, expanded, 0, count);
+                result = expanded;
+            }
+
+            result[count++] = start;
+            result[count++] = end + 1;
+
+            start = value.indexOf("${", end + 1);
+        }
+
+        if (count == 0) return NO_EXPANSIONS;
+
+        int[] trimmed = new int[count];
+        System.arraycopy(result, 0, trimmed, 0, count);
+
+        return trimmed;
+    }
+
+    /**
+     * Returns true if the value contains at least one expansion; if false, the value is a simple literal.
+     */
+    public boolean hasExpansions()
+    {
+        return expansionBounds.length > 0;
+    }
+
+    public int getExpansionCount()
+    {
+        return expansionBounds.length / 2;
+    }
+
+    /**
+     * Returns the offset, within the value, of the '$' that starts an expansion.
+     */
+    public int getExpansionStart(int index)
+    {
+        return expansionBounds[2 * index];
+    }
+
+    /**
+     * Returns the offset, within the value, just after the '}' that ends an expansion.
+     */
+    public int getExpansionEnd(int index)
+    {
+        return expansionBounds[2 * index + 1];
+    }
+
+    /**
+     * Returns the expression of an expansion: the text between the braces, without surrounding whitespace.
+     */
+    public String getExpansion(int index)
+    {
+        return getValue().substring(getExpansionStart(index) + 2, getExpansionEnd(index) - 1).trim();
+    }
+
+    int[] getExpansionBounds()
+    {
+        return expansionBounds;
+    }
+}
@@ -0,0 +1,34 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Map;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * Checks a sample of the templates produced by this module against those produced by tapestry-core's own template
+ * parser, which this module replaces. The fraction of parses checked is set by symbol {@link
+ * SaxParserSymbols#SHADOW_VERIFICATION_SAMPLE_RATE}. The check parses the template a second time with the core parser,
+ * in a background thread, and compares the tokens, component ids and overrides; any difference is logged as a
+ * warning, and kept for inspection.
+ */
+public interface ShadowVerifier
+{
+    /**
+     * Called for each template parsed; if the template is chosen for the sample, schedules its check and returns
+     * immediately.
+     */
+    void templateParsed(Resource resource, ComponentTemplate template);
+
+    /**
+     * Returns the number of templates checked so far.
+     */
+    int getVerifiedCount();
+
+    /**
+     * Returns the templates that differed from the core parser's (the most recent, if there have been many), with a
+     * description of the first difference found, keyed on the template resource's description. Templates that the core
+     * parser could not parse are included, with the reason.
+     */
+    Map<String, String> getMismatches();
+}
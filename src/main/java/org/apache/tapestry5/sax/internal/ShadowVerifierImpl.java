@@ -0,0 +1,554 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tapestry5.internal.parser.CDATAToken;
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.parser.StartComponentToken;
+import org.apache.tapestry5.internal.parser.StartElementToken;
+import org.apache.tapestry5.internal.parser.TemplateToken;
+import org.apache.tapestry5.internal.parser.TextToken;
+import org.apache.tapestry5.internal.parser.TokenType;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Location;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.ioc.internal.util.InternalUtils;
+import org.apache.tapestry5.ioc.services.RegistryShutdownListener;
+import org.apache.tapestry5.ioc.util.Stack;
+import org.slf4j.Logger;
+
+public class ShadowVerifierImpl implements ShadowVerifier, RegistryShutdownListener
+{
+    /**
+     * Checks waiting beyond this many are dropped, so that a backlog never grows without limit.
+     */
+    private static final int MAX_PENDING_CHECKS = 100;
+
+    private static final int MAX_MISMATCHES = 100;
+
+    /**
+     * Types of the tokens produced from a start tag. For a start tag that spans several lines, the core parser
+     * reports the line on which the tag starts, and SAX the line on which it ends.
+     */
+    static final Set<TokenType> START_TAG_TYPES = EnumSet.of(TokenType.START_ELEMENT,
+                                                                     TokenType.START_COMPONENT, TokenType.ATTRIBUTE,
+                                                                     TokenType.DEFINE_NAMESPACE_PREFIX,
+                                                                     TokenType.BLOCK, TokenType.PARAMETER,
+                                                                     TokenType.BODY, TokenType.EXTENSION_POINT);
+
+    private final TemplateParser coreParser;
+
+    private final double sampleRate;
+
+    private final WhitespacePreservation whitespacePreservation;
+
+    /**
+     * If true, whitespace is compared loosely inside elements whose whitespace this module preserves, but the core
+     * parser compresses.
+     */
+    private final boolean normalizePreserved;
+
+    /**
+     * If true, whitespace is compared loosely next to the tags of block elements, where minification removes it.
+     */
+    private final boolean normalizeMinified;
+
+    private final boolean compareComments;
+
+    private final Executor executor;
+
+    private final Logger logger;
+
+    private final Random random = new Random();
+
+    private final AtomicInteger verifiedCount = new AtomicInteger();
+
+    private final Map<String, String> mismatches = new LinkedHashMap<String, String>()
+    {
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+        {
+            return size() > MAX_MISMATCHES;
+        }
+    };
+
+    /**
+     * @param coreParser             tapestry-core's parser, or null to check nothing
+     * @param sampleRate             the fraction of templates to check, from 0 (none) to 1 (all)
+     * @param compressWhitespace     the default whitespace compression, used by both parsers
+     * @param minify                 whether this module minifies templates (which the core parser doesn't)
+     * @param whitespacePreservation elements whose whitespace this module preserves (which the core parser doesn't)
+     * @param logger                 for mismatches
+     */
+    public ShadowVerifierImpl(TemplateParser coreParser, double sampleRate, boolean compressWhitespace, boolean minify,
+            WhitespacePreservation whitespacePreservation, Logger logger)
+    {
+        this(coreParser, sampleRate, compressWhitespace, minify, whitespacePreservation,
+             new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                    new ArrayBlockingQueue<Runnable>(MAX_PENDING_CHECKS), new VerifierThreadFactory(),
+                                    new ThreadPoolExecutor.DiscardPolicy()), logger);
+    }
+
+    ShadowVerifierImpl(TemplateParser coreParser, double sampleRate, boolean compressWhitespace, boolean minify,
+            WhitespacePreservation whitespacePreservation, Executor executor, Logger logger)
+    {
+        this.coreParser = coreParser;
+        this.sampleRate = sampleRate;
+        this.whitespacePreservation = whitespacePreservation;
+        this.executor = executor;
+        this.logger = logger;
+
+        // Without whitespace compression, neither parser changes whitespace, nor removes comments.
+
+        normalizePreserved = compressWhitespace && !whitespacePreservation.getElementNames().isEmpty();
+        normalizeMinified = compressWhitespace && minify;
+        compareComments = !normalizeMinified;
+    }
+
+    public void templateParsed(final Resource resource, final ComponentTemplate template)
+    {
+        if (coreParser == null || sampleRate <= 0 || random.nextDouble() >= sampleRate) return;
+
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                verify(resource, template);
+            }
+        });
+    }
+
+    private void verify(Resource resource, ComponentTemplate template)
+    {
+        ComponentTemplate expected;
+
+        try
+        {
+            expected = coreParser.parseTemplate(resource);
+        }
+        catch (RuntimeException ex)
+        {
+            if (contentChanged(resource, template)) return;
+
+            recordMismatch(resource, SaxParserMessages.shadowParseFailed(ex));
+
+            return;
+        }
+
+        Set<String> overrideIds = TemplateTokens.overrideIds(expected);
+
+        overrideIds.addAll(TemplateTokens.overrideIds(template));
+
+        SaxComponentTemplate normalized = normalize(expected, overrideIds);
+
+        String difference = TemplateTokens.findDifference(normalized,
+                                                          alignStartTagLines(normalized,
+                                                                             normalize(template, overrideIds)));
+
+        // The template may have been changed since it was parsed, in which case a difference is to be expected.
+
+        if (difference != null && contentChanged(resource, template)) return;
+
+        verifiedCount.incrementAndGet();
+
+        if (difference != null) recordMismatch(resource, difference);
+    }
+
+    private boolean contentChanged(Resource resource, ComponentTemplate template)
+    {
+        if (!(template instanceof SaxComponentTemplate)) return false;
+
+        try
+        {
+            byte[] content = TemplateContent.read(resource);
+
+            return ContentHash.update(ContentHash.INITIAL, content, 0, content.length)
+                    != ((SaxComponentTemplate) template).getContentHash();
+        }
+        catch (IOException ex)
+        {
+            return true;
+        }
+    }
+
+    private void recordMismatch(Resource resource, String difference)
+    {
+        logger.warn(SaxParserMessages.shadowMismatch(resource, difference));
+
+        synchronized (mismatches)
+        {
+            // Re-inserted, so that it counts as the most recent.
+
+            mismatches.remove(resource.toString());
+            mismatches.put(resource.toString(), difference);
+        }
+    }
+
+    /**
+     * Returns a copy of the template, with the differences that are expected between the two parsers removed: text and
+     * CDATA may be split into several tokens, comments are removed by minification, and whitespace may differ inside
+     * elements whose whitespace is preserved and, when minifying, next to the tags of block elements.
+     */
+    private SaxComponentTemplate normalize(ComponentTemplate template, Set<String> overrideIds)
+    {
+        Map<String, List<TemplateToken>> overrides = null;
+
+        for (String id : overrideIds)
+        {
+            List<TemplateToken> tokens = template.getExtensionPointTokens(id);
+
+            if (tokens == null) continue;
+
+            if (overrides == null) overrides = CollectionFactory.newCaseInsensitiveMap();
+
+            overrides.put(id, normalize(tokens));
+        }
+
+        return new SaxComponentTemplate(template.getResource(), normalize(template.getTokens()),
+                                        CollectionFactory.newCaseInsensitiveMap(template.getComponentIds()),
+                                        template.isExtension(), overrides, 0);
+    }
+
+    private List<TemplateToken> normalize(List<TemplateToken> tokens)
+    {
+        List<TemplateToken> result = CollectionFactory.newList();
+
+        for (TemplateToken token : tokens)
+        {
+            TokenType type = token.getTokenType();
+
+            if (type == TokenType.COMMENT && !compareComments) continue;
+
+            TemplateToken previous = result.isEmpty() ? null : result.get(result.size() - 1);
+
+            if (type == TokenType.TEXT && previous != null && previous.getTokenType() == TokenType.TEXT)
+            {
+                String text = ((TextToken) previous).getText() + ((TextToken) token).getText();
+
+                result.set(result.size() - 1, new TextToken(text, previous.getLocation()));
+                continue;
+            }
+
+            if (type == TokenType.CDATA && previous != null && previous.getTokenType() == TokenType.CDATA)
+            {
+                String content = ((CDATAToken) previous).getContent() + ((CDATAToken) token).getContent();
+
+                result.set(result.size() - 1, new CDATAToken(content, previous.getLocation()));
+                continue;
+            }
+
+            result.add(token);
+        }
+
+        return normalizePreserved || normalizeMinified ? normalizeWhitespace(result) : result;
+    }
+
+    /**
+     * Inside elements whose whitespace is preserved, runs of whitespace are reduced to a single space and text is
+     * trimmed; when minifying, text is trimmed next to the tags of block elements. Text left empty is removed. All
+     * other text is left as is.
+     */
+    private List<TemplateToken> normalizeWhitespace(List<TemplateToken> tokens)
+    {
+        List<TemplateToken> result = CollectionFactory.newList();
+
+        Stack<OpenElement> openElements = CollectionFactory.newStack();
+
+        boolean previousTagIsBlock = false;
+
+        for (int i = 0; i < tokens.size(); i++)
+        {
+            TemplateToken token = tokens.get(i);
+
+            boolean preserved = !openElements.isEmpty() && openElements.peek().preserved;
+
+            switch (token.getTokenType())
+            {
+                case START_ELEMENT:
+                case START_COMPONENT:
+                case BLOCK:
+                case PARAMETER:
+
+                    OpenElement element = openElement(token, preserved);
+
+                    openElements.push(element);
+
+                    previousTagIsBlock = element.block;
+                    break;
+
+                case END_ELEMENT:
+
+                    previousTagIsBlock = !openElements.isEmpty() && openElements.pop().block;
+                    break;
+
+                case BODY:
+                case EXTENSION_POINT:
+                case CDATA:
+
+                    previousTagIsBlock = false;
+                    break;
+
+                case TEXT:
+
+                    String text = ((TextToken) token).getText();
+
+                    if (preserved)
+                        text = text.replaceAll("\\s+", " ").trim();
+                    else if (normalizeMinified)
+                        text = trimAtBlockTags(text, previousTagIsBlock && startsText(tokens, i),
+                                               nextTagIsBlock(tokens, i, openElements));
+
+                    if (text.length() == 0) continue;
+
+                    token = new TextToken(text, token.getLocation());
+                    break;
+
+                default:
+            }
+
+            result.add(token);
+        }
+
+        return result;
+    }
+
+    private OpenElement openElement(TemplateToken token, boolean parentPreserved)
+    {
+        String namespaceURI = null;
+        String elementName = null;
+
+        if (token.getTokenType() == TokenType.START_ELEMENT)
+        {
+            namespaceURI = ((StartElementToken) token).getNamespaceURI();
+            elementName = ((StartElementToken) token).getName();
+        }
+
+        // A component's element name, as in <div t:type="...">, is always an HTML element.
+
+        if (token.getTokenType() == TokenType.START_COMPONENT)
+            elementName = ((StartComponentToken) token).getElementName();
+
+        if (elementName == null) return new OpenElement(false, parentPreserved);
+
+        boolean html = InternalUtils.isBlank(namespaceURI)
+                || SaxTemplateParserImpl.XHTML_NAMESPACE_URI.equals(namespaceURI);
+
+        return new OpenElement(normalizeMinified && html
+                && SaxTemplateParserImpl.BLOCK_ELEMENTS.contains(elementName.toLowerCase()),
+                               parentPreserved || (normalizePreserved
+                                       && whitespacePreservation.isPreserved(namespaceURI, elementName)));
+    }
+
+    /**
+     * Returns true if the text token at the index is the first of a run of text and expansions.
+     */
+    private static boolean startsText(List<TemplateToken> tokens, int index)
+    {
+        return index == 0 || !isText(tokens.get(index - 1));
+    }
+
+    /**
+     * Returns true if the text token at the index ends a run of text and expansions, which is followed by the tag of a
+     * block element.
+     */
+    private boolean nextTagIsBlock(List<TemplateToken> tokens, int index, Stack<OpenElement> openElements)
+    {
+        if (index + 1 == tokens.size()) return false;
+
+        TemplateToken next = tokens.get(index + 1);
+
+        switch (next.getTokenType())
+        {
+            case START_ELEMENT:
+            case START_COMPONENT:
+
+                return openElement(next, false).block;
+
+            case END_ELEMENT:
+
+                return !openElements.isEmpty() && openElements.peek().block;
+
+            default:
+
+                return false;
+        }
+    }
+
+    private static boolean isText(TemplateToken token)
+    {
+        return token.getTokenType() == TokenType.TEXT || token.getTokenType() == TokenType.EXPANSION;
+    }
+
+    private static String trimAtBlockTags(String text, boolean afterBlockTag, boolean beforeBlockTag)
+    {
+        int start = 0;
+        int end = text.length();
+
+        if (afterBlockTag)
+        {
+            while (start < end && Character.isWhitespace(text.charAt(start)))
+                start++;
+        }
+
+        if (beforeBlockTag)
+        {
+            while (end > start && Character.isWhitespace(text.charAt(end - 1)))
+                end--;
+        }
+
+        return text.substring(start, end);
+    }
+
+    /**
+     * Returns a copy of the actual template in which each token from a start tag that the core parser reported on an
+     * earlier line, where that line is consistent with the tag spanning several lines, has the location reported by
+     * the core parser (as does the id of a component started by such a tag). Other line differences remain.
+     */
+    private static SaxComponentTemplate alignStartTagLines(SaxComponentTemplate expected, SaxComponentTemplate actual)
+    {
+        Map<String, Location> componentIds = CollectionFactory.newCaseInsensitiveMap(actual.getComponentIds());
+
+        List<TemplateToken> tokens = alignStartTagLines(expected.getTokens(), actual.getTokens(),
+                                                        expected.getComponentIds(), componentIds);
+
+        Map<String, List<TemplateToken>> overrides = null;
+
+        if (actual.getOverrides() != null)
+        {
+            overrides = CollectionFactory.newCaseInsensitiveMap();
+
+            for (Map.Entry<String, List<TemplateToken>> entry : actual.getOverrides().entrySet())
+            {
+                List<TemplateToken> expectedTokens = expected.getExtensionPointTokens(entry.getKey());
+
+                overrides.put(entry.getKey(), expectedTokens == null
+                                              ? entry.getValue()
+                                              : alignStartTagLines(expectedTokens, entry.getValue(),
+                                                                   expected.getComponentIds(), componentIds));
+            }
+        }
+
+        return new SaxComponentTemplate(actual.getResource(), tokens, componentIds, actual.isExtension(), overrides,
+                                        0);
+    }
+
+    private static List<TemplateToken> alignStartTagLines(List<TemplateToken> expected, List<TemplateToken> actual,
+            Map<String, Location> expectedComponentIds, Map<String, Location> componentIds)
+    {
+        List<TemplateToken> result = CollectionFactory.newList(actual);
+
+        int count = Math.min(expected.size(), actual.size());
+
+        for (int i = 0; i < count; i++)
+        {
+            TemplateToken expectedToken = expected.get(i);
+
+            if (!START_TAG_TYPES.contains(expectedToken.getTokenType())) continue;
+
+            int expectedLine = line(expectedToken.getLocation());
+            int actualLine = line(actual.get(i).getLocation());
+
+            // The tag can't end after the line of the first token that follows it.
+
+            if (actualLine <= expectedLine || actualLine > nextLine(expected, i)) continue;
+
+            result.set(i, TemplateTokens.copy(actual.get(i), expectedToken.getLocation()));
+
+            String id = expectedToken.getTokenType() == TokenType.START_COMPONENT
+                        ? ((StartComponentToken) expectedToken).getId()
+                        : null;
+
+            if (id != null && line(componentIds.get(id)) == actualLine
+                    && line(expectedComponentIds.get(id)) == expectedLine)
+                componentIds.put(id, expectedComponentIds.get(id));
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the line of the first token after the index that is on a later line, or Integer.MAX_VALUE if there is
+     * none.
+     */
+    private static int nextLine(List<TemplateToken> tokens, int index)
+    {
+        int line = line(tokens.get(index).getLocation());
+
+        for (int i = index + 1; i < tokens.size(); i++)
+        {
+            int next = line(tokens.get(i).getLocation());
+
+            if (next > line) return next;
+        }
+
+        return Integer.MAX_VALUE;
+    }
+
+    private static int line(Location location)
+    {
+        return location == null ? -1 : location.getLine();
+    }
+
+    public int getVerifiedCount()
+    {
+        return verifiedCount.get();
+    }
+
+    public Map<String, String> getMismatches()
+    {
+        synchronized (mismatches)
+        {
+            return new LinkedHashMap<String, String>(mismatches);
+        }
+    }
+
+    public void registryDidShutdown()
+    {
+        if (executor instanceof ExecutorService) ((ExecutorService) executor).shutdownNow();
+    }
+
+    private static class OpenElement
+    {
+        /**
+         * True for a block element, when minifying.
+         */
+        final boolean block;
+
+        /**
+         * True if whitespace inside the element is preserved (and so compared loosely).
+         */
+        final boolean preserved;
+
+        OpenElement(boolean block, boolean preserved)
+        {
+            this.block = block;
+            this.preserved = preserved;
+        }
+    }
+
+    private static class VerifierThreadFactory implements ThreadFactory
+    {
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "TemplateShadowVerifier");
+
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.apache.tapestry5.sax.internal;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * Passes each template obtained from the delegate parser to the {@link ShadowVerifier}.
+ */
+class ShadowVerifyingTemplateParser implements TemplateParser
+{
+    private final TemplateParser delegate;
+
+    private final ShadowVerifier verifier;
+
+    ShadowVerifyingTemplateParser(TemplateParser delegate, ShadowVerifier verifier)
+    {
+        this.delegate = delegate;
+        this.verifier = verifier;
+    }
+
+    public ComponentTemplate parseTemplate(Resource templateResource)
+    {
+        ComponentTemplate template = delegate.parseTemplate(templateResource);
+
+        verifier.templateParsed(templateResource, template);
+
+        return template;
+    }
+}
@@ -0,0 +1,79 @@
+package org.apache.tapestry5.sax.internal;
+
+import org.apache.tapestry5.internal.parser.ExpansionToken;
+import org.apache.tapestry5.ioc.Location;
+
+/**
+ * An expansion token whose expression has already been split into a binding prefix and the expression proper (as
+ * <code>prop:user.name</code> to <code>prop</code> and <code>user.name</code>), so that it need not be split again
+ * for each page instance.
+ * <p/>
+ * The parser doesn't know which binding prefixes are configured; like the BindingSource, consumers should treat the
+ * whole expression as unprefixed when the binding prefix is not a known one.
+ */
+public class SplitExpansionToken extends ExpansionToken
+{
+    private final String bindingPrefix;
+
+    private final String bindingExpression;
+
+    public SplitExpansionToken(String expression, Location location)
+    {
+        this(expression, location, null);
+    }
+
+    /**
+     * @param interner if not null, used to intern the expression and its parts
+     */
+    SplitExpansionToken(String expression, Location location, StringInterner interner)
+    {
+        super(intern(interner, expression), location);
+
+        // Split at the first colon, exactly as the BindingSource does.
+
+        int colonx = expression.indexOf(':');
+
+        if (colonx > 0)
+        {
+            bindingPrefix = intern(interner, expression.substring(0, colonx));
+            bindingExpression = intern(interner, expression.substring(colonx + 1));
+        }
+        else
+        {
+            bindingPrefix = null;
+            bindingExpression = getExpression();
+        }
+    }
+
+    /**
+     * Copies the token to a new location.
+     */
+    SplitExpansionToken(SplitExpansionToken token, Location location)
+    {
+        super(token.getExpression(), location);
+
+        bindingPrefix = token.bindingPrefix;
+        bindingExpression = token.bindingExpression;
+    }
+
+    private static String intern(StringInterner interner, String value)
+    {
+        return interner == null ? value : interner.intern(value);
+    }
+
+    /**
+     * Returns the text before the first colon, or null if the expression has no prefix.
+     */
+    public String getBindingPrefix()
+    {
+        return bindingPrefix;
+    }
+
+    /**
+     * Returns the text after the first colon, or the entire expression if it has no prefix.
+     */
+    public String getBindingExpression()
+    {
+        return bindingExpression;
+    }
+}
@@ -0,0 +1,590 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Reads templates with the JVM's default StAX (pull) parser, converting its events to the SAX events expected by the
+ * template content handler.
+ * <p/>
+ * This is a partial backend; it is not self-contained, and doesn't report everything the SAX backend does:
+ * <ul>
+ * <li>StAX reports the DOCTYPE only as text, which is matched by a pattern; the attribute defaults and element content
+ * models the DTD declares are collected by a (cached) SAX parse of the DOCTYPE, and the line of the DOCTYPE is found
+ * in a copy of the characters read before the root element</li>
+ * <li>StAX doesn't report where entities start and end, so startEntity() and endEntity() are never invoked; errors
+ * within the replacement text of an entity are reported where the StAX parser says they are, rather than next to the
+ * reference to the entity</li>
+ * <li>the limit on entity expansions ({@link SaxParserSymbols#MAX_ENTITY_EXPANSIONS}) is enforced by the StAX
+ * implementation itself; a reader is not created for a positive limit the implementation doesn't support</li>
+ * </ul>
+ */
+public class StaxTemplateReader implements TemplateReader
+{
+    public static final TemplateReaderFactory FACTORY = new TemplateReaderFactory()
+    {
+        public TemplateReader newTemplateReader(EntityResolver entityResolver, int maxEntityExpansions)
+        {
+            return new StaxTemplateReader(entityResolver, maxEntityExpansions);
+        }
+    };
+
+    /**
+     * Non-standard property of the JDK's parser; without it, CDATA sections are reported as ordinary characters.
+     */
+    private static final String REPORT_CDATA_PROPERTY = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    /**
+     * StAX reports the DTD as the text of the DOCTYPE declaration; this extracts the name, public id and system id
+     * reported by SAX.
+     */
+    private static final Pattern DOCTYPE_PATTERN = Pattern.compile(
+            "<!DOCTYPE\\s+([^\\s\\[>]+)(?:\\s+(?:PUBLIC\\s+([\"'])(.*?)\\2\\s+([\"'])(.*?)\\4|SYSTEM\\s+([\"'])(.*?)\\6))?",
+            Pattern.DOTALL);
+
+    private static final String DECLARATION_HANDLER_PROPERTY = "http://xml.org/sax/properties/declaration-handler";
+
+    private final EntityResolver entityResolver;
+
+    private final int maxEntityExpansions;
+
+    private final XMLInputFactory inputFactory;
+
+    /**
+     * Declarations of each DOCTYPE seen so far, keyed on the text of the DOCTYPE declaration.
+     */
+    private final Map<String, Declarations> doctypeDeclarations = CollectionFactory.newMap();
+
+    public StaxTemplateReader(final EntityResolver entityResolver, int maxEntityExpansions)
+    {
+        this.entityResolver = entityResolver;
+        this.maxEntityExpansions = maxEntityExpansions;
+
+        inputFactory = XMLInputFactory.newInstance();
+
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        inputFactory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, true);
+
+        if (inputFactory.isPropertySupported(REPORT_CDATA_PROPERTY))
+            inputFactory.setProperty(REPORT_CDATA_PROPERTY, true);
+
+        String limitProperty = SaxTemplateReader.ENTITY_EXPANSION_LIMIT_PROPERTY;
+
+        if (maxEntityExpansions > 0)
+        {
+            if (!inputFactory.isPropertySupported(limitProperty))
+                throw new RuntimeException(
+                        SaxParserMessages.staxEntityLimitUnsupported(maxEntityExpansions, inputFactory));
+
+            inputFactory.setProperty(limitProperty, String.valueOf(maxEntityExpansions));
+        }
+
+        inputFactory.setXMLResolver(new XMLResolver()
+        {
+            public Object resolveEntity(String publicID, String systemID, String baseURI, String namespace)
+                    throws XMLStreamException
+            {
+                try
+                {
+                    InputSource source = entityResolver.resolveEntity(publicID, systemID);
+
+                    // Null means the parser resolves the entity itself.
+
+                    return source == null ? null : source.getByteStream();
+                }
+                catch (Exception ex)
+                {
+                    throw new XMLStreamException(ex);
+                }
+            }
+        });
+    }
+
+    public void parse(InputSource input, ContentHandler contentHandler, LexicalHandler lexicalHandler)
+            throws Exception
+    {
+        PrologRecorder prolog = input.getCharacterStream() == null
+                                ? null
+                                : new PrologRecorder(input.getCharacterStream());
+
+        XMLStreamReader reader = createReader(input, prolog);
+
+        try
+        {
+            StreamLocator locator = new StreamLocator(reader);
+
+            contentHandler.setDocumentLocator(locator);
+
+            contentHandler.startDocument();
+
+            AttributesImpl attributes = new AttributesImpl();
+
+            Declarations declarations = Declarations.NONE;
+
+            List<OpenElement> openElements = CollectionFactory.newList();
+
+            while (reader.hasNext())
+            {
+                // The line where the previous event ended.
+
+                int line = reader.getLocation().getLineNumber();
+
+                OpenElement parent = openElements.isEmpty() ? null : openElements.get(openElements.size() - 1);
+
+                switch (reader.next())
+                {
+                    case XMLStreamReader.START_ELEMENT:
+
+                        if (prolog != null) prolog.stop();
+
+                        String qName = qualifiedName(reader.getPrefix(), reader.getLocalName());
+
+                        OpenElement element = new OpenElement(declarations.elementContent.contains(qName));
+
+                        boolean declaresDefaultNamespace = false;
+
+                        for (int i = 0; i < reader.getNamespaceCount(); i++)
+                        {
+                            String prefix = emptyForNull(reader.getNamespacePrefix(i));
+
+                            if (prefix.length() == 0) declaresDefaultNamespace = true;
+
+                            contentHandler.startPrefixMapping(prefix, emptyForNull(reader.getNamespaceURI(i)));
+                        }
+
+                        if (!declaresDefaultNamespace && parent != null)
+                            element.defaultNamespace = parent.defaultNamespace;
+
+                        attributes.clear();
+
+                        for (int i = 0; i < reader.getAttributeCount(); i++)
+                        {
+                            // Defaulted attributes are reported without their namespace; they are added (properly)
+                            // from the declarations below.
+
+                            if (!reader.isAttributeSpecified(i)) continue;
+
+                            attributes.addAttribute(emptyForNull(reader.getAttributeNamespace(i)),
+                                                    reader.getAttributeLocalName(i),
+                                                    qualifiedName(reader.getAttributePrefix(i),
+                                                                  reader.getAttributeLocalName(i)),
+                                                    reader.getAttributeType(i), reader.getAttributeValue(i));
+                        }
+
+                        List<DefaultAttribute> defaults = declarations.attributeDefaults.get(qName);
+
+                        if (defaults != null)
+                        {
+                            for (DefaultAttribute attribute : defaults)
+                            {
+                                if (attribute.qName.equals("xmlns"))
+                                {
+                                    if (declaresDefaultNamespace) continue;
+
+                                    element.defaultNamespace = attribute.value;
+                                    element.declaresDefaultNamespace = true;
+
+                                    contentHandler.startPrefixMapping("", attribute.value);
+
+                                    continue;
+                                }
+
+                                if (attributes.getIndex(attribute.qName) < 0)
+                                    addDefaultAttribute(reader, attributes, attribute);
+                            }
+                        }
+
+                        openElements.add(element);
+
+                        contentHandler.startElement(namespace(reader, element), reader.getLocalName(), qName,
+                                                    attributes);
+                        break;
+
+                    case XMLStreamReader.END_ELEMENT:
+
+                        openElements.remove(openElements.size() - 1);
+
+                        contentHandler.endElement(namespace(reader, parent), reader.getLocalName(),
+                                                  qualifiedName(reader.getPrefix(), reader.getLocalName()));
+
+                        for (int i = 0; i < reader.getNamespaceCount(); i++)
+                            contentHandler.endPrefixMapping(emptyForNull(reader.getNamespacePrefix(i)));
+
+                        if (parent.declaresDefaultNamespace) contentHandler.endPrefixMapping("");
+
+                        break;
+
+                    case XMLStreamReader.CHARACTERS:
+                    case XMLStreamReader.SPACE:
+
+                        // As with SAX, whitespace where the DTD allows only elements is ignorable.
+
+                        if (parent != null && parent.elementContent && isWhitespace(reader))
+                            contentHandler.ignorableWhitespace(reader.getTextCharacters(), reader.getTextStart(),
+                                                               reader.getTextLength());
+                        else
+                            contentHandler.characters(reader.getTextCharacters(), reader.getTextStart(),
+                                                      reader.getTextLength());
+                        break;
+
+                    case XMLStreamReader.CDATA:
+
+                        lexicalHandler.startCDATA();
+                        contentHandler.characters(reader.getTextCharacters(), reader.getTextStart(),
+                                                  reader.getTextLength());
+                        lexicalHandler.endCDATA();
+                        break;
+
+                    case XMLStreamReader.COMMENT:
+
+                        lexicalHandler.comment(reader.getTextCharacters(), reader.getTextStart(),
+                                               reader.getTextLength());
+                        break;
+
+                    case XMLStreamReader.DTD:
+
+                        Matcher matcher = DOCTYPE_PATTERN.matcher(reader.getText());
+
+                        if (matcher.lookingAt())
+                        {
+                            String publicId = matcher.group(3);
+                            String systemId = matcher.group(3) != null ? matcher.group(5) : matcher.group(7);
+
+                            declarations = getDeclarations(reader.getText(), matcher.group(1));
+
+                            // By now the parser has read past the declaration (and perhaps the external DTD); SAX
+                            // reports the line on which the external id ends. The text of the declaration
+                            // reported by the parser doesn't always include all of its line breaks, so where
+                            // possible the line is found in the characters actually read.
+
+                            locator.lineNumber = prolog == null
+                                                 ? line + countNewlines(matcher.group())
+                                                 : prolog.getDoctypeLine();
+
+                            lexicalHandler.startDTD(matcher.group(1), publicId, systemId);
+                            lexicalHandler.endDTD();
+
+                            locator.lineNumber = 0;
+                        }
+
+                        break;
+
+                    case XMLStreamReader.PROCESSING_INSTRUCTION:
+
+                        contentHandler.processingInstruction(reader.getPITarget(), reader.getPIData());
+                        break;
+
+                    default:
+
+                        // START_DOCUMENT, END_DOCUMENT and ENTITY_REFERENCE (which can't occur while entities are
+                        // being replaced) aren't needed.
+                }
+            }
+
+            contentHandler.endDocument();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private XMLStreamReader createReader(InputSource input, Reader characters) throws XMLStreamException
+    {
+        InputStream stream = input.getByteStream();
+        String systemId = input.getSystemId();
+
+        if (characters != null)
+            return systemId == null
+                   ? inputFactory.createXMLStreamReader(characters)
+                   : inputFactory.createXMLStreamReader(systemId, characters);
+
+        return systemId == null
+               ? inputFactory.createXMLStreamReader(stream)
+               : inputFactory.createXMLStreamReader(systemId, stream);
+    }
+
+    /**
+     * The JDK's StAX parser reads the DTD, but (unlike the SAX parser) doesn't apply what it declares: attribute
+     * defaults (such as the default namespace of the XHTML DTDs) and which elements contain only other elements. These
+     * are collected by parsing an empty document with the same DOCTYPE with SAX (subject to the same entity expansion
+     * limit), once per distinct DOCTYPE.
+     */
+    private Declarations getDeclarations(String doctype, String rootElementName) throws Exception
+    {
+        Declarations result = doctypeDeclarations.get(doctype);
+
+        if (result != null) return result;
+
+        final Declarations declarations = new Declarations();
+
+        XMLReader reader = new SaxTemplateReader(entityResolver, maxEntityExpansions).getXMLReader();
+
+        reader.setProperty(DECLARATION_HANDLER_PROPERTY, new DefaultHandler2()
+        {
+            public void elementDecl(String name, String model)
+            {
+                if (model.startsWith("(") && !model.contains("#PCDATA")) declarations.elementContent.add(name);
+            }
+
+            public void attributeDecl(String eName, String aName, String type, String mode, String value)
+            {
+                // Only attributes with a default value (including #FIXED ones) matter.
+
+                if (value == null) return;
+
+                List<DefaultAttribute> defaults = declarations.attributeDefaults.get(eName);
+
+                if (defaults == null)
+                {
+                    defaults = CollectionFactory.newList();
+                    declarations.attributeDefaults.put(eName, defaults);
+                }
+
+                defaults.add(new DefaultAttribute(aName, type, value));
+            }
+        });
+
+        reader.parse(new InputSource(new StringReader(doctype + "<" + rootElementName + "/>")));
+
+        doctypeDeclarations.put(doctype, declarations);
+
+        return declarations;
+    }
+
+    private static void addDefaultAttribute(XMLStreamReader reader, AttributesImpl attributes,
+                                            DefaultAttribute attribute)
+    {
+        int colonx = attribute.qName.indexOf(':');
+
+        String uri = "";
+        String localName = attribute.qName;
+
+        if (colonx > 0)
+        {
+            String prefix = attribute.qName.substring(0, colonx);
+
+            uri = prefix.equals(XMLConstants.XML_NS_PREFIX)
+                  ? XMLConstants.XML_NS_URI
+                  : emptyForNull(reader.getNamespaceContext().getNamespaceURI(prefix));
+            localName = attribute.qName.substring(colonx + 1);
+        }
+
+        attributes.addAttribute(uri, localName, attribute.qName, attribute.type, attribute.value);
+    }
+
+    /**
+     * Returns the namespace of the current element, applying the default namespace supplied by the DTD to unprefixed
+     * elements.
+     */
+    private static String namespace(XMLStreamReader reader, OpenElement element)
+    {
+        String namespace = reader.getNamespaceURI();
+
+        if (namespace == null && element.defaultNamespace != null && emptyForNull(reader.getPrefix()).length() == 0)
+            return element.defaultNamespace;
+
+        return emptyForNull(namespace);
+    }
+
+    private static boolean isWhitespace(XMLStreamReader reader)
+    {
+        char[] characters = reader.getTextCharacters();
+        int end = reader.getTextStart() + reader.getTextLength();
+
+        for (int i = reader.getTextStart(); i < end; i++)
+            if (!Character.isWhitespace(characters[i])) return false;
+
+        return true;
+    }
+
+    /**
+     * Counts line breaks: a line feed, a carriage return, or the two together.
+     */
+    private static int countNewlines(CharSequence text)
+    {
+        int result = 0;
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            char ch = text.charAt(i);
+
+            if (ch == '\n' || (ch == '\r' && (i + 1 == text.length() || text.charAt(i + 1) != '\n'))) result++;
+        }
+
+        return result;
+    }
+
+    private static String emptyForNull(String value)
+    {
+        return value == null ? "" : value;
+    }
+
+    private static String qualifiedName(String prefix, String localName)
+    {
+        return prefix == null || prefix.length() == 0 ? localName : prefix + ":" + localName;
+    }
+
+    private static class StreamLocator implements Locator
+    {
+        private final XMLStreamReader reader;
+
+        /**
+         * When positive, overrides the line number reported by the reader.
+         */
+        int lineNumber;
+
+        StreamLocator(XMLStreamReader reader)
+        {
+            this.reader = reader;
+        }
+
+        public String getPublicId()
+        {
+            return reader.getLocation().getPublicId();
+        }
+
+        public String getSystemId()
+        {
+            return reader.getLocation().getSystemId();
+        }
+
+        public int getLineNumber()
+        {
+            return lineNumber > 0 ? lineNumber : reader.getLocation().getLineNumber();
+        }
+
+        public int getColumnNumber()
+        {
+            return reader.getLocation().getColumnNumber();
+        }
+    }
+
+    private static class Declarations
+    {
+        static final Declarations NONE = new Declarations();
+
+        final Map<String, List<DefaultAttribute>> attributeDefaults = CollectionFactory.newMap();
+
+        /**
+         * Names of elements whose content model allows only other elements.
+         */
+        final Set<String> elementContent = CollectionFactory.newSet();
+    }
+
+    private static class DefaultAttribute
+    {
+        final String qName;
+
+        final String type;
+
+        final String value;
+
+        DefaultAttribute(String qName, String type, String value)
+        {
+            this.qName = qName;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private static class OpenElement
+    {
+        final boolean elementContent;
+
+        /**
+         * The default namespace supplied by the DTD (rather than by the document), or null.
+         */
+        String defaultNamespace;
+
+        /**
+         * True if the DTD supplied the default namespace to this element, rather than to an ancestor.
+         */
+        boolean declaresDefaultNamespace;
+
+        OpenElement(boolean elementContent)
+        {
+            this.elementContent = elementContent;
+        }
+    }
+
+    /**
+     * Keeps a copy of the characters read, up to the start of the root element.
+     */
+    private static class PrologRecorder extends FilterReader
+    {
+        private final StringBuilder prolog = new StringBuilder();
+
+        private boolean recording = true;
+
+        PrologRecorder(Reader reader)
+        {
+            super(reader);
+        }
+
+        public int read() throws IOException
+        {
+            int result = super.read();
+
+            if (recording && result >= 0) prolog.append((char) result);
+
+            return result;
+        }
+
+        public int read(char[] buffer, int offset, int length) throws IOException
+        {
+            int result = super.read(buffer, offset, length);
+
+            if (recording && result > 0) prolog.append(buffer, offset, result);
+
+            return result;
+        }
+
+        void stop()
+        {
+            recording = false;
+            prolog.setLength(0);
+            prolog.trimToSize();
+        }
+
+        /**
+         * Returns the line on which the DOCTYPE declaration's external id ends, or 0 if not known.
+         */
+        int getDoctypeLine()
+        {
+            int start = prolog.indexOf("<!DOCTYPE");
+
+            if (start < 0) return 0;
+
+            Matcher matcher = DOCTYPE_PATTERN.matcher(prolog);
+
+            return matcher.find(start) ? 1 + countNewlines(prolog.subSequence(0, matcher.end())) : 0;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A thread safe intern table for the (small) vocabulary of element names, attribute names, namespace URIs and prefixes
+ * found in templates, as well as the expressions of expansions (which are often repeated across templates), so that
+ * every template shares a single instance of each string. Expressions accumulate as templates are edited, so the
+ * owner of the table clears it when templates are invalidated.
+ */
+class StringInterner
+{
+    private final ConcurrentMap<String, String> cache = new ConcurrentHashMap<String, String>();
+
+    String intern(String value)
+    {
+        if (value == null) return null;
+
+        String result = cache.putIfAbsent(value, value);
+
+        return result == null ? value : result;
+    }
+
+    /**
+     * Forgets all strings; strings interned afterwards are not shared with those interned before.
+     */
+    void clear()
+    {
+        cache.clear();
+    }
+
+    int size()
+    {
+        return cache.size();
+    }
+}
@@ -0,0 +1,140 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.ioc.internal.util.InternalUtils;
+
+/**
+ * A set of precompiled templates, as written by {@link TemplatePrecompiler} and read by {@link
+ * PrecompiledTemplateParserImpl}. Each template is stored, keyed on its classpath path, along with the {@link
+ * ContentHash} of the source it was parsed from; the template is only used while the source is unchanged.
+ */
+class TemplateArchive
+{
+    /**
+     * Location of archives on the classpath.
+     */
+    static final String PATH = "META-INF/tapestry-sax-parser/templates.bin";
+
+    private static final int MAGIC = 0x54534158;
+
+    /**
+     * Incremented whenever the format of the archive, or of the {@link TemplateCodec encoded templates}, changes;
+     * archives of any other version are ignored.
+     */
+    static final int FORMAT_VERSION = 3;
+
+    static final class Entry
+    {
+        final long contentHash;
+
+        final byte[] data;
+
+        Entry(long contentHash, byte[] data)
+        {
+            this.contentHash = contentHash;
+            this.data = data;
+        }
+    }
+
+    private final String options;
+
+    private final Map<String, Entry> entries;
+
+    private TemplateArchive(String options, Map<String, Entry> entries)
+    {
+        this.options = options;
+        this.entries = entries;
+    }
+
+    /**
+     * Describes the parser options that affect the parsed templates; an archive can only be used by a parser with the
+     * same options.
+     */
+    static String options(boolean compressWhitespace, boolean minify, WhitespacePreservation whitespacePreservation)
+    {
+        return String.format("compress-whitespace=%s,minify=%s,preserve-whitespace=%s", compressWhitespace, minify,
+                             InternalUtils.join(CollectionFactory.newList(whitespacePreservation.getElementNames())));
+    }
+
+    /**
+     * Reads an archive.
+     *
+     * @return the archive, or null if the archive is of a different format version
+     */
+    static TemplateArchive read(InputStream stream) throws IOException
+    {
+        DataInputStream in = new DataInputStream(stream);
+
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a template archive.");
+
+        if (in.readInt() != FORMAT_VERSION) return null;
+
+        String options = in.readUTF();
+
+        int count = in.readInt();
+
+        Map<String, Entry> entries = CollectionFactory.newMap();
+
+        for (int i = 0; i < count; i++)
+        {
+            String path = in.readUTF();
+            long contentHash = in.readLong();
+
+            byte[] data = new byte[in.readInt()];
+
+            in.readFully(data);
+
+            entries.put(path, new Entry(contentHash, data));
+        }
+
+        return new TemplateArchive(options, entries);
+    }
+
+    /**
+     * Writes an archive.
+     *
+     * @param stream    to write to (left open)
+     * @param options   the {@link #options(boolean, boolean, WhitespacePreservation) options} the templates were parsed with
+     * @param templates parsed templates, keyed on classpath path
+     */
+    static void write(OutputStream stream, String options, Map<String, SaxComponentTemplate> templates)
+            throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(stream);
+
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(options);
+        out.writeInt(templates.size());
+
+        for (Map.Entry<String, SaxComponentTemplate> entry : templates.entrySet())
+        {
+            byte[] data = TemplateCodec.encode(entry.getValue());
+
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().getContentHash());
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        out.flush();
+    }
+
+    String getOptions()
+    {
+        return options;
+    }
+
+    Map<String, Entry> getEntries()
+    {
+        return entries;
+    }
+}
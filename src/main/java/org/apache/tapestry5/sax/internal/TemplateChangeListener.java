@@ -0,0 +1,18 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Set;
+
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * Notified by a {@link TemplateChangeWatcher} when watched template resources change.
+ */
+public interface TemplateChangeListener
+{
+    /**
+     * Invoked, from a background thread, once the changed resources have been quiet for the debounce period.
+     *
+     * @param resources the resources that were modified, created or deleted
+     */
+    void templatesChanged(Set<Resource> resources);
+}
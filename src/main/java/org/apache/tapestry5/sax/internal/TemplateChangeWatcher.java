@@ -0,0 +1,26 @@
+package org.apache.tapestry5.sax.internal;
+
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * Event driven source of template change notifications; an alternative to periodically checking the timestamp of
+ * every template.
+ */
+public interface TemplateChangeWatcher
+{
+    /**
+     * Starts watching the resource for changes.
+     *
+     * @return true if the resource is being watched, false if changes to it can not be detected (for example, it is
+     *         not a file)
+     */
+    boolean watch(Resource resource);
+
+    /**
+     * Returns true if a change to the resource has been observed, but listeners have not yet been notified (because
+     * further changes may follow).
+     */
+    boolean isPending(Resource resource);
+
+    void addChangeListener(TemplateChangeListener listener);
+}
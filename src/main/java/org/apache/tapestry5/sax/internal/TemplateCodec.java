@@ -0,0 +1,451 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tapestry5.internal.parser.AttributeToken;
+import org.apache.tapestry5.internal.parser.BlockToken;
+import org.apache.tapestry5.internal.parser.BodyToken;
+import org.apache.tapestry5.internal.parser.CDATAToken;
+import org.apache.tapestry5.internal.parser.CommentToken;
+import org.apache.tapestry5.internal.parser.DTDToken;
+import org.apache.tapestry5.internal.parser.DefineNamespacePrefixToken;
+import org.apache.tapestry5.internal.parser.EndElementToken;
+import org.apache.tapestry5.internal.parser.ExpansionToken;
+import org.apache.tapestry5.internal.parser.ExtensionPointToken;
+import org.apache.tapestry5.internal.parser.ParameterToken;
+import org.apache.tapestry5.internal.parser.StartComponentToken;
+import org.apache.tapestry5.internal.parser.StartElementToken;
+import org.apache.tapestry5.internal.parser.TemplateToken;
+import org.apache.tapestry5.internal.parser.TextToken;
+import org.apache.tapestry5.internal.parser.TokenType;
+import org.apache.tapestry5.ioc.Location;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.ioc.internal.util.LocationImpl;
+
+/**
+ * Converts parsed templates to and from a compact binary form, used by the precompiled {@link TemplateArchive}.
+ * Locations are stored as line numbers only; the resource is supplied when the template is decoded. Each distinct
+ * string is written once per template, later occurrences refer back to it.
+ */
+final class TemplateCodec
+{
+    private static final String UTF8 = "UTF-8";
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private TemplateCodec()
+    {
+    }
+
+    static byte[] encode(SaxComponentTemplate template)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try
+        {
+            new Encoder(new DataOutputStream(bytes)).write(template);
+        }
+        catch (IOException ex)
+        {
+            // Not possible when writing to a byte array.
+
+            throw new RuntimeException(ex);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param interner used to intern expansion expressions, so that they are shared with other templates
+     */
+    static SaxComponentTemplate decode(byte[] data, Resource resource, long contentHash, StringInterner interner)
+            throws IOException
+    {
+        return new Decoder(new DataInputStream(new ByteArrayInputStream(data)), resource, interner).read(contentHash);
+    }
+
+    private static final class Encoder
+    {
+        private final DataOutputStream out;
+
+        private final Map<String, Integer> strings = CollectionFactory.newMap();
+
+        Encoder(DataOutputStream out)
+        {
+            this.out = out;
+        }
+
+        void write(SaxComponentTemplate template) throws IOException
+        {
+            out.writeBoolean(template.isExtension());
+
+            writeTokens(template.getTokens());
+
+            Map<String, Location> componentIds = template.getComponentIds();
+
+            out.writeInt(componentIds.size());
+
+            for (Map.Entry<String, Location> entry : componentIds.entrySet())
+            {
+                writeString(entry.getKey());
+                writeLocation(entry.getValue());
+            }
+
+            Map<String, List<TemplateToken>> overrides = template.getOverrides();
+
+            out.writeInt(overrides == null ? -1 : overrides.size());
+
+            if (overrides == null) return;
+
+            for (Map.Entry<String, List<TemplateToken>> entry : overrides.entrySet())
+            {
+                writeString(entry.getKey());
+                writeTokens(entry.getValue());
+            }
+        }
+
+        private void writeTokens(List<TemplateToken> tokens) throws IOException
+        {
+            out.writeInt(tokens.size());
+
+            for (TemplateToken token : tokens)
+                writeToken(token);
+        }
+
+        private void writeToken(TemplateToken token) throws IOException
+        {
+            TokenType type = token.getTokenType();
+
+            out.writeByte(type.ordinal());
+
+            writeLocation(token.getLocation());
+
+            switch (type)
+            {
+                case ATTRIBUTE:
+
+                    AttributeToken attribute = (AttributeToken) token;
+
+                    writeString(attribute.getNamespaceURI());
+                    writeString(attribute.getName());
+                    writeString(attribute.getValue());
+
+                    int[] bounds = attribute instanceof ScannedAttributeToken
+                                   ? ((ScannedAttributeToken) attribute).getExpansionBounds()
+                                   : ScannedAttributeToken.scan(attribute.getValue());
+
+                    out.writeInt(bounds.length);
+
+                    for (int bound : bounds)
+                        out.writeInt(bound);
+
+                    break;
+
+                case CDATA:
+
+                    writeString(((CDATAToken) token).getContent());
+                    break;
+
+                case COMMENT:
+
+                    writeString(((CommentToken) token).getComment());
+                    break;
+
+                case START_COMPONENT:
+
+                    StartComponentToken component = (StartComponentToken) token;
+
+                    writeString(component.getElementName());
+                    writeString(component.getId());
+                    writeString(component.getComponentType());
+                    writeString(component.getMixins());
+                    break;
+
+                case START_ELEMENT:
+
+                    StartElementToken element = (StartElementToken) token;
+
+                    writeString(element.getNamespaceURI());
+                    writeString(element.getName());
+                    break;
+
+                case TEXT:
+
+                    writeString(((TextToken) token).getText());
+                    break;
+
+                case EXPANSION:
+
+                    writeString(((ExpansionToken) token).getExpression());
+                    break;
+
+                case PARAMETER:
+
+                    writeString(((ParameterToken) token).getName());
+                    break;
+
+                case BLOCK:
+
+                    writeString(((BlockToken) token).getId());
+                    break;
+
+                case DTD:
+
+                    DTDToken dtd = (DTDToken) token;
+
+                    writeString(dtd.getName());
+                    writeString(dtd.getPublicId());
+                    writeString(dtd.getSystemId());
+                    break;
+
+                case DEFINE_NAMESPACE_PREFIX:
+
+                    DefineNamespacePrefixToken prefix = (DefineNamespacePrefixToken) token;
+
+                    writeString(prefix.getNamespaceURI());
+                    writeString(prefix.getNamespacePrefix());
+                    break;
+
+                case EXTENSION_POINT:
+
+                    writeString(((ExtensionPointToken) token).getExtentionPointId());
+                    break;
+
+                default:
+
+                    // END_ELEMENT and BODY have no content beyond their location.
+            }
+        }
+
+        private void writeLocation(Location location) throws IOException
+        {
+            out.writeInt(location == null ? -1 : location.getLine());
+        }
+
+        /**
+         * Writes 0 for null, the (1 based) index of a string already written, or -1 followed by the UTF-8 length and
+         * bytes of a new string.
+         */
+        private void writeString(String value) throws IOException
+        {
+            if (value == null)
+            {
+                out.writeInt(0);
+                return;
+            }
+
+            Integer index = strings.get(value);
+
+            if (index != null)
+            {
+                out.writeInt(index);
+                return;
+            }
+
+            strings.put(value, strings.size() + 1);
+
+            byte[] bytes = value.getBytes(UTF8);
+
+            out.writeInt(-1);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static final class Decoder
+    {
+        private final DataInputStream in;
+
+        private final Resource resource;
+
+        private final StringInterner interner;
+
+        private final List<String> strings = CollectionFactory.newList();
+
+        private final Map<Integer, Location> locations = CollectionFactory.newMap();
+
+        Decoder(DataInputStream in, Resource resource, StringInterner interner)
+        {
+            this.in = in;
+            this.resource = resource;
+            this.interner = interner;
+        }
+
+        SaxComponentTemplate read(long contentHash) throws IOException
+        {
+            boolean extension = in.readBoolean();
+
+            List<TemplateToken> tokens = readTokens();
+
+            Map<String, Location> componentIds = CollectionFactory.newCaseInsensitiveMap();
+
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++)
+            {
+                String id = readString();
+
+                componentIds.put(id, readLocation());
+            }
+
+            Map<String, List<TemplateToken>> overrides = null;
+
+            count = in.readInt();
+
+            if (count >= 0)
+            {
+                overrides = CollectionFactory.newCaseInsensitiveMap();
+
+                for (int i = 0; i < count; i++)
+                {
+                    String id = readString();
+
+                    overrides.put(id, readTokens());
+                }
+            }
+
+            return new SaxComponentTemplate(resource, tokens, componentIds, extension, overrides, contentHash);
+        }
+
+        private List<TemplateToken> readTokens() throws IOException
+        {
+            int count = in.readInt();
+
+            List<TemplateToken> result = CollectionFactory.newList();
+
+            for (int i = 0; i < count; i++)
+                result.add(readToken());
+
+            return result;
+        }
+
+        private TemplateToken readToken() throws IOException
+        {
+            int ordinal = in.readUnsignedByte();
+
+            if (ordinal >= TOKEN_TYPES.length)
+                throw new IOException(String.format("Unknown token type #%d.", ordinal));
+
+            Location location = readLocation();
+
+            switch (TOKEN_TYPES[ordinal])
+            {
+                case ATTRIBUTE:
+
+                    String namespaceURI = readString();
+                    String name = readString();
+                    String value = readString();
+
+                    int[] bounds = new int[in.readInt()];
+
+                    for (int i = 0; i < bounds.length; i++)
+                        bounds[i] = in.readInt();
+
+                    return new ScannedAttributeToken(namespaceURI, name, value, location, bounds);
+
+                case CDATA:
+
+                    return new CDATAToken(readString(), location);
+
+                case COMMENT:
+
+                    return new CommentToken(readString(), location);
+
+                case END_ELEMENT:
+
+                    return new EndElementToken(location);
+
+                case START_COMPONENT:
+
+                    return new StartComponentToken(readString(), readString(), readString(), readString(), location);
+
+                case START_ELEMENT:
+
+                    return new StartElementToken(readString(), readString(), location);
+
+                case TEXT:
+
+                    return new TextToken(readString(), location);
+
+                case BODY:
+
+                    return new BodyToken(location);
+
+                case EXPANSION:
+
+                    return new SplitExpansionToken(readString(), location, interner);
+
+                case PARAMETER:
+
+                    return new ParameterToken(readString(), location);
+
+                case BLOCK:
+
+                    return new BlockToken(readString(), location);
+
+                case DTD:
+
+                    return new DTDToken(readString(), readString(), readString(), location);
+
+                case DEFINE_NAMESPACE_PREFIX:
+
+                    return new DefineNamespacePrefixToken(readString(), readString(), location);
+
+                default:
+
+                    return new ExtensionPointToken(readString(), location);
+            }
+        }
+
+        private Location readLocation() throws IOException
+        {
+            int line = in.readInt();
+
+            if (line < 0) return null;
+
+            // Like the parser, tokens on the same line share a location.
+
+            Location result = locations.get(line);
+
+            if (result == null)
+            {
+                result = new LocationImpl(resource, line);
+                locations.put(line, result);
+            }
+
+            return result;
+        }
+
+        private String readString() throws IOException
+        {
+            int reference = in.readInt();
+
+            if (reference == 0) return null;
+
+            if (reference > 0)
+            {
+                if (reference > strings.size())
+                    throw new IOException(String.format("Invalid string reference #%d.", reference));
+
+                return strings.get(reference - 1);
+            }
+
+            byte[] bytes = new byte[in.readInt()];
+
+            in.readFully(bytes);
+
+            String result = new String(bytes, UTF8);
+
+            strings.add(result);
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.InternalUtils;
+import org.xml.sax.InputSource;
+
+/**
+ * Reads the raw content of templates, and decodes it for the XML parser.
+ */
+final class TemplateContent
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Only this much of the content is searched for the end of the XML declaration.
+     */
+    private static final int MAX_DECLARATION_LENGTH = 256;
+
+    private static final Pattern ENCODING_PATTERN = Pattern.compile(
+            "^<\\?xml\\s[^>]*?\\bencoding\\s*=\\s*([\"'])([A-Za-z][A-Za-z0-9._\\-]*)\\1");
+
+    private static final byte[] TAPESTRY = { 't', 'a', 'p', 'e', 's', 't', 'r', 'y' };
+
+    private TemplateContent()
+    {
+    }
+
+    /**
+     * Reads the complete content of the resource. Files are read with a single bulk read into an array of exactly the
+     * right size; other resources are read from their stream. Either way, the file or stream is closed before this
+     * returns, whether or not the read succeeds.
+     */
+    static byte[] read(Resource resource) throws IOException
+    {
+        File file = toFile(resource.toURL());
+
+        return file == null ? read(resource.openStream()) : read(file);
+    }
+
+    private static File toFile(URL url)
+    {
+        if (url == null || !url.getProtocol().equals("file")) return null;
+
+        try
+        {
+            return new File(url.toURI());
+        }
+        catch (URISyntaxException ex)
+        {
+            return null;
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // A URI with an authority, query or fragment doesn't identify a file.
+
+            return null;
+        }
+    }
+
+    private static byte[] read(File file) throws IOException
+    {
+        FileInputStream stream = new FileInputStream(file);
+
+        try
+        {
+            FileChannel channel = stream.getChannel();
+
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE) throw new IOException(String.format("File %s is too large.", file));
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer) < 0) break;
+            }
+
+            // If the file grew while being read, the rest is read as a stream.
+
+            if (!buffer.hasRemaining() && channel.position() < channel.size())
+            {
+                ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+                result.write(buffer.array(), 0, buffer.position());
+
+                copy(stream, result);
+
+                return result.toByteArray();
+            }
+
+            if (buffer.hasRemaining())
+            {
+                byte[] result = new byte[buffer.position()];
+
+                System.arraycopy(buffer.array(), 0, result, 0, result.length);
+
+                return result;
+            }
+
+            return buffer.array();
+        }
+        finally
+        {
+            InternalUtils.close(stream);
+        }
+    }
+
+    /**
+     * Reads the complete content of the stream, then closes it.
+     */
+    static byte[] read(InputStream stream) throws IOException
+    {
+        try
+        {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+            copy(stream, result);
+
+            return result.toByteArray();
+        }
+        finally
+        {
+            InternalUtils.close(stream);
+        }
+    }
+
+    private static void copy(InputStream stream, ByteArrayOutputStream result) throws IOException
+    {
+        byte[] buffer = new byte[8192];
+
+        while (true)
+        {
+            int length = stream.read(buffer);
+
+            if (length < 0) break;
+
+            result.write(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Returns an input source for the content. Where possible, the encoding is determined here (from the byte order
+     * mark or the XML declaration, defaulting to UTF-8) and the parser is given the decoded characters; otherwise (an
+     * unusual or unsupported encoding, or content that is not valid in its encoding), the parser is given the bytes,
+     * to detect the encoding and report any errors itself.
+     */
+    static InputSource newInputSource(byte[] content)
+    {
+        char[] characters = decode(content);
+
+        if (characters == null) return new InputSource(new ByteArrayInputStream(content));
+
+        return new InputSource(new CharArrayReader(characters));
+    }
+
+    private static char[] decode(byte[] content)
+    {
+        if (startsWith(content, 0x00, 0x00, 0xFE, 0xFF) || startsWith(content, 0xFF, 0xFE, 0x00, 0x00))
+            return null;
+
+        if (startsWith(content, 0xEF, 0xBB, 0xBF)) return decodeUTF8(content, 3);
+
+        if (startsWith(content, 0xFE, 0xFF)) return decode(content, 2, Charset.forName("UTF-16BE"));
+
+        if (startsWith(content, 0xFF, 0xFE)) return decode(content, 2, Charset.forName("UTF-16LE"));
+
+        // Without a byte order mark, the content must start with an ASCII '<' or whitespace for its
+        // declaration to be read here.
+
+        if (!startsWithMarkup(content)) return null;
+
+        String encoding = getDeclaredEncoding(content);
+
+        if (encoding == null || encoding.equalsIgnoreCase("UTF-8")) return decodeUTF8(content, 0);
+
+        try
+        {
+            return decode(content, 0, Charset.forName(encoding));
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // Unknown or unsupported.
+
+            return null;
+        }
+    }
+
+    /**
+     * A quick check, on the raw bytes, for templates that never mention a Tapestry namespace (all of whose URIs contain
+     * "tapestry"), and so can contain nothing but ordinary elements, attributes, text and expansions. Content in an
+     * encoding that is not ASCII compatible is never plain.
+     */
+    static boolean isPlainMarkup(byte[] content)
+    {
+        if (!startsWith(content, 0xEF, 0xBB, 0xBF) && !startsWithMarkup(content)) return false;
+
+        // "tapestry" may appear in any case in ordinary text, but namespace URIs are lower case.
+
+        int last = content.length - TAPESTRY.length;
+
+        for (int i = 0; i <= last; i++)
+        {
+            if (content[i] != 't') continue;
+
+            int j = 1;
+
+            while (j < TAPESTRY.length && content[i + j] == TAPESTRY[j])
+                j++;
+
+            if (j == TAPESTRY.length) return false;
+        }
+
+        return true;
+    }
+
+    private static boolean startsWithMarkup(byte[] content)
+    {
+        if (content.length == 0) return false;
+
+        byte b = content[0];
+
+        return b == '<' || b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static boolean startsWith(byte[] content, int... bytes)
+    {
+        if (content.length < bytes.length) return false;
+
+        for (int i = 0; i < bytes.length; i++)
+        {
+            if ((content[i] & 0xff) != bytes[i]) return false;
+        }
+
+        return true;
+    }
+
+    private static String getDeclaredEncoding(byte[] content)
+    {
+        int length = Math.min(content.length, MAX_DECLARATION_LENGTH);
+
+        // The declaration is ASCII in any encoding that reaches this point.
+
+        char[] declaration = new char[length];
+
+        for (int i = 0; i < length; i++)
+            declaration[i] = (char) (content[i] & 0xff);
+
+        Matcher matcher = ENCODING_PATTERN.matcher(CharBuffer.wrap(declaration));
+
+        return matcher.find() ? matcher.group(2) : null;
+    }
+
+    /**
+     * Decodes UTF-8, copying ASCII characters directly; most templates are ASCII, or very nearly so.
+     */
+    private static char[] decodeUTF8(byte[] content, int offset)
+    {
+        int length = content.length - offset;
+
+        // Each UTF-8 byte decodes to at most one character.
+
+        char[] result = new char[length];
+
+        int i = 0;
+
+        while (i < length)
+        {
+            byte b = content[offset + i];
+
+            if (b < 0) break;
+
+            result[i++] = (char) b;
+        }
+
+        if (i == length) return result;
+
+        CharsetDecoder decoder = UTF_8.newDecoder();
+
+        CharBuffer output = CharBuffer.wrap(result, i, length - i);
+
+        CoderResult coderResult = decoder.decode(ByteBuffer.wrap(content, offset + i, length - i), output, true);
+
+        if (coderResult.isError() || decoder.flush(output).isError()) return null;
+
+        char[] trimmed = new char[output.position()];
+
+        System.arraycopy(result, 0, trimmed, 0, trimmed.length);
+
+        return trimmed;
+    }
+
+    private static char[] decode(byte[] content, int offset, Charset charset)
+    {
+        try
+        {
+            CharBuffer buffer = charset.newDecoder().decode(ByteBuffer.wrap(content, offset, content.length - offset));
+
+            char[] result = new char[buffer.remaining()];
+
+            buffer.get(result);
+
+            return result;
+        }
+        catch (CharacterCodingException ex)
+        {
+            return null;
+        }
+    }
+}
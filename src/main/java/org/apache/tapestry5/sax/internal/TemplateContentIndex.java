@@ -0,0 +1,126 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+
+/**
+ * Remembers the template parsed for each distinct content, so that byte-for-byte identical templates (such as
+ * localized variants that were never actually translated, or copies of a template in several libraries) are only
+ * parsed once. Content is identified by its SHA-256 digest (unlike the {@link ContentHash}, collision resistant), so
+ * the content itself is not retained. The index is cleared whenever templates are invalidated, which discards the
+ * entries of deleted and renamed templates.
+ */
+class TemplateContentIndex
+{
+    private static final class ContentKey
+    {
+        private final byte[] digest;
+
+        private final int hashCode;
+
+        ContentKey(byte[] digest)
+        {
+            this.digest = digest;
+
+            hashCode = Arrays.hashCode(digest);
+        }
+
+        public int hashCode()
+        {
+            return hashCode;
+        }
+
+        public boolean equals(Object obj)
+        {
+            return obj instanceof ContentKey && Arrays.equals(digest, ((ContentKey) obj).digest);
+        }
+    }
+
+    private final ConcurrentMap<ContentKey, SaxComponentTemplate> templates = CollectionFactory.newConcurrentMap();
+
+    /**
+     * The content last seen for each resource, used to discard the templates for content that no longer exists.
+     */
+    private final ConcurrentMap<Resource, ContentKey> contentByResource = CollectionFactory.newConcurrentMap();
+
+    /**
+     * Returns the SHA-256 digest of the content, which identifies it to {@link #get(Resource, byte[])} and {@link
+     * #put(SaxComponentTemplate, byte[])}.
+     */
+    static byte[] digest(byte[] content)
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            // Every Java platform is required to support SHA-256.
+
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Returns a template for the resource if the same content has already been parsed (from this or any other
+     * resource). The template's tokens are located in the requested resource.
+     *
+     * @param digest the {@linkplain #digest(byte[]) digest} of the resource's content
+     * @return the template, or null if the content must be parsed
+     */
+    SaxComponentTemplate get(Resource resource, byte[] digest)
+    {
+        ContentKey key = new ContentKey(digest);
+
+        ContentKey previous = contentByResource.put(resource, key);
+
+        if (previous != null && !previous.equals(key))
+            discard(previous, resource);
+
+        SaxComponentTemplate template = templates.get(key);
+
+        if (template == null) return null;
+
+        return template.getResource().equals(resource) ? template : TemplateTokens.relocate(template, resource);
+    }
+
+    /**
+     * Records a newly parsed template.
+     *
+     * @param digest the {@linkplain #digest(byte[]) digest} of the content it was parsed from
+     */
+    void put(SaxComponentTemplate template, byte[] digest)
+    {
+        templates.putIfAbsent(new ContentKey(digest), template);
+    }
+
+    private void discard(ContentKey key, Resource resource)
+    {
+        SaxComponentTemplate template = templates.get(key);
+
+        // Only when the template was parsed from this resource; identical copies elsewhere will
+        // re-register the content the next time they are parsed.
+
+        if (template != null && template.getResource().equals(resource))
+            templates.remove(key, template);
+    }
+
+    /**
+     * Forgets all content.
+     */
+    void clear()
+    {
+        templates.clear();
+        contentByResource.clear();
+    }
+
+    int getContentCount()
+    {
+        return templates.size();
+    }
+}
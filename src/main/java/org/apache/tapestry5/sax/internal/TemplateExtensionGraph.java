@@ -0,0 +1,49 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Set;
+
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * Records which templates extend (via &lt;t:extend&gt;) which others. The graph is maintained incrementally: the
+ * parser records each template as it is parsed, and the parent of an extension template is recorded when Tapestry
+ * first asks for the extension template (the parent is the template of the component's base class, which is not
+ * known to the template itself).
+ * <p/>
+ * Change listeners added to the graph are informed of changed templates plus every template that directly or
+ * indirectly extends them.
+ */
+public interface TemplateExtensionGraph
+{
+    /**
+     * Records (or re-records) a freshly parsed template.
+     *
+     * @param resource          the template resource
+     * @param extension         true if the template's root element is &lt;t:extend&gt;
+     * @param extensionPointIds ids of the &lt;t:extension-point&gt; elements within the template
+     */
+    void templateParsed(Resource resource, boolean extension, Set<String> extensionPointIds);
+
+    /**
+     * Records that the extension template extends the parent template.
+     */
+    void extensionResolved(Resource extension, Resource parent);
+
+    /**
+     * Returns the template extended by the extension template, or null if it is not an extension template or its
+     * parent has not been recorded yet.
+     */
+    Resource getParent(Resource extension);
+
+    /**
+     * Returns the extension point ids defined by the template, or an empty set if the template has not been parsed.
+     */
+    Set<String> getExtensionPointIds(Resource resource);
+
+    /**
+     * Returns all templates that directly or indirectly extend the template.
+     */
+    Set<Resource> getDependents(Resource resource);
+
+    void addChangeListener(TemplateChangeListener listener);
+}
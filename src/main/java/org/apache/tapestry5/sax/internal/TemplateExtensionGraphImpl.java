@@ -0,0 +1,155 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.slf4j.Logger;
+
+public class TemplateExtensionGraphImpl implements TemplateExtensionGraph, TemplateChangeListener
+{
+    private final Logger logger;
+
+    private final Map<Resource, Node> nodes = CollectionFactory.newMap();
+
+    private final List<TemplateChangeListener> listeners = CollectionFactory.newThreadSafeList();
+
+    private static class Node
+    {
+        boolean extension;
+
+        Set<String> extensionPointIds = Collections.emptySet();
+
+        Resource parent;
+
+        final Set<Resource> children = CollectionFactory.newSet();
+    }
+
+    public TemplateExtensionGraphImpl(Logger logger)
+    {
+        this.logger = logger;
+    }
+
+    public synchronized void templateParsed(Resource resource, boolean extension, Set<String> extensionPointIds)
+    {
+        Node node = getNode(resource);
+
+        node.extension = extension;
+        node.extensionPointIds = Collections.unmodifiableSet(CollectionFactory.<String, String>newSet(extensionPointIds));
+
+        // The parent is determined by the component class, so it only changes if the template stops
+        // being an extension.
+
+        if (!extension)
+            detachFromParent(resource, node);
+    }
+
+    public synchronized void extensionResolved(Resource extension, Resource parent)
+    {
+        Node node = getNode(extension);
+
+        if (parent.equals(node.parent)) return;
+
+        detachFromParent(extension, node);
+
+        node.extension = true;
+        node.parent = parent;
+
+        getNode(parent).children.add(extension);
+    }
+
+    private void detachFromParent(Resource resource, Node node)
+    {
+        if (node.parent == null) return;
+
+        Node parentNode = nodes.get(node.parent);
+
+        if (parentNode != null)
+            parentNode.children.remove(resource);
+
+        node.parent = null;
+    }
+
+    private Node getNode(Resource resource)
+    {
+        Node node = nodes.get(resource);
+
+        if (node == null)
+        {
+            node = new Node();
+            nodes.put(resource, node);
+        }
+
+        return node;
+    }
+
+    public synchronized Resource getParent(Resource extension)
+    {
+        Node node = nodes.get(extension);
+
+        return node == null ? null : node.parent;
+    }
+
+    public synchronized Set<String> getExtensionPointIds(Resource resource)
+    {
+        Node node = nodes.get(resource);
+
+        return node == null ? Collections.<String>emptySet() : node.extensionPointIds;
+    }
+
+    public synchronized Set<Resource> getDependents(Resource resource)
+    {
+        Set<Resource> result = CollectionFactory.newSet();
+
+        addDependents(resource, result);
+
+        return result;
+    }
+
+    private void addDependents(Resource resource, Set<Resource> result)
+    {
+        Node node = nodes.get(resource);
+
+        if (node == null) return;
+
+        for (Resource child : node.children)
+        {
+            // Guard against cycles; they would be an error in the component class hierarchy
+            // but shouldn't hang us.
+
+            if (result.add(child))
+                addDependents(child, result);
+        }
+    }
+
+    public void addChangeListener(TemplateChangeListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void templatesChanged(Set<Resource> resources)
+    {
+        Set<Resource> affected = CollectionFactory.newSet(resources);
+
+        synchronized (this)
+        {
+            for (Resource resource : resources)
+                addDependents(resource, affected);
+        }
+
+        for (TemplateChangeListener listener : listeners)
+        {
+            try
+            {
+                listener.templatesChanged(affected);
+            }
+            catch (RuntimeException ex)
+            {
+                logger.error(SaxParserMessages.changeListenerFailure(listener, ex), ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.apache.tapestry5.sax.internal;
+
+/**
+ * Limits on the size of a single template, so that a malformed or generated template fails quickly rather than tying
+ * up a thread and the heap. A template that exceeds any limit fails to parse, with the location at which the limit was
+ * reached. For each limit, 0 means no limit.
+ *
+ * @see SaxParserSymbols#MAX_ELEMENT_DEPTH
+ * @see SaxParserSymbols#MAX_TOKENS
+ * @see SaxParserSymbols#MAX_TEXT_LENGTH
+ * @see SaxParserSymbols#MAX_ENTITY_EXPANSIONS
+ */
+public final class TemplateLimits
+{
+    public static final TemplateLimits UNLIMITED = new TemplateLimits(0, 0, 0, 0);
+
+    private final int maxElementDepth;
+
+    private final int maxTokens;
+
+    private final int maxTextLength;
+
+    private final int maxEntityExpansions;
+
+    public TemplateLimits(int maxElementDepth, int maxTokens, int maxTextLength, int maxEntityExpansions)
+    {
+        this.maxElementDepth = maxElementDepth;
+        this.maxTokens = maxTokens;
+        this.maxTextLength = maxTextLength;
+        this.maxEntityExpansions = maxEntityExpansions;
+    }
+
+    /**
+     * The maximum number of elements (including Tapestry elements) open at once.
+     */
+    public int getMaxElementDepth()
+    {
+        return maxElementDepth;
+    }
+
+    /**
+     * The maximum number of tokens in the template, including those of any overrides.
+     */
+    public int getMaxTokens()
+    {
+        return maxTokens;
+    }
+
+    /**
+     * The maximum length, in characters, of a single text node or CDATA section.
+     */
+    public int getMaxTextLength()
+    {
+        return maxTextLength;
+    }
+
+    /**
+     * The maximum number of entity references the XML parser expands (including references inside the replacement text
+     * of other entities); 0 leaves the XML parser's own limit in place. Enforced by the {@link TemplateReader}.
+     */
+    public int getMaxEntityExpansions()
+    {
+        return maxEntityExpansions;
+    }
+}
@@ -0,0 +1,54 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.concurrent.Future;
+
+import org.apache.tapestry5.ioc.Invokable;
+
+/**
+ * Limits the number of template parses that may run concurrently. Parses in excess of the limit wait their turn in
+ * first-come, first-served order.
+ *
+ * @see SaxParserSymbols#MAX_CONCURRENT_PARSES
+ */
+public interface TemplateParseScheduler
+{
+    /**
+     * Runs the parse in the current thread, once a slot is available.
+     */
+    <T> T execute(Invokable<T> parse);
+
+    /**
+     * Queues the parse to run in a background thread once a slot is available.
+     */
+    <T> Future<T> submit(Invokable<T> parse);
+
+    /**
+     * The maximum number of concurrent parses.
+     */
+    int getMaxConcurrentParses();
+
+    /**
+     * The number of parses waiting for a slot.
+     */
+    int getQueueDepth();
+
+    /**
+     * The number of parses currently running.
+     */
+    int getActiveParses();
+
+    /**
+     * The number of parses that have obtained a slot since startup.
+     */
+    long getScheduledParses();
+
+    /**
+     * Average time, in milliseconds, that a parse has waited for a slot.
+     */
+    double getAverageWaitMillis();
+
+    /**
+     * Longest time, in milliseconds, that a parse has waited for a slot.
+     */
+    double getMaxWaitMillis();
+}
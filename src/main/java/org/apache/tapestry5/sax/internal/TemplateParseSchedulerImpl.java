@@ -0,0 +1,201 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tapestry5.ioc.Invokable;
+import org.apache.tapestry5.ioc.services.RegistryShutdownListener;
+import org.slf4j.Logger;
+
+public class TemplateParseSchedulerImpl implements TemplateParseScheduler, RegistryShutdownListener
+{
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    private final int maxConcurrentParses;
+
+    /**
+     * Fair, so that waiting parses are granted slots in the order they arrived.
+     */
+    private final Semaphore slots;
+
+    private final ExecutorService executor;
+
+    /**
+     * Set while the current thread holds a slot, so that a nested parse (for example, a background re-parse that
+     * calls into the parser) runs in the slot already held rather than waiting for a second one.
+     */
+    private final ThreadLocal<Boolean> holdingSlot = new ThreadLocal<Boolean>();
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    private final AtomicInteger activeParses = new AtomicInteger();
+
+    private final AtomicLong scheduledParses = new AtomicLong();
+
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public TemplateParseSchedulerImpl(int maxConcurrentParses, boolean useVirtualThreads, Logger logger)
+    {
+        this.maxConcurrentParses = maxConcurrentParses > 0
+                                   ? maxConcurrentParses
+                                   : Runtime.getRuntime().availableProcessors();
+
+        slots = new Semaphore(this.maxConcurrentParses, true);
+
+        ExecutorService virtualThreadExecutor = useVirtualThreads ? createVirtualThreadExecutor() : null;
+
+        if (useVirtualThreads && virtualThreadExecutor == null)
+            logger.warn(SaxParserMessages.virtualThreadsUnavailable());
+
+        // Background parses on platform threads never need more threads than there are slots.
+
+        executor = virtualThreadExecutor != null
+                   ? virtualThreadExecutor
+                   : Executors.newFixedThreadPool(this.maxConcurrentParses, new ParserThreadFactory());
+    }
+
+    /**
+     * Virtual threads are only available in newer JVMs, so they are obtained reflectively.
+     *
+     * @return the executor, or null if virtual threads are not supported
+     */
+    private static ExecutorService createVirtualThreadExecutor()
+    {
+        try
+        {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+            return (ExecutorService) method.invoke(null);
+        }
+        catch (Exception ex)
+        {
+            return null;
+        }
+    }
+
+    public <T> T execute(Invokable<T> parse)
+    {
+        if (holdingSlot.get() != null) return parse.invoke();
+
+        queueDepth.incrementAndGet();
+
+        return run(parse, System.nanoTime());
+    }
+
+    public <T> Future<T> submit(final Invokable<T> parse)
+    {
+        final long queuedAt = System.nanoTime();
+
+        queueDepth.incrementAndGet();
+
+        return executor.submit(new Callable<T>()
+        {
+            public T call() throws Exception
+            {
+                return run(parse, queuedAt);
+            }
+        });
+    }
+
+    private <T> T run(Invokable<T> parse, long queuedAt)
+    {
+        try
+        {
+            slots.acquireUninterruptibly();
+        }
+        finally
+        {
+            queueDepth.decrementAndGet();
+        }
+
+        recordWait(System.nanoTime() - queuedAt);
+
+        activeParses.incrementAndGet();
+        holdingSlot.set(true);
+
+        try
+        {
+            return parse.invoke();
+        }
+        finally
+        {
+            holdingSlot.remove();
+            activeParses.decrementAndGet();
+
+            slots.release();
+        }
+    }
+
+    private void recordWait(long waitNanos)
+    {
+        scheduledParses.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+
+        while (true)
+        {
+            long max = maxWaitNanos.get();
+
+            if (waitNanos <= max || maxWaitNanos.compareAndSet(max, waitNanos)) return;
+        }
+    }
+
+    public int getMaxConcurrentParses()
+    {
+        return maxConcurrentParses;
+    }
+
+    public int getQueueDepth()
+    {
+        return queueDepth.get();
+    }
+
+    public int getActiveParses()
+    {
+        return activeParses.get();
+    }
+
+    public long getScheduledParses()
+    {
+        return scheduledParses.get();
+    }
+
+    public double getAverageWaitMillis()
+    {
+        long count = scheduledParses.get();
+
+        return count == 0 ? 0 : totalWaitNanos.get() / NANOS_PER_MILLI / count;
+    }
+
+    public double getMaxWaitMillis()
+    {
+        return maxWaitNanos.get() / NANOS_PER_MILLI;
+    }
+
+    public void registryDidShutdown()
+    {
+        executor.shutdown();
+    }
+
+    private static class ParserThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "TemplateParser-" + threadNumber.incrementAndGet());
+
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.tapestry5.SymbolConstants;
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.ClasspathResource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.ioc.internal.util.InternalUtils;
+import org.apache.tapestry5.ioc.internal.util.TapestryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parses all templates (files ending in ".tml") under a classes directory at build time, and writes them to a {@link
+ * TemplateArchive} which is packaged with the classes. At runtime, {@link PrecompiledTemplateParser} takes templates
+ * from the archive, so they need not be parsed at all; a template whose source no longer matches the archived version
+ * is parsed as usual.
+ * <p/>
+ * Templates that fail to parse are left out of the archive (and will fail, with the usual exception, when used).
+ * Whitespace is compressed unless system property <code>tapestry.compress-whitespace</code> is "false", and templates
+ * are minified if system property <code>tapestry.sax-parser.minify-templates</code> is "true"; these must match the
+ * application's configuration, or the archive is ignored. Likewise, elements an application contributes to {@link
+ * WhitespacePreservation} must be listed (comma separated) in system property
+ * <code>tapestry.sax-parser.preserve-whitespace-elements</code>. The precompiler is typically run after the
+ * process-classes phase using the exec-maven-plugin:
+ * <pre>
+ * &lt;plugin&gt;
+ *   &lt;groupId&gt;org.codehaus.mojo&lt;/groupId&gt;
+ *   &lt;artifactId&gt;exec-maven-plugin&lt;/artifactId&gt;
+ *   &lt;executions&gt;
+ *     &lt;execution&gt;
+ *       &lt;id&gt;precompile-templates&lt;/id&gt;
+ *       &lt;phase&gt;process-classes&lt;/phase&gt;
+ *       &lt;goals&gt;&lt;goal&gt;java&lt;/goal&gt;&lt;/goals&gt;
+ *       &lt;configuration&gt;
+ *         &lt;mainClass&gt;org.apache.tapestry5.sax.internal.TemplatePrecompiler&lt;/mainClass&gt;
+ *         &lt;arguments&gt;&lt;argument&gt;${project.build.outputDirectory}&lt;/argument&gt;&lt;/arguments&gt;
+ *       &lt;/configuration&gt;
+ *     &lt;/execution&gt;
+ *   &lt;/executions&gt;
+ * &lt;/plugin&gt;
+ * </pre>
+ */
+public class TemplatePrecompiler
+{
+    private static final String TEMPLATE_EXTENSION = ".tml";
+
+    /**
+     * System property listing (comma separated) the elements an application contributes to {@link
+     * WhitespacePreservation}, in addition to the defaults.
+     */
+    private static final String PRESERVED_ELEMENTS_PROPERTY = "tapestry.sax-parser.preserve-whitespace-elements";
+
+    private final File classesDirectory;
+
+    private final boolean compressWhitespace;
+
+    private final boolean minify;
+
+    private final WhitespacePreservation whitespacePreservation;
+
+    private final Logger logger;
+
+    public TemplatePrecompiler(File classesDirectory, boolean compressWhitespace, boolean minify,
+            WhitespacePreservation whitespacePreservation, Logger logger)
+    {
+        this.classesDirectory = classesDirectory;
+        this.compressWhitespace = compressWhitespace;
+        this.minify = minify;
+        this.whitespacePreservation = whitespacePreservation;
+        this.logger = logger;
+    }
+
+    /**
+     * Parses the templates and writes the archive.
+     *
+     * @param archiveFile the archive to write (normally {@link TemplateArchive#PATH} within the classes directory)
+     * @return the number of templates written to the archive
+     */
+    public int precompile(File archiveFile) throws IOException
+    {
+        List<String> paths = CollectionFactory.newList();
+
+        findTemplates(classesDirectory, "", paths);
+
+        ClassLoader loader = new URLClassLoader(new URL[] { classesDirectory.toURI().toURL() }, null);
+
+        List<Resource> resources = CollectionFactory.newList();
+
+        for (String path : paths)
+            resources.add(new ClasspathResource(loader, path));
+
+        // Sorted, so that the same templates always produce the same archive.
+
+        Map<String, SaxComponentTemplate> templates = new TreeMap<String, SaxComponentTemplate>();
+
+        TemplateParseSchedulerImpl scheduler = new TemplateParseSchedulerImpl(0, false, logger);
+
+        try
+        {
+            SaxTemplateParserImpl parser = new SaxTemplateParserImpl(SaxParserModule.getEntityResources(),
+                                                                     compressWhitespace, minify, true, 0,
+                                                                     whitespacePreservation, TemplateLimits.UNLIMITED,
+                                                                     SaxTemplateReader.FACTORY, scheduler,
+                                                                     new TemplateExtensionGraphImpl(logger));
+
+            BatchParseResult result = parser.parseTemplates(resources);
+
+            for (Map.Entry<Resource, TapestryException> entry : result.getFailures().entrySet())
+                logger.warn(SaxParserMessages.templateNotPrecompiled(entry.getKey(), entry.getValue()));
+
+            for (Map.Entry<Resource, ComponentTemplate> entry : result.getTemplates().entrySet())
+                templates.put(entry.getKey().getPath(), (SaxComponentTemplate) entry.getValue());
+        }
+        finally
+        {
+            scheduler.registryDidShutdown();
+        }
+
+        File parent = archiveFile.getParentFile();
+
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+            throw new IOException(String.format("Unable to create directory %s.", parent));
+
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(archiveFile));
+
+        try
+        {
+            TemplateArchive.write(stream, TemplateArchive.options(compressWhitespace, minify, whitespacePreservation), templates);
+        }
+        finally
+        {
+            InternalUtils.close(stream);
+        }
+
+        return templates.size();
+    }
+
+    private static void findTemplates(File directory, String pathPrefix, List<String> paths)
+    {
+        File[] files = directory.listFiles();
+
+        if (files == null) return;
+
+        for (File file : files)
+        {
+            String path = pathPrefix + file.getName();
+
+            if (file.isDirectory())
+                findTemplates(file, path + "/", paths);
+            else if (path.endsWith(TEMPLATE_EXTENSION))
+                paths.add(path);
+        }
+    }
+
+    /**
+     * Arguments are the classes directory and, optionally, the archive file to write (by default, {@link
+     * TemplateArchive#PATH} within the classes directory).
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1 || args.length > 2)
+        {
+            System.err.println("Usage: TemplatePrecompiler <classes-directory> [<archive-file>]");
+            System.exit(1);
+        }
+
+        File classesDirectory = new File(args[0]);
+
+        File archiveFile = args.length > 1 ? new File(args[1]) : new File(classesDirectory, TemplateArchive.PATH);
+
+        boolean compressWhitespace = Boolean.valueOf(System.getProperty(SymbolConstants.COMPRESS_WHITESPACE, "true"));
+        boolean minify = Boolean.valueOf(System.getProperty(SaxParserSymbols.MINIFY_TEMPLATES, "false"));
+
+        List<String> preservedElements = CollectionFactory.newList(SaxParserModule.DEFAULT_PRESERVED_ELEMENTS);
+
+        String extraElements = System.getProperty(PRESERVED_ELEMENTS_PROPERTY);
+
+        if (!InternalUtils.isBlank(extraElements))
+            preservedElements.addAll(Arrays.asList(extraElements.trim().split("\\s*,\\s*")));
+
+        Logger logger = LoggerFactory.getLogger(TemplatePrecompiler.class);
+
+        int count = new TemplatePrecompiler(classesDirectory, compressWhitespace, minify,
+                                             new WhitespacePreservationImpl(preservedElements), logger).precompile(archiveFile);
+
+        logger.info(SaxParserMessages.templatesPrecompiled(count, archiveFile));
+    }
+}
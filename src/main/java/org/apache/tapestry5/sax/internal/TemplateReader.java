@@ -0,0 +1,23 @@
+package org.apache.tapestry5.sax.internal;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Reads the XML of a template, reporting its content as SAX events; the template tokens are built from those events,
+ * whatever the XML parser underneath. A reader is used by one thread at a time, but may be reused for any number of
+ * sequential parses.
+ * <p/>
+ * Readers must report the same events, with the same line numbers (from the document locator), as the standard SAX
+ * reader: the start and end of each element (with prefix mappings before the start of the element), characters,
+ * comments, the start and end of CDATA sections and the start and end of the DTD. Readers should also report the
+ * start and end of each entity's replacement text, so that errors within it are reported next to the reference to the
+ * entity; see {@link StaxTemplateReader} for a reader that doesn't.
+ *
+ * @see TemplateReaderFactory
+ */
+public interface TemplateReader
+{
+    void parse(InputSource input, ContentHandler contentHandler, LexicalHandler lexicalHandler) throws Exception;
+}
@@ -0,0 +1,18 @@
+package org.apache.tapestry5.sax.internal;
+
+import org.xml.sax.EntityResolver;
+
+/**
+ * Creates {@link TemplateReader}s for a particular XML parser. The service's configuration maps backend names to
+ * factories; symbol {@link SaxParserSymbols#PARSER_BACKEND} selects the one used.
+ */
+public interface TemplateReaderFactory
+{
+    /**
+     * @param entityResolver      resolves the standard DTDs and entity files to local copies
+     * @param maxEntityExpansions if positive, the maximum number of entity references the reader may expand in a
+     *                            single template (where the XML parser supports such a limit); see {@link
+     *                            TemplateLimits#getMaxEntityExpansions()}
+     */
+    TemplateReader newTemplateReader(EntityResolver entityResolver, int maxEntityExpansions) throws Exception;
+}
@@ -0,0 +1,120 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tapestry5.internal.parser.TemplateToken;
+import org.apache.tapestry5.internal.parser.TokenType;
+
+/**
+ * The shape of a parsed template: how many tokens of each type it contains and how deeply its elements nest. Page
+ * assembly can use these to size its lists and maps once, rather than growing them token by token. Tokens inside
+ * overrides are included.
+ */
+public class TemplateStatistics
+{
+    private final int[] tokenCounts = new int[TokenType.values().length];
+
+    private int tokenCount;
+
+    private int attributeExpansionCount;
+
+    private int maxDepth;
+
+    TemplateStatistics(List<TemplateToken> tokens, Map<String, List<TemplateToken>> overrides)
+    {
+        add(tokens);
+
+        if (overrides != null)
+        {
+            for (List<TemplateToken> overrideTokens : overrides.values())
+                add(overrideTokens);
+        }
+    }
+
+    private void add(List<TemplateToken> tokens)
+    {
+        int depth = 0;
+
+        for (TemplateToken token : tokens)
+        {
+            TokenType type = token.getTokenType();
+
+            tokenCounts[type.ordinal()]++;
+
+            switch (type)
+            {
+                case START_ELEMENT:
+                case START_COMPONENT:
+                case BLOCK:
+                case PARAMETER:
+
+                    depth++;
+
+                    if (depth > maxDepth) maxDepth = depth;
+
+                    break;
+
+                case END_ELEMENT:
+
+                    depth--;
+                    break;
+
+                case ATTRIBUTE:
+
+                    if (token instanceof ScannedAttributeToken)
+                        attributeExpansionCount += ((ScannedAttributeToken) token).getExpansionCount();
+
+                    break;
+
+                default:
+            }
+        }
+
+        tokenCount += tokens.size();
+    }
+
+    /**
+     * Returns the total number of tokens.
+     */
+    public int getTokenCount()
+    {
+        return tokenCount;
+    }
+
+    public int getTokenCount(TokenType type)
+    {
+        return tokenCounts[type.ordinal()];
+    }
+
+    public int getComponentCount()
+    {
+        return getTokenCount(TokenType.START_COMPONENT);
+    }
+
+    public int getBlockCount()
+    {
+        return getTokenCount(TokenType.BLOCK);
+    }
+
+    public int getParameterCount()
+    {
+        return getTokenCount(TokenType.PARAMETER);
+    }
+
+    /**
+     * Returns the number of expansions, both those in text and those within attribute values.
+     */
+    public int getExpansionCount()
+    {
+        return getTokenCount(TokenType.EXPANSION) + attributeExpansionCount;
+    }
+
+    /**
+     * Returns the maximum nesting of elements, components, blocks and parameters; 0 for a template with no elements.
+     */
+    public int getMaxDepth()
+    {
+        return maxDepth;
+    }
+}
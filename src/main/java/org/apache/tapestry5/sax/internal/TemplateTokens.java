@@ -0,0 +1,674 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.tapestry5.internal.parser.AttributeToken;
+import org.apache.tapestry5.internal.parser.BlockToken;
+import org.apache.tapestry5.internal.parser.BodyToken;
+import org.apache.tapestry5.internal.parser.CDATAToken;
+import org.apache.tapestry5.internal.parser.CommentToken;
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.parser.DTDToken;
+import org.apache.tapestry5.internal.parser.DefineNamespacePrefixToken;
+import org.apache.tapestry5.internal.parser.EndElementToken;
+import org.apache.tapestry5.internal.parser.ExpansionToken;
+import org.apache.tapestry5.internal.parser.ExtensionPointToken;
+import org.apache.tapestry5.internal.parser.ParameterToken;
+import org.apache.tapestry5.internal.parser.StartComponentToken;
+import org.apache.tapestry5.internal.parser.StartElementToken;
+import org.apache.tapestry5.internal.parser.TemplateToken;
+import org.apache.tapestry5.internal.parser.TextToken;
+import org.apache.tapestry5.internal.parser.TokenType;
+import org.apache.tapestry5.ioc.Location;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.ioc.internal.util.LocationImpl;
+
+/**
+ * Utilities for working with the tokens of parsed templates.
+ */
+final class TemplateTokens
+{
+    /**
+     * Approximate size of a token object, not counting its strings.
+     */
+    private static final int TOKEN_SIZE = 24;
+
+    private static final String[] NO_CONTENT = new String[0];
+
+    private TemplateTokens()
+    {
+    }
+
+    /**
+     * Returns the ids of all extension points defined by the template (including those inside overrides).
+     */
+    static Set<String> extensionPointIds(SaxComponentTemplate template)
+    {
+        Set<String> result = CollectionFactory.newSet();
+
+        addExtensionPointIds(result, template.getTokens());
+
+        Map<String, List<TemplateToken>> overrides = template.getOverrides();
+
+        if (overrides != null)
+        {
+            for (List<TemplateToken> tokens : overrides.values())
+                addExtensionPointIds(result, tokens);
+        }
+
+        return result;
+    }
+
+    private static void addExtensionPointIds(Set<String> ids, List<TemplateToken> tokens)
+    {
+        for (TemplateToken token : tokens)
+        {
+            if (token.getTokenType() == TokenType.EXTENSION_POINT)
+                ids.add(((ExtensionPointToken) token).getExtentionPointId());
+        }
+    }
+
+    /**
+     * Returns the distinct expressions of the template's expansions, both in text and within attribute values
+     * (including those inside overrides), in the order they first appear.
+     */
+    static Set<String> expressions(List<TemplateToken> tokens, Map<String, List<TemplateToken>> overrides)
+    {
+        Set<String> result = new LinkedHashSet<String>();
+
+        addExpressions(result, tokens);
+
+        if (overrides != null)
+        {
+            for (List<TemplateToken> overrideTokens : overrides.values())
+                addExpressions(result, overrideTokens);
+        }
+
+        return result;
+    }
+
+    private static void addExpressions(Set<String> expressions, List<TemplateToken> tokens)
+    {
+        for (TemplateToken token : tokens)
+        {
+            switch (token.getTokenType())
+            {
+                case EXPANSION:
+
+                    expressions.add(((ExpansionToken) token).getExpression());
+                    break;
+
+                case ATTRIBUTE:
+
+                    if (token instanceof ScannedAttributeToken)
+                    {
+                        ScannedAttributeToken attribute = (ScannedAttributeToken) token;
+
+                        for (int i = 0; i < attribute.getExpansionCount(); i++)
+                            expressions.add(attribute.getExpansion(i));
+                    }
+
+                    break;
+
+                default:
+            }
+        }
+    }
+
+    /**
+     * Compares two templates: their tokens (including line numbers), component ids (including line numbers),
+     * extension flag and overrides.
+     *
+     * @return a description of the first difference found, or null if the templates are the same
+     */
+    static String findDifference(ComponentTemplate expected, ComponentTemplate actual)
+    {
+        if (expected.isExtension() != actual.isExtension())
+            return String.format("isExtension() is %s, expected %s", actual.isExtension(), expected.isExtension());
+
+        String result = findDifference("tokens", expected.getTokens(), actual.getTokens());
+
+        if (result != null) return result;
+
+        Map<String, String> expectedIds = describe(expected.getComponentIds());
+        Map<String, String> actualIds = describe(actual.getComponentIds());
+
+        if (!expectedIds.equals(actualIds))
+            return String.format("component ids are %s, expected %s", actualIds, expectedIds);
+
+        Set<String> overrideIds = overrideIds(expected);
+
+        overrideIds.addAll(overrideIds(actual));
+
+        for (String id : overrideIds)
+        {
+            List<TemplateToken> expectedTokens = expected.getExtensionPointTokens(id);
+            List<TemplateToken> actualTokens = actual.getExtensionPointTokens(id);
+
+            if (expectedTokens == null || actualTokens == null)
+            {
+                if (expectedTokens != actualTokens)
+                    return String.format("override '%s' is %s, expected %s", id,
+                                         actualTokens == null ? "missing" : "present",
+                                         expectedTokens == null ? "missing" : "present");
+                continue;
+            }
+
+            result = findDifference("override '" + id + "'", expectedTokens, actualTokens);
+
+            if (result != null) return result;
+        }
+
+        return null;
+    }
+
+    static String findDifference(String description, List<TemplateToken> expected,
+            List<TemplateToken> actual)
+    {
+        int count = Math.min(expected.size(), actual.size());
+
+        for (int i = 0; i < count; i++)
+        {
+            String expectedToken = describe(expected.get(i));
+            String actualToken = describe(actual.get(i));
+
+            if (!expectedToken.equals(actualToken))
+                return String.format("%s differ at index %d: %s, expected %s", description, i, actualToken,
+                                     expectedToken);
+        }
+
+        if (expected.size() != actual.size())
+            return String.format("%s has %d tokens, expected %d", description, actual.size(), expected.size());
+
+        return null;
+    }
+
+    /**
+     * Returns the ids of the overrides the template is known to define: all of them for a {@link
+     * SaxComponentTemplate}, otherwise just those of the extension points in its tokens.
+     */
+    static Set<String> overrideIds(ComponentTemplate template)
+    {
+        Set<String> ids = CollectionFactory.newSet();
+
+        if (template instanceof SaxComponentTemplate)
+        {
+            Map<String, List<TemplateToken>> overrides = ((SaxComponentTemplate) template).getOverrides();
+
+            if (overrides != null) ids.addAll(overrides.keySet());
+        }
+
+        addExtensionPointIds(ids, template.getTokens());
+
+        return ids;
+    }
+
+    private static Map<String, String> describe(Map<String, Location> componentIds)
+    {
+        Map<String, String> result = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+        for (Map.Entry<String, Location> entry : componentIds.entrySet())
+            result.put(entry.getKey(), String.valueOf(line(entry.getValue())));
+
+        return result;
+    }
+
+    /**
+     * Describes a token's type, content and line number.
+     */
+    static String describe(TemplateToken token)
+    {
+        StringBuilder builder = new StringBuilder(token.getTokenType().name());
+
+        String sep = "[";
+
+        for (String value : content(token))
+        {
+            builder.append(sep);
+
+            if (value == null)
+                builder.append("null");
+            else
+                builder.append('"').append(value).append('"');
+
+            sep = ", ";
+        }
+
+        if (sep.length() > 1) builder.append("]");
+
+        return builder.append(" at line ").append(line(token.getLocation())).toString();
+    }
+
+    private static int line(Location location)
+    {
+        return location == null ? -1 : location.getLine();
+    }
+
+    /**
+     * Copies a template for a different resource with identical content. The copy shares all the strings of the
+     * original, but its tokens (and component ids) are located in the new resource.
+     */
+    static SaxComponentTemplate relocate(SaxComponentTemplate template, Resource resource)
+    {
+        Relocator relocator = new Relocator(resource);
+
+        Map<String, Location> componentIds = CollectionFactory.newCaseInsensitiveMap();
+
+        for (Map.Entry<String, Location> entry : template.getComponentIds().entrySet())
+            componentIds.put(entry.getKey(), relocator.relocate(entry.getValue()));
+
+        Map<String, List<TemplateToken>> overrides = null;
+
+        if (template.getOverrides() != null)
+        {
+            overrides = CollectionFactory.newCaseInsensitiveMap();
+
+            for (Map.Entry<String, List<TemplateToken>> entry : template.getOverrides().entrySet())
+                overrides.put(entry.getKey(), relocator.relocate(entry.getValue()));
+        }
+
+        return new SaxComponentTemplate(resource, relocator.relocate(template.getTokens()), componentIds,
+                                        template.isExtension(), overrides, template.getContentHash());
+    }
+
+    private static final class Relocator
+    {
+        private final Resource resource;
+
+        private final Map<Integer, Location> locations = CollectionFactory.newMap();
+
+        /**
+         * The same token may appear in both the main token list and an override; it is copied only once.
+         */
+        private final Map<TemplateToken, TemplateToken> copies = new IdentityHashMap<TemplateToken, TemplateToken>();
+
+        Relocator(Resource resource)
+        {
+            this.resource = resource;
+        }
+
+        Location relocate(Location location)
+        {
+            if (location == null) return null;
+
+            Location result = locations.get(location.getLine());
+
+            if (result == null)
+            {
+                result = new LocationImpl(resource, location.getLine(), location.getColumn());
+                locations.put(location.getLine(), result);
+            }
+
+            return result;
+        }
+
+        List<TemplateToken> relocate(List<TemplateToken> tokens)
+        {
+            List<TemplateToken> result = CollectionFactory.newList();
+
+            for (TemplateToken token : tokens)
+            {
+                TemplateToken copy = copies.get(token);
+
+                if (copy == null)
+                {
+                    copy = copy(token, relocate(token.getLocation()));
+                    copies.put(token, copy);
+                }
+
+                result.add(copy);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Finds the maximal static subtrees of the token list: elements whose attributes and content contain only static
+     * markup (elements, attributes, text, comments, CDATA and namespace definitions).
+     *
+     * @param minLength subtrees with fewer tokens are ignored
+     * @return the index of the first and last token of each subtree
+     */
+    static List<int[]> findStaticSubtrees(List<TemplateToken> tokens, int minLength)
+    {
+        List<int[]> result = CollectionFactory.newList();
+
+        List<SubtreeFrame> stack = CollectionFactory.newList();
+
+        for (int i = 0; i < tokens.size(); i++)
+        {
+            switch (tokens.get(i).getTokenType())
+            {
+                case START_ELEMENT:
+
+                    stack.add(new SubtreeFrame(i, true));
+                    break;
+
+                // Components, blocks and parameters are closed by an END_ELEMENT, just like elements.
+
+                case START_COMPONENT:
+                case BLOCK:
+                case PARAMETER:
+
+                    markDynamic(stack);
+                    stack.add(new SubtreeFrame(i, false));
+                    break;
+
+                case END_ELEMENT:
+
+                    if (stack.isEmpty()) break;
+
+                    SubtreeFrame frame = stack.remove(stack.size() - 1);
+
+                    if (frame.isStatic)
+                    {
+                        int[] span = new int[] { frame.start, i };
+
+                        // A static element inside a static element is part of the outer subtree
+                        // (unless the outer element turns out to be dynamic).
+
+                        if (!stack.isEmpty())
+                            stack.get(stack.size() - 1).staticChildren.add(span);
+                        else if (i - frame.start + 1 >= minLength)
+                            result.add(span);
+                    }
+                    else
+                        addSpans(result, frame.staticChildren, minLength);
+
+                    break;
+
+                case ATTRIBUTE:
+                case TEXT:
+                case COMMENT:
+                case CDATA:
+                case DEFINE_NAMESPACE_PREFIX:
+
+                    break;
+
+                default:
+
+                    markDynamic(stack);
+            }
+        }
+
+        // Unbalanced tokens can only occur in malformed token lists, but just in case.
+
+        for (SubtreeFrame frame : stack)
+            addSpans(result, frame.staticChildren, minLength);
+
+        return result;
+    }
+
+    private static void addSpans(List<int[]> result, List<int[]> spans, int minLength)
+    {
+        for (int[] span : spans)
+        {
+            if (span[1] - span[0] + 1 >= minLength)
+                result.add(span);
+        }
+    }
+
+    /**
+     * Marks the open elements as dynamic; as soon as one is found to be dynamic already, so are its ancestors.
+     */
+    private static void markDynamic(List<SubtreeFrame> stack)
+    {
+        for (int i = stack.size() - 1; i >= 0; i--)
+        {
+            SubtreeFrame frame = stack.get(i);
+
+            if (!frame.isStatic) return;
+
+            frame.isStatic = false;
+        }
+    }
+
+    private static final class SubtreeFrame
+    {
+        final int start;
+
+        boolean isStatic;
+
+        final List<int[]> staticChildren = CollectionFactory.newList();
+
+        SubtreeFrame(int start, boolean isStatic)
+        {
+            this.start = start;
+            this.isStatic = isStatic;
+        }
+    }
+
+    /**
+     * Hash code of the content of a static token (see {@link #findStaticSubtrees(List, int)}), ignoring its location.
+     */
+    static int staticContentHashCode(TemplateToken token)
+    {
+        int result = token.getTokenType().ordinal();
+
+        for (String value : content(token))
+            result = 31 * result + (value == null ? 0 : value.hashCode());
+
+        return result;
+    }
+
+    /**
+     * Compares the content of two static tokens, ignoring their locations.
+     */
+    static boolean sameStaticContent(TemplateToken token, TemplateToken other)
+    {
+        if (token.getTokenType() != other.getTokenType()) return false;
+
+        String[] content = content(token);
+        String[] otherContent = content(other);
+
+        for (int i = 0; i < content.length; i++)
+        {
+            String value = content[i];
+
+            if (value == null ? otherContent[i] != null : !value.equals(otherContent[i])) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns a token with the content of the shared token, located where the token is: the shared token itself if the
+     * two have the same location, otherwise a copy that shares its strings.
+     */
+    static TemplateToken shareContent(TemplateToken token, TemplateToken shared)
+    {
+        Location location = token.getLocation();
+
+        if (location == null ? shared.getLocation() == null : location.equals(shared.getLocation())) return shared;
+
+        return copy(shared, location);
+    }
+
+    /**
+     * Estimates the memory that becomes garbage when a token is replaced by an equivalent token: the token itself
+     * (unless the replacement is a new copy), and any strings it does not already share.
+     */
+    static long estimateSize(TemplateToken token, TemplateToken replacement, boolean copied)
+    {
+        long result = copied ? 0 : TOKEN_SIZE;
+
+        String[] content = content(token);
+        String[] replacementContent = content(replacement);
+
+        for (int i = 0; i < content.length; i++)
+        {
+            // Header, fields and array header, plus two bytes per character.
+
+            if (content[i] != null && content[i] != replacementContent[i])
+                result += 56 + 2 * content[i].length();
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the content of a token, excluding its location.
+     */
+    private static String[] content(TemplateToken token)
+    {
+        switch (token.getTokenType())
+        {
+            case START_ELEMENT:
+
+                StartElementToken element = (StartElementToken) token;
+
+                return new String[] { element.getNamespaceURI(), element.getName() };
+
+            case ATTRIBUTE:
+
+                AttributeToken attribute = (AttributeToken) token;
+
+                return new String[] { attribute.getNamespaceURI(), attribute.getName(), attribute.getValue() };
+
+            case TEXT:
+
+                return new String[] { ((TextToken) token).getText() };
+
+            case COMMENT:
+
+                return new String[] { ((CommentToken) token).getComment() };
+
+            case CDATA:
+
+                return new String[] { ((CDATAToken) token).getContent() };
+
+            case DEFINE_NAMESPACE_PREFIX:
+
+                DefineNamespacePrefixToken prefix = (DefineNamespacePrefixToken) token;
+
+                return new String[] { prefix.getNamespaceURI(), prefix.getNamespacePrefix() };
+
+            case START_COMPONENT:
+
+                StartComponentToken component = (StartComponentToken) token;
+
+                return new String[] { component.getElementName(), component.getId(), component.getComponentType(),
+                        component.getMixins() };
+
+            case EXPANSION:
+
+                return new String[] { ((ExpansionToken) token).getExpression() };
+
+            case PARAMETER:
+
+                return new String[] { ((ParameterToken) token).getName() };
+
+            case BLOCK:
+
+                return new String[] { ((BlockToken) token).getId() };
+
+            case DTD:
+
+                DTDToken dtd = (DTDToken) token;
+
+                return new String[] { dtd.getName(), dtd.getPublicId(), dtd.getSystemId() };
+
+            case EXTENSION_POINT:
+
+                return new String[] { ((ExtensionPointToken) token).getExtentionPointId() };
+
+            default:
+
+                // END_ELEMENT and BODY
+
+                return NO_CONTENT;
+        }
+    }
+
+    /**
+     * Returns a token with the same content as the token, at a different location.
+     */
+    static TemplateToken copy(TemplateToken token, Location location)
+    {
+        switch (token.getTokenType())
+        {
+            case ATTRIBUTE:
+
+                AttributeToken attribute = (AttributeToken) token;
+
+                if (attribute instanceof ScannedAttributeToken)
+                    return new ScannedAttributeToken(attribute.getNamespaceURI(), attribute.getName(),
+                                                     attribute.getValue(), location,
+                                                     ((ScannedAttributeToken) attribute).getExpansionBounds());
+
+                return new AttributeToken(attribute.getNamespaceURI(), attribute.getName(), attribute.getValue(),
+                                          location);
+
+            case CDATA:
+
+                return new CDATAToken(((CDATAToken) token).getContent(), location);
+
+            case COMMENT:
+
+                return new CommentToken(((CommentToken) token).getComment(), location);
+
+            case END_ELEMENT:
+
+                return new EndElementToken(location);
+
+            case START_COMPONENT:
+
+                StartComponentToken component = (StartComponentToken) token;
+
+                return new StartComponentToken(component.getElementName(), component.getId(),
+                                               component.getComponentType(), component.getMixins(), location);
+
+            case START_ELEMENT:
+
+                StartElementToken element = (StartElementToken) token;
+
+                return new StartElementToken(element.getNamespaceURI(), element.getName(), location);
+
+            case TEXT:
+
+                return new TextToken(((TextToken) token).getText(), location);
+
+            case BODY:
+
+                return new BodyToken(location);
+
+            case EXPANSION:
+
+                if (token instanceof SplitExpansionToken)
+                    return new SplitExpansionToken((SplitExpansionToken) token, location);
+
+                return new ExpansionToken(((ExpansionToken) token).getExpression(), location);
+
+            case PARAMETER:
+
+                return new ParameterToken(((ParameterToken) token).getName(), location);
+
+            case BLOCK:
+
+                return new BlockToken(((BlockToken) token).getId(), location);
+
+            case DTD:
+
+                DTDToken dtd = (DTDToken) token;
+
+                return new DTDToken(dtd.getName(), dtd.getPublicId(), dtd.getSystemId(), location);
+
+            case DEFINE_NAMESPACE_PREFIX:
+
+                DefineNamespacePrefixToken prefix = (DefineNamespacePrefixToken) token;
+
+                return new DefineNamespacePrefixToken(prefix.getNamespaceURI(), prefix.getNamespacePrefix(), location);
+
+            default:
+
+                return new ExtensionPointToken(((ExtensionPointToken) token).getExtentionPointId(), location);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.List;
+
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+
+/**
+ * Records how often each template is used, and saves the counts (periodically, and at shutdown) to the file identified
+ * by symbol {@link SaxParserSymbols#TEMPLATE_USAGE_FILE}. Usage is recorded by {@link ComponentTemplateSourceWrapper}
+ * each time Tapestry obtains a template to load a page, whether or not the template had to be parsed; parses alone
+ * would only count cache misses, and favor the templates that change most often. On the next startup the counts are read back, so
+ * that the most used templates can be parsed before the first request (see {@link
+ * SaxParserSymbols#WARMUP_TIME_BUDGET_MILLIS}), while rarely used templates are left until they are needed.
+ * <p/>
+ * Only templates on the classpath are recorded, since only those can be located again without a request.
+ */
+public interface TemplateUsageRecorder
+{
+    /**
+     * Counts a use of the template.
+     */
+    void templateUsed(Resource resource);
+
+    /**
+     * Returns the recorded templates, most used first.
+     */
+    List<Resource> getTemplatesByUsage();
+
+    /**
+     * Parses the recorded templates, most used first, until all are parsed or the time budget is used up.
+     *
+     * @return the number of templates parsed
+     */
+    int warmUp(TemplateParser parser, long budgetMillis);
+
+    /**
+     * Saves the counts to the usage file, if there is one and anything has changed since the last save.
+     */
+    void save();
+}
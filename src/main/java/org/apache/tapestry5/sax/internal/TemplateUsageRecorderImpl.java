@@ -0,0 +1,259 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.ClasspathResource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.ioc.internal.util.InternalUtils;
+import org.apache.tapestry5.ioc.services.RegistryShutdownListener;
+import org.slf4j.Logger;
+
+public class TemplateUsageRecorderImpl implements TemplateUsageRecorder, RegistryShutdownListener
+{
+    private static final String UTF8 = "UTF-8";
+
+    private final File usageFile;
+
+    private final ClassLoader classLoader;
+
+    private final Logger logger;
+
+    /**
+     * Classpath template path to number of uses, including those recorded by previous runs.
+     */
+    private final ConcurrentMap<String, AtomicLong> counts = CollectionFactory.newConcurrentMap();
+
+    private volatile boolean changed;
+
+    private final Timer timer;
+
+    /**
+     * @param usageFile           where the counts are stored, or null to only record them in memory
+     * @param saveIntervalMillis  interval between saves, or 0 to save only at shutdown
+     * @param classLoader         used to locate recorded templates
+     * @param logger              for problems reading or writing the usage file
+     */
+    public TemplateUsageRecorderImpl(File usageFile, long saveIntervalMillis, ClassLoader classLoader, Logger logger)
+    {
+        this.usageFile = usageFile;
+        this.classLoader = classLoader;
+        this.logger = logger;
+
+        if (usageFile != null && usageFile.exists())
+            load();
+
+        if (usageFile == null || saveIntervalMillis <= 0)
+        {
+            timer = null;
+            return;
+        }
+
+        timer = new Timer("TemplateUsageRecorder", true);
+
+        timer.schedule(new TimerTask()
+        {
+            public void run()
+            {
+                save();
+            }
+        }, saveIntervalMillis, saveIntervalMillis);
+    }
+
+    private void load()
+    {
+        BufferedReader reader = null;
+
+        try
+        {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(usageFile), UTF8));
+
+            while (true)
+            {
+                String line = reader.readLine();
+
+                if (line == null) break;
+
+                // Each line is the count, a tab, and the template's classpath path.
+
+                int tabx = line.indexOf('\t');
+
+                if (line.startsWith("#") || tabx < 0) continue;
+
+                try
+                {
+                    counts.put(line.substring(tabx + 1), new AtomicLong(Long.parseLong(line.substring(0, tabx))));
+                }
+                catch (NumberFormatException ex)
+                {
+                    // Skip the line.
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            logger.warn(SaxParserMessages.unableToReadTemplateUsage(usageFile, ex));
+        }
+        finally
+        {
+            InternalUtils.close(reader);
+        }
+    }
+
+    public void templateUsed(Resource resource)
+    {
+        if (!(resource instanceof ClasspathResource)) return;
+
+        String path = resource.getPath();
+
+        AtomicLong count = counts.get(path);
+
+        if (count == null)
+        {
+            AtomicLong existing = counts.putIfAbsent(path, count = new AtomicLong());
+
+            if (existing != null) count = existing;
+        }
+
+        count.incrementAndGet();
+
+        changed = true;
+    }
+
+    public List<Resource> getTemplatesByUsage()
+    {
+        List<Resource> result = CollectionFactory.newList();
+
+        for (Map.Entry<String, Long> entry : snapshot())
+            result.add(new ClasspathResource(classLoader, entry.getKey()));
+
+        return result;
+    }
+
+    /**
+     * Returns the counts, highest first.
+     */
+    private List<Map.Entry<String, Long>> snapshot()
+    {
+        Map<String, Long> values = CollectionFactory.newMap();
+
+        for (Map.Entry<String, AtomicLong> entry : counts.entrySet())
+            values.put(entry.getKey(), entry.getValue().get());
+
+        List<Map.Entry<String, Long>> result = CollectionFactory.newList(values.entrySet());
+
+        Collections.sort(result, new Comparator<Map.Entry<String, Long>>()
+        {
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2)
+            {
+                int result = o2.getValue().compareTo(o1.getValue());
+
+                return result != 0 ? result : o1.getKey().compareTo(o2.getKey());
+            }
+        });
+
+        return result;
+    }
+
+    public int warmUp(TemplateParser parser, long budgetMillis)
+    {
+        long start = System.currentTimeMillis();
+        long deadline = start + budgetMillis;
+
+        int count = 0;
+
+        for (Resource resource : getTemplatesByUsage())
+        {
+            if (System.currentTimeMillis() >= deadline) break;
+
+            // Templates may have been removed since the counts were recorded.
+
+            if (!resource.exists()) continue;
+
+            try
+            {
+                parser.parseTemplate(resource);
+
+                count++;
+            }
+            catch (RuntimeException ex)
+            {
+                logger.warn(SaxParserMessages.templateWarmupFailed(resource, ex));
+            }
+        }
+
+        if (count > 0)
+            logger.info(SaxParserMessages.templatesWarmedUp(count, System.currentTimeMillis() - start));
+
+        return count;
+    }
+
+    public synchronized void save()
+    {
+        if (usageFile == null || !changed) return;
+
+        changed = false;
+
+        // Written to a temporary file and then renamed, so that a crash can't leave a partial file.
+
+        File temporary = new File(usageFile.getPath() + ".tmp");
+
+        Writer writer = null;
+
+        try
+        {
+            writer = new OutputStreamWriter(new FileOutputStream(temporary), UTF8);
+
+            writer.write("# Template usage recorded by the SAX template parser: usage count, tab, classpath path\n");
+
+            for (Map.Entry<String, Long> entry : snapshot())
+                writer.write(entry.getValue() + "\t" + entry.getKey() + "\n");
+
+            writer.close();
+            writer = null;
+
+            // Renaming over an existing file fails on some platforms.
+
+            if (!temporary.renameTo(usageFile))
+            {
+                usageFile.delete();
+
+                if (!temporary.renameTo(usageFile))
+                    throw new IOException(String.format("Unable to rename %s to %s.", temporary, usageFile));
+            }
+        }
+        catch (IOException ex)
+        {
+            changed = true;
+
+            logger.warn(SaxParserMessages.unableToSaveTemplateUsage(usageFile, ex));
+        }
+        finally
+        {
+            InternalUtils.close(writer);
+        }
+    }
+
+    public void registryDidShutdown()
+    {
+        if (timer != null) timer.cancel();
+
+        save();
+    }
+}
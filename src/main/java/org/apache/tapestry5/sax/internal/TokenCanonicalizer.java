@@ -0,0 +1,37 @@
+package org.apache.tapestry5.sax.internal;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+
+/**
+ * Shares structurally identical runs of static markup between templates. Common fragments (navigation, form skeletons,
+ * footers) repeat across many templates; once canonicalized, each distinct fragment is represented by a single set of
+ * token objects, referenced from every template that contains it.
+ * <p/>
+ * A static run is an element (with its attributes and content) containing no components, expansions, blocks or other
+ * Tapestry constructs. Token objects are only shared where their locations are the same; elsewhere each template keeps
+ * its own tokens (so that errors report the right file and line), which share the strings of the canonical fragment.
+ * Canonicalization is enabled with symbol {@link SaxParserSymbols#CANONICALIZE_STATIC_TOKENS}.
+ */
+public interface TokenCanonicalizer
+{
+    /**
+     * Returns a template whose static runs have been replaced by their canonical versions (the template itself if
+     * nothing could be shared). Runs not seen before become canonical.
+     */
+    ComponentTemplate canonicalize(ComponentTemplate template);
+
+    /**
+     * Returns the number of distinct static runs known.
+     */
+    int getCanonicalRunCount();
+
+    /**
+     * Returns the number of tokens replaced by shared tokens, or by copies sharing their strings.
+     */
+    long getSharedTokenCount();
+
+    /**
+     * Returns an estimate of the heap, in bytes, freed by sharing tokens (and their strings).
+     */
+    long getEstimatedBytesSaved();
+}
@@ -0,0 +1,204 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.parser.TemplateToken;
+import org.apache.tapestry5.ioc.Location;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.slf4j.Logger;
+
+public class TokenCanonicalizerImpl implements TokenCanonicalizer, TemplateChangeListener
+{
+    /**
+     * Runs shorter than this (such as an empty element, or an element containing only text) are not worth the lookup.
+     */
+    private static final int MIN_RUN_LENGTH = 4;
+
+    private final Logger logger;
+
+    private final ConcurrentMap<StaticRun, StaticRun> runs = CollectionFactory.newConcurrentMap();
+
+    private final AtomicLong sharedTokenCount = new AtomicLong();
+
+    private final AtomicLong estimatedBytesSaved = new AtomicLong();
+
+    public TokenCanonicalizerImpl(Logger logger)
+    {
+        this.logger = logger;
+    }
+
+    /**
+     * A run of static tokens, compared by content (ignoring locations).
+     */
+    private static final class StaticRun
+    {
+        private final TemplateToken[] tokens;
+
+        private final int hashCode;
+
+        StaticRun(TemplateToken[] tokens)
+        {
+            this.tokens = tokens;
+
+            int result = tokens.length;
+
+            for (TemplateToken token : tokens)
+                result = 31 * result + TemplateTokens.staticContentHashCode(token);
+
+            hashCode = result;
+        }
+
+        /**
+         * The resource in which the run was first seen.
+         */
+        Resource getResource()
+        {
+            Location location = tokens[0].getLocation();
+
+            return location == null ? null : location.getResource();
+        }
+
+        public int hashCode()
+        {
+            return hashCode;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof StaticRun)) return false;
+
+            StaticRun other = (StaticRun) obj;
+
+            if (other.hashCode != hashCode || other.tokens.length != tokens.length) return false;
+
+            for (int i = 0; i < tokens.length; i++)
+            {
+                if (!TemplateTokens.sameStaticContent(tokens[i], other.tokens[i])) return false;
+            }
+
+            return true;
+        }
+    }
+
+    public ComponentTemplate canonicalize(ComponentTemplate template)
+    {
+        if (!(template instanceof SaxComponentTemplate)) return template;
+
+        SaxComponentTemplate sax = (SaxComponentTemplate) template;
+
+        long[] saved = new long[2];
+
+        List<TemplateToken> tokens = canonicalize(sax.getTokens(), saved);
+
+        Map<String, List<TemplateToken>> overrides = sax.getOverrides();
+
+        if (overrides != null)
+        {
+            Map<String, List<TemplateToken>> canonicalOverrides = CollectionFactory.newCaseInsensitiveMap();
+
+            for (Map.Entry<String, List<TemplateToken>> entry : overrides.entrySet())
+                canonicalOverrides.put(entry.getKey(), canonicalize(entry.getValue(), saved));
+
+            overrides = canonicalOverrides;
+        }
+
+        if (saved[0] == 0) return template;
+
+        sharedTokenCount.addAndGet(saved[0]);
+        estimatedBytesSaved.addAndGet(saved[1]);
+
+        if (logger.isDebugEnabled())
+            logger.debug(String.format("Shared %d tokens of %s (about %d bytes).", saved[0], sax.getResource(),
+                                       saved[1]));
+
+        return new SaxComponentTemplate(sax.getResource(), tokens, sax.getComponentIds(), sax.isExtension(),
+                                        overrides, sax.getContentHash());
+    }
+
+    /**
+     * @param saved accumulates the number of tokens replaced (index 0) and the bytes saved (index 1)
+     */
+    private List<TemplateToken> canonicalize(List<TemplateToken> tokens, long[] saved)
+    {
+        List<int[]> spans = TemplateTokens.findStaticSubtrees(tokens, MIN_RUN_LENGTH);
+
+        if (spans.isEmpty()) return tokens;
+
+        List<TemplateToken> result = CollectionFactory.newList(tokens);
+
+        for (int[] span : spans)
+        {
+            int start = span[0];
+
+            TemplateToken[] run = tokens.subList(start, span[1] + 1).toArray(new TemplateToken[span[1] - start + 1]);
+
+            StaticRun candidate = new StaticRun(run);
+
+            StaticRun canonical = runs.putIfAbsent(candidate, candidate);
+
+            if (canonical == null) continue;
+
+            for (int i = 0; i < run.length; i++)
+            {
+                TemplateToken token = run[i];
+
+                // The token itself is only shared where the locations match; elsewhere, a copy located where
+                // the token is shares the strings.
+
+                TemplateToken replacement = TemplateTokens.shareContent(token, canonical.tokens[i]);
+
+                if (replacement == token) continue;
+
+                boolean copied = replacement != canonical.tokens[i];
+
+                long size = TemplateTokens.estimateSize(token, replacement, copied);
+
+                if (size == 0) continue;
+
+                result.set(start + i, replacement);
+
+                saved[0]++;
+                saved[1] += size;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Discards the runs first seen in the changed resources, so that their old content (and locations) are not kept
+     * once the templates are re-parsed.
+     */
+    public void templatesChanged(Set<Resource> resources)
+    {
+        Iterator<StaticRun> i = runs.keySet().iterator();
+
+        while (i.hasNext())
+        {
+            if (resources.contains(i.next().getResource()))
+                i.remove();
+        }
+    }
+
+    public int getCanonicalRunCount()
+    {
+        return runs.size();
+    }
+
+    public long getSharedTokenCount()
+    {
+        return sharedTokenCount.get();
+    }
+
+    public long getEstimatedBytesSaved()
+    {
+        return estimatedBytesSaved.get();
+    }
+}
@@ -0,0 +1,25 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Set;
+
+/**
+ * Identifies the HTML elements (such as pre and textarea) whose whitespace is always preserved, as if they had an
+ * <code>xml:space="preserve"</code> attribute, so that whitespace compression may be used for everything else. An
+ * explicit xml:space attribute on the element still takes precedence. The configuration is the (case insensitive)
+ * names of the elements.
+ */
+public interface WhitespacePreservation
+{
+    /**
+     * @param namespaceURI the element's namespace URI (whitespace is only preserved for elements with no namespace, or
+     *                     the XHTML namespace)
+     * @param elementName  the element's local name
+     * @return true if whitespace inside the element should be preserved
+     */
+    boolean isPreserved(String namespaceURI, String elementName);
+
+    /**
+     * Returns the (lower case) names of the elements whose whitespace is preserved.
+     */
+    Set<String> getElementNames();
+}
@@ -0,0 +1,33 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.tapestry5.ioc.internal.util.InternalUtils;
+
+public class WhitespacePreservationImpl implements WhitespacePreservation
+{
+    private static final String XHTML_NAMESPACE_URI = "http://www.w3.org/1999/xhtml";
+
+    private final Set<String> elementNames = new TreeSet<String>();
+
+    public WhitespacePreservationImpl(Collection<String> configuration)
+    {
+        for (String name : configuration)
+            elementNames.add(name.toLowerCase());
+    }
+
+    public boolean isPreserved(String namespaceURI, String elementName)
+    {
+        if (!(InternalUtils.isBlank(namespaceURI) || XHTML_NAMESPACE_URI.equals(namespaceURI))) return false;
+
+        return elementNames.contains(elementName.toLowerCase());
+    }
+
+    public Set<String> getElementNames()
+    {
+        return Collections.unmodifiableSet(elementNames);
+    }
+}
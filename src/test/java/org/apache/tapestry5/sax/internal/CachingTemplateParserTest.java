@@ -0,0 +1,433 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.parser.TextToken;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.ClasspathResource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.services.InvalidationListener;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+public class CachingTemplateParserTest extends InternalBaseTestCase
+{
+    private TemplateParser getParser()
+    {
+        return getService("TemplateParserOverride", TemplateParser.class);
+    }
+
+    @Test
+    public void only_changed_templates_are_reparsed() throws Exception
+    {
+        File directory = createTempDirectory();
+
+        File alpha = new File(directory, "Alpha.tml");
+        File beta = new File(directory, "Beta.tml");
+
+        write(alpha, "<p>alpha</p>");
+        write(beta, "<p>beta</p>");
+
+        FileSystemTemplateChangeWatcher watcher = new FileSystemTemplateChangeWatcher(50, LoggerFactory.getLogger(
+                CachingTemplateParserTest.class));
+
+        CachingTemplateParserImpl parser = newCachingParser(watcher, false);
+
+        watcher.addChangeListener(parser);
+
+        try
+        {
+            ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() });
+
+            Resource alphaResource = new ClasspathResource(loader, "Alpha.tml");
+            Resource betaResource = new ClasspathResource(loader, "Beta.tml");
+
+            ComponentTemplate alpha1 = parser.parseTemplate(alphaResource);
+            ComponentTemplate beta1 = parser.parseTemplate(betaResource);
+
+            assertSame(parser.parseTemplate(alphaResource), alpha1);
+            assertEquals(parser.getCachedTemplateCount(), 2);
+
+            write(alpha, "<p>changed</p>");
+
+            waitForCachedTemplateCount(parser, 1);
+
+            ComponentTemplate alpha2 = parser.parseTemplate(alphaResource);
+
+            assertNotSame(alpha2, alpha1);
+            assertEquals(((TextToken) alpha2.getTokens().get(1)).getText(), "changed");
+
+            assertSame(parser.parseTemplate(betaResource), beta1);
+        }
+        finally
+        {
+            watcher.registryDidShutdown();
+
+            alpha.delete();
+            beta.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void directory_deleted_and_recreated() throws Exception
+    {
+        File directory = createTempDirectory();
+
+        File alpha = new File(directory, "Alpha.tml");
+
+        write(alpha, "<p>alpha</p>");
+
+        FileSystemTemplateChangeWatcher watcher = new FileSystemTemplateChangeWatcher(50, LoggerFactory.getLogger(
+                CachingTemplateParserTest.class));
+
+        CachingTemplateParserImpl parser = newCachingParser(watcher, false);
+
+        watcher.addChangeListener(parser);
+
+        try
+        {
+            ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() });
+
+            Resource resource = new ClasspathResource(loader, "Alpha.tml");
+
+            assertEquals(text(parser.parseTemplate(resource)), "alpha");
+            assertEquals(parser.getCachedTemplateCount(), 1);
+
+            alpha.delete();
+            directory.delete();
+
+            waitForCachedTemplateCount(parser, 0);
+
+            directory.mkdirs();
+            write(alpha, "<p>recreated</p>");
+
+            assertEquals(text(parser.parseTemplate(resource)), "recreated");
+
+            waitForCachedTemplateCount(parser, 1);
+
+            // The new directory is watched.
+
+            write(alpha, "<p>changed</p>");
+
+            waitForCachedTemplateCount(parser, 0);
+
+            assertEquals(text(parser.parseTemplate(resource)), "changed");
+        }
+        finally
+        {
+            watcher.registryDidShutdown();
+
+            alpha.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void template_held_by_tapestry_replaced_once_change_reported() throws Exception
+    {
+        File directory = createTempDirectory();
+
+        File alpha = new File(directory, "Alpha.tml");
+
+        write(alpha, "<p>alpha</p>");
+
+        // A watcher that reports nothing until told to, as when Tapestry's own check notices a change first.
+
+        TemplateChangeWatcher watcher = new TemplateChangeWatcher()
+        {
+            public boolean watch(Resource resource)
+            {
+                return true;
+            }
+
+            public boolean isPending(Resource resource)
+            {
+                return false;
+            }
+
+            public void addChangeListener(TemplateChangeListener listener)
+            {
+            }
+        };
+
+        CachingTemplateParserImpl parser = newCachingParser(watcher, false);
+
+        final AtomicInteger invalidations = new AtomicInteger();
+
+        parser.getInvalidationEventHub().addInvalidationListener(new InvalidationListener()
+        {
+            public void objectWasInvalidated()
+            {
+                invalidations.incrementAndGet();
+            }
+        });
+
+        try
+        {
+            ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() });
+
+            Resource resource = new ClasspathResource(loader, "Alpha.tml");
+
+            ComponentTemplate template = parser.parseTemplate(resource);
+
+            write(alpha, "<p>changed</p>");
+
+            // Not yet reported, so the old template is served.
+
+            ComponentTemplate held = parser.parseTemplate(resource);
+
+            assertSame(held, template);
+            assertSame(parser.getCurrentTemplate(held), template);
+
+            parser.templatesChanged(CollectionFactory.<Resource, Resource>newSet(resource));
+
+            assertEquals(invalidations.get(), 1);
+
+            ComponentTemplate current = parser.getCurrentTemplate(held);
+
+            assertEquals(text(current), "changed");
+            assertSame(parser.getCurrentTemplate(current), current);
+        }
+        finally
+        {
+            alpha.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void unrelated_files_do_not_hold_back_notification() throws Exception
+    {
+        File directory = createTempDirectory();
+
+        File alpha = new File(directory, "Alpha.tml");
+        File other = new File(directory, "Other.swp");
+
+        write(alpha, "<p>alpha</p>");
+
+        FileSystemTemplateChangeWatcher watcher = new FileSystemTemplateChangeWatcher(200, LoggerFactory.getLogger(
+                CachingTemplateParserTest.class));
+
+        CachingTemplateParserImpl parser = newCachingParser(watcher, false);
+
+        watcher.addChangeListener(parser);
+
+        try
+        {
+            ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() });
+
+            Resource resource = new ClasspathResource(loader, "Alpha.tml");
+
+            parser.parseTemplate(resource);
+
+            write(alpha, "<p>changed</p>");
+
+            // Keep writing another file in the directory, more often than the debounce period.
+
+            long deadline = System.currentTimeMillis() + 10000;
+
+            while (parser.getCachedTemplateCount() != 0 && System.currentTimeMillis() < deadline)
+            {
+                write(other, String.valueOf(System.nanoTime()));
+
+                Thread.sleep(50);
+            }
+
+            assertEquals(parser.getCachedTemplateCount(), 0);
+        }
+        finally
+        {
+            watcher.registryDidShutdown();
+
+            alpha.delete();
+            other.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void continuous_changes_reported_within_maximum_delay() throws Exception
+    {
+        File directory = createTempDirectory();
+
+        File alpha = new File(directory, "Alpha.tml");
+
+        write(alpha, "<p>alpha</p>");
+
+        FileSystemTemplateChangeWatcher watcher = new FileSystemTemplateChangeWatcher(100, LoggerFactory.getLogger(
+                CachingTemplateParserTest.class));
+
+        CachingTemplateParserImpl parser = newCachingParser(watcher, false);
+
+        watcher.addChangeListener(parser);
+
+        try
+        {
+            ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() });
+
+            parser.parseTemplate(new ClasspathResource(loader, "Alpha.tml"));
+
+            // The template never stays unchanged for the debounce period, but is reported within
+            // MAX_DEBOUNCE_PERIODS of them (plus some slack).
+
+            long start = System.currentTimeMillis();
+
+            while (parser.getCachedTemplateCount() != 0 && System.currentTimeMillis() < start + 5000)
+            {
+                write(alpha, "<p>" + System.nanoTime() + "</p>");
+
+                Thread.sleep(20);
+            }
+
+            assertEquals(parser.getCachedTemplateCount(), 0);
+            assertTrue(System.currentTimeMillis() - start < 100 * FileSystemTemplateChangeWatcher.MAX_DEBOUNCE_PERIODS
+                    + 1000);
+        }
+        finally
+        {
+            watcher.registryDidShutdown();
+
+            alpha.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void unwatched_resources_are_not_cached() throws Exception
+    {
+        TemplateParser delegate = newMock(TemplateParser.class);
+        ComponentTemplate template = newMock(ComponentTemplate.class);
+
+        Resource resource = new ClasspathResource("org/apache/tapestry5/sax/internal/component.tml");
+
+        expect(delegate.parseTemplate(resource)).andReturn(template).times(2);
+
+        replay();
+
+        CachingTemplateParserImpl parser = new CachingTemplateParserImpl(delegate, new NoopTemplateChangeWatcher(),
+                                                                         getService(TemplateParseScheduler.class),
+                                                                         false, LoggerFactory.getLogger(
+                CachingTemplateParserTest.class));
+
+        assertSame(parser.parseTemplate(resource), template);
+        assertSame(parser.parseTemplate(resource), template);
+        assertEquals(parser.getCachedTemplateCount(), 0);
+
+        verify();
+    }
+
+    @Test
+    public void changed_templates_revalidated_in_background() throws Exception
+    {
+        File directory = createTempDirectory();
+
+        File alpha = new File(directory, "Alpha.tml");
+
+        write(alpha, "<p>alpha</p>");
+
+        FileSystemTemplateChangeWatcher watcher = new FileSystemTemplateChangeWatcher(50, LoggerFactory.getLogger(
+                CachingTemplateParserTest.class));
+
+        CachingTemplateParserImpl parser = newCachingParser(watcher, true);
+
+        watcher.addChangeListener(parser);
+
+        final AtomicInteger invalidations = new AtomicInteger();
+
+        parser.getInvalidationEventHub().addInvalidationListener(new InvalidationListener()
+        {
+            public void objectWasInvalidated()
+            {
+                invalidations.incrementAndGet();
+            }
+        });
+
+        try
+        {
+            ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() });
+
+            Resource resource = new ClasspathResource(loader, "Alpha.tml");
+
+            ComponentTemplate template = parser.parseTemplate(resource);
+
+            assertEquals(text(template), "alpha");
+
+            // A broken edit leaves the old version live.
+
+            write(alpha, "<p>broken");
+
+            Thread.sleep(500);
+
+            assertSame(parser.parseTemplate(resource), template);
+            assertEquals(text(template), "alpha");
+            assertEquals(invalidations.get(), 0);
+
+            write(alpha, "<p>fixed</p>");
+
+            long deadline = System.currentTimeMillis() + 10000;
+
+            while (invalidations.get() == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+
+            assertEquals(invalidations.get(), 1);
+            assertSame(parser.parseTemplate(resource), template);
+            assertEquals(text(template), "fixed");
+        }
+        finally
+        {
+            watcher.registryDidShutdown();
+
+            alpha.delete();
+            directory.delete();
+        }
+    }
+
+    private String text(ComponentTemplate template)
+    {
+        return ((TextToken) template.getTokens().get(1)).getText();
+    }
+
+    private CachingTemplateParserImpl newCachingParser(TemplateChangeWatcher watcher, boolean revalidateInBackground)
+    {
+        return new CachingTemplateParserImpl(getParser(), watcher, getService(TemplateParseScheduler.class),
+                                             revalidateInBackground, LoggerFactory.getLogger(
+                CachingTemplateParserTest.class));
+    }
+
+    private void waitForCachedTemplateCount(CachingTemplateParserImpl parser, int expected) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (parser.getCachedTemplateCount() != expected && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertEquals(parser.getCachedTemplateCount(), expected);
+    }
+
+    private File createTempDirectory() throws IOException
+    {
+        File file = File.createTempFile("templates", "");
+
+        file.delete();
+        file.mkdirs();
+
+        return file;
+    }
+
+    private void write(File file, String content) throws IOException
+    {
+        Writer writer = new FileWriter(file);
+
+        writer.write(content);
+        writer.close();
+    }
+}
@@ -0,0 +1,88 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Collections;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.services.ComponentInstantiatorSource;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.ClasspathResource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.services.ComponentClassResolver;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+public class ComponentTypeIndexImplTest extends InternalBaseTestCase
+{
+    private Resource getResource(String file)
+    {
+        String path = getClass().getPackage().getName().replace('.', '/') + "/" + file;
+
+        return new ClasspathResource(getClass().getClassLoader(), path);
+    }
+
+    private void record(ComponentTypeIndex index, Resource resource)
+    {
+        ComponentTemplate template = getService("TemplateParserOverride", TemplateParser.class).parseTemplate(
+                resource);
+
+        index.templateParsed(resource, template);
+    }
+
+    @Test
+    public void types_are_indexed_by_template()
+    {
+        ComponentTypeIndexImpl index = new ComponentTypeIndexImpl();
+
+        Resource library = getResource("component_inside_library_namespace.tml");
+        Resource mixins = getResource("component_with_mixins.tml");
+
+        record(index, library);
+        record(index, mixins);
+
+        assertEquals(index.getComponentTypes(), CollectionFactory.newSet("subfolder/nifty", "comp"));
+        assertEquals(index.getMixinTypes(), Collections.singleton("Barney"));
+
+        // Types are case insensitive.
+
+        assertEquals(index.getTemplatesUsingComponent("Comp"), Collections.singleton(mixins));
+        assertEquals(index.getTemplatesUsingMixin("barney"), Collections.singleton(mixins));
+        assertTrue(index.getTemplatesUsingComponent("unknown").isEmpty());
+
+        index.templatesChanged(Collections.singleton(mixins));
+
+        assertEquals(index.getComponentTypes(), Collections.singleton("subfolder/nifty"));
+        assertTrue(index.getMixinTypes().isEmpty());
+    }
+
+    @Test
+    public void indexed_classes_are_preloaded_once()
+    {
+        ComponentTypeIndexImpl index = new ComponentTypeIndexImpl();
+
+        record(index, getResource("component_with_mixins.tml"));
+
+        ComponentClassResolver resolver = newMock(ComponentClassResolver.class);
+        ComponentInstantiatorSource source = newMock(ComponentInstantiatorSource.class);
+
+        expect(resolver.resolveComponentTypeToClassName("comp")).andReturn("org.example.components.Comp").times(2);
+        expect(resolver.resolveMixinTypeToClassName("Barney")).andReturn("org.example.mixins.Barney").times(2);
+        expect(source.getInstantiator("org.example.components.Comp")).andReturn(null);
+        expect(source.getInstantiator("org.example.mixins.Barney")).andReturn(null);
+
+        replay();
+
+        ComponentClassPreloaderImpl preloader = new ComponentClassPreloaderImpl(index, resolver, source,
+                                                                                LoggerFactory.getLogger(
+                                                                                        ComponentTypeIndexImplTest.class));
+
+        assertEquals(preloader.preload(), 2);
+
+        // Nothing new to load the second time.
+
+        assertEquals(preloader.preload(), 0);
+        assertEquals(preloader.getPreloadedClassCount(), 2);
+
+        verify();
+    }
+}
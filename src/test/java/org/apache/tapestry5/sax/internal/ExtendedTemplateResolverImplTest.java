@@ -0,0 +1,174 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.parser.ComponentTemplateImpl;
+import org.apache.tapestry5.internal.parser.TemplateToken;
+import org.apache.tapestry5.internal.parser.TextToken;
+import org.apache.tapestry5.internal.parser.TokenType;
+import org.apache.tapestry5.internal.services.ComponentTemplateSource;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Location;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.ClasspathResource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.model.ComponentModel;
+import org.testng.annotations.Test;
+
+public class ExtendedTemplateResolverImplTest extends InternalBaseTestCase
+{
+    private ComponentTemplate parse(String file)
+    {
+        String path = getClass().getPackage().getName().replace('.', '/') + "/" + file;
+
+        Resource resource = new ClasspathResource(getClass().getClassLoader(), path);
+
+        return getService("TemplateParserOverride", TemplateParser.class).parseTemplate(resource);
+    }
+
+    private String text(List<TemplateToken> tokens)
+    {
+        StringBuilder builder = new StringBuilder();
+
+        for (TemplateToken token : tokens)
+        {
+            assertFalse(token.getTokenType() == TokenType.EXTENSION_POINT);
+
+            if (token.getTokenType() == TokenType.TEXT)
+                builder.append(((TextToken) token).getText());
+        }
+
+        return builder.toString();
+    }
+
+    @Test
+    public void extension_points_are_replaced_by_nearest_override()
+    {
+        ComponentTemplate base = parse("extension_point.tml");
+        ComponentTemplate extension = parse("extension_point_override.tml");
+
+        ExtendedTemplateResolverImpl resolver = new ExtendedTemplateResolverImpl();
+
+        MergedTemplate merged = resolver.resolve(Arrays.asList(extension, base));
+
+        String text = text(merged.getTokens());
+
+        assertTrue(text.contains("Replaced Title"));
+        assertFalse(text.contains("Default Title"));
+
+        // Without the extension, the extension point's own content is used.
+
+        assertTrue(text(resolver.resolve(Arrays.asList(base)).getTokens()).contains("Default Title"));
+    }
+
+    @Test
+    public void merged_chains_are_cached_until_a_member_changes()
+    {
+        ComponentTemplate base = parse("extension_point.tml");
+        ComponentTemplate extension = parse("extension_point_override.tml");
+
+        ExtendedTemplateResolverImpl resolver = new ExtendedTemplateResolverImpl();
+
+        List<ComponentTemplate> chain = Arrays.asList(extension, base);
+
+        MergedTemplate merged = resolver.resolve(chain);
+
+        // The same content, even when re-parsed, maps to the same merged template.
+
+        assertSame(resolver.resolve(Arrays.asList(parse("extension_point_override.tml"), base)), merged);
+        assertEquals(resolver.getCachedChainCount(), 1);
+
+        resolver.templatesChanged(CollectionFactory.<Resource, Resource>newSet(base.getResource()));
+
+        assertEquals(resolver.getCachedChainCount(), 0);
+        assertNotSame(resolver.resolve(chain), merged);
+    }
+
+    @Test
+    public void other_templates_are_identified_by_instance()
+    {
+        ComponentTemplate base = parse("extension_point.tml");
+
+        ComponentTemplate first = newTemplate(base.getResource(), "first");
+        ComponentTemplate second = newTemplate(base.getResource(), "second");
+
+        ExtendedTemplateResolverImpl resolver = new ExtendedTemplateResolverImpl();
+
+        MergedTemplate merged = resolver.resolve(Arrays.asList(first));
+
+        assertSame(resolver.resolve(Arrays.asList(first)), merged);
+
+        assertEquals(text(resolver.resolve(Arrays.asList(second)).getTokens()), "second");
+        assertEquals(resolver.getCachedChainCount(), 2);
+    }
+
+    private ComponentTemplate newTemplate(Resource resource, String text)
+    {
+        List<TemplateToken> tokens = CollectionFactory.newList();
+
+        tokens.add(new TextToken(text, null));
+
+        return new ComponentTemplateImpl(resource, tokens, CollectionFactory.<String, Location>newMap(), false,
+                                         CollectionFactory.<String, List<TemplateToken>>newMap());
+    }
+
+    @Test
+    public void chain_must_end_with_base_template()
+    {
+        ExtendedTemplateResolverImpl resolver = new ExtendedTemplateResolverImpl();
+
+        try
+        {
+            resolver.resolve(Arrays.asList(parse("extension_point_override.tml")));
+            unreachable();
+        }
+        catch (IllegalArgumentException ex)
+        {
+            assertTrue(ex.getMessage().contains("extension_point_override.tml"));
+        }
+    }
+
+    @Test
+    public void page_loader_receives_merged_template()
+    {
+        ComponentTemplate base = parse("extension_point.tml");
+        ComponentTemplate extension = parse("extension_point_override.tml");
+
+        ComponentTemplateSource source = newMock(ComponentTemplateSource.class);
+        ComponentModel model = newMock(ComponentModel.class);
+        ComponentModel parentModel = newMock(ComponentModel.class);
+        CachingTemplateParser parser = newMock(CachingTemplateParser.class);
+        TemplateExtensionGraph extensionGraph = newMock(TemplateExtensionGraph.class);
+        TemplateUsageRecorder recorder = newMock(TemplateUsageRecorder.class);
+
+        expect(source.getTemplate(model, Locale.ENGLISH)).andReturn(extension);
+        expect(source.getTemplate(parentModel, Locale.ENGLISH)).andReturn(base);
+        expect(parser.getCurrentTemplate(extension)).andReturn(extension);
+        expect(parser.getCurrentTemplate(base)).andReturn(base);
+        expect(model.getParentModel()).andReturn(parentModel);
+
+        recorder.templateUsed(extension.getResource());
+        extensionGraph.extensionResolved(extension.getResource(), base.getResource());
+
+        replay();
+
+        ExtendedTemplateResolverImpl resolver = new ExtendedTemplateResolverImpl();
+
+        ComponentTemplateSourceWrapper wrapper = new ComponentTemplateSourceWrapper(source, parser, extensionGraph,
+                                                                                    recorder, resolver);
+
+        ComponentTemplate template = wrapper.getTemplate(model, Locale.ENGLISH);
+
+        verify();
+
+        // Not an extension, so the page loader assembles the merged tokens without searching for overrides.
+
+        assertFalse(template.isExtension());
+        assertEquals(template.getResource(), extension.getResource());
+        assertTrue(text(template.getTokens()).contains("Replaced Title"));
+        assertSame(template, resolver.resolve(Arrays.asList(extension, base)));
+    }
+}
@@ -0,0 +1,121 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.ClasspathResource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.ioc.internal.util.TapestryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the time taken by each template reader backend to parse a corpus of templates; by default, the templates
+ * used by the parser tests. This is not a test, and is run by hand:
+ * <p/>
+ * <code>ParserBackendBenchmark [&lt;iterations&gt; [&lt;template-directory&gt;]]</code>
+ * <p/>
+ * Templates that fail to parse are left out of the timings.
+ */
+public class ParserBackendBenchmark
+{
+    private static final int WARMUP_ITERATIONS = 50;
+
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+
+        File directory = args.length > 1
+                         ? new File(args[1])
+                         : new File(ParserBackendBenchmark.class.getResource("component.tml").toURI()).getParentFile();
+
+        Map<String, TemplateReaderFactory> backends = CollectionFactory.newMap();
+
+        backends.put("sax", SaxTemplateReader.FACTORY);
+        backends.put("stax", StaxTemplateReader.FACTORY);
+
+        Logger logger = LoggerFactory.getLogger(ParserBackendBenchmark.class);
+
+        TemplateParseSchedulerImpl scheduler = new TemplateParseSchedulerImpl(0, false, logger);
+
+        try
+        {
+            List<Resource> resources = findTemplates(directory, newParser(SaxTemplateReader.FACTORY, scheduler));
+
+            System.out.printf("%d templates, %d iterations%n", resources.size(), iterations);
+
+            for (Map.Entry<String, TemplateReaderFactory> entry : backends.entrySet())
+            {
+                TemplateParser parser = newParser(entry.getValue(), scheduler);
+
+                parseAll(parser, resources, WARMUP_ITERATIONS);
+
+                long start = System.nanoTime();
+
+                parseAll(parser, resources, iterations);
+
+                double elapsedMillis = (System.nanoTime() - start) / 1000000d;
+
+                System.out.printf("%-6s %10.1f ms total %10.3f ms per template%n", entry.getKey(), elapsedMillis,
+                                  elapsedMillis / (iterations * resources.size()));
+            }
+        }
+        finally
+        {
+            scheduler.registryDidShutdown();
+        }
+    }
+
+    private static TemplateParser newParser(TemplateReaderFactory factory, TemplateParseScheduler scheduler)
+    {
+        return new SaxTemplateParserImpl(SaxParserModule.getEntityResources(), true, false, true, 0,
+                                         new WhitespacePreservationImpl(SaxParserModule.DEFAULT_PRESERVED_ELEMENTS),
+                                         TemplateLimits.UNLIMITED, factory, scheduler,
+                                         new TemplateExtensionGraphImpl(
+                                                 LoggerFactory.getLogger(ParserBackendBenchmark.class)));
+    }
+
+    /**
+     * Returns the templates in the directory that parse successfully.
+     */
+    private static List<Resource> findTemplates(File directory, TemplateParser parser) throws Exception
+    {
+        ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() }, null);
+
+        List<Resource> result = CollectionFactory.newList();
+
+        for (String name : directory.list())
+        {
+            if (!name.endsWith(".tml")) continue;
+
+            Resource resource = new ClasspathResource(loader, name);
+
+            try
+            {
+                parser.parseTemplate(resource);
+
+                result.add(resource);
+            }
+            catch (TapestryException ex)
+            {
+                // Skipped.
+            }
+        }
+
+        return result;
+    }
+
+    private static void parseAll(TemplateParser parser, List<Resource> resources, int iterations)
+    {
+        for (int i = 0; i < iterations; i++)
+        {
+            for (Resource resource : resources)
+                parser.parseTemplate(resource);
+        }
+    }
+}
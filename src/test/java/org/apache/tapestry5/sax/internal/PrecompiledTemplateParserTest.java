@@ -0,0 +1,164 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.ClasspathResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class PrecompiledTemplateParserTest extends InternalBaseTestCase
+{
+    private final Logger logger = LoggerFactory.getLogger(PrecompiledTemplateParserTest.class);
+
+    private TemplateParser getParser()
+    {
+        return getService("TemplateParserOverride", TemplateParser.class);
+    }
+
+    @DataProvider(name = "templates")
+    public Object[][] templates()
+    {
+        return new Object[][]
+                {
+                        { "complex_component_type.tml" },
+                        { "componentWithParameters.tml" },
+                        { "component_with_mixins.tml" },
+                        { "expansions_in_normal_text.tml" },
+                        { "extension_point.tml" },
+                        { "overrides.tml" },
+                        { "cdata.tml" },
+                        { "comment.tml" },
+                        { "xhtml1_strict_doctype.tml" },
+                        { "parameter_namespace_element.tml" },
+                        { "block_element.tml" } };
+    }
+
+    @Test(dataProvider = "templates")
+    public void encoding_round_trip(String file) throws Exception
+    {
+        String path = getClass().getPackage().getName().replace('.', '/') + "/" + file;
+
+        Resource resource = new ClasspathResource(getClass().getClassLoader(), path);
+
+        SaxComponentTemplate template = (SaxComponentTemplate) getParser().parseTemplate(resource);
+
+        byte[] encoded = TemplateCodec.encode(template);
+
+        SaxComponentTemplate decoded = TemplateCodec.decode(encoded, resource, template.getContentHash(),
+                                                              new StringInterner());
+
+        assertEquals(TemplateCodec.encode(decoded), encoded);
+        assertEquals(decoded.getTokens().size(), template.getTokens().size());
+        assertEquals(decoded.getComponentIds().keySet(), template.getComponentIds().keySet());
+        assertEquals(decoded.isExtension(), template.isExtension());
+    }
+
+    @Test
+    public void unchanged_templates_come_from_archive() throws Exception
+    {
+        File directory = File.createTempFile("templates", "");
+
+        directory.delete();
+        directory.mkdirs();
+
+        File page = new File(directory, "Page.tml");
+        File broken = new File(directory, "Broken.tml");
+        File archive = new File(directory, TemplateArchive.PATH);
+
+        write(page, "<html xmlns:t='http://tapestry.apache.org/schema/tapestry_5_1_0.xsd'>" +
+                "<t:extension-point id='title'>${title}</t:extension-point><t:body/></html>");
+        write(broken, "<html>");
+
+        try
+        {
+            WhitespacePreservation preservation = getService(WhitespacePreservation.class);
+
+            int count = new TemplatePrecompiler(directory, true, false, preservation, logger).precompile(archive);
+
+            assertEquals(count, 1);
+
+            final AtomicInteger parses = new AtomicInteger();
+
+            TemplateParser delegate = new TemplateParser()
+            {
+                public ComponentTemplate parseTemplate(Resource templateResource)
+                {
+                    parses.incrementAndGet();
+
+                    return getParser().parseTemplate(templateResource);
+                }
+            };
+
+            ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() }, null);
+
+            TemplateExtensionGraphImpl graph = new TemplateExtensionGraphImpl(logger);
+
+            PrecompiledTemplateParserImpl parser = new PrecompiledTemplateParserImpl(delegate, loader, true, false,
+                                                                                     preservation, graph, logger);
+
+            assertEquals(parser.getArchivedTemplateCount(), 1);
+
+            Resource resource = new ClasspathResource(loader, "Page.tml");
+
+            SaxComponentTemplate archived = (SaxComponentTemplate) parser.parseTemplate(resource);
+
+            assertEquals(parses.get(), 0);
+            assertSame(archived.getResource(), resource);
+            assertEquals(TemplateCodec.encode(archived),
+                         TemplateCodec.encode((SaxComponentTemplate) getParser().parseTemplate(resource)));
+            assertTrue(graph.getExtensionPointIds(resource).contains("title"));
+
+            // Changed templates, and those not in the archive, are parsed.
+
+            write(page, "<html><p>changed</p></html>");
+
+            parser.parseTemplate(resource);
+
+            assertEquals(parses.get(), 1);
+
+            try
+            {
+                parser.parseTemplate(new ClasspathResource(loader, "Broken.tml"));
+                unreachable();
+            }
+            catch (RuntimeException ex)
+            {
+                assertEquals(parses.get(), 2);
+            }
+
+            // Archives precompiled with different options are ignored.
+
+            assertEquals(new PrecompiledTemplateParserImpl(delegate, loader, true, true, preservation, graph,
+                                                           logger)
+                    .getArchivedTemplateCount(), 0);
+        }
+        finally
+        {
+            archive.delete();
+            archive.getParentFile().delete();
+            archive.getParentFile().getParentFile().delete();
+            page.delete();
+            broken.delete();
+            directory.delete();
+        }
+    }
+
+    private void write(File file, String content) throws IOException
+    {
+        Writer writer = new FileWriter(file);
+
+        writer.write(content);
+        writer.close();
+    }
+}
@@ -0,0 +1,272 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.parser.ComponentTemplateImpl;
+import org.apache.tapestry5.internal.parser.TemplateToken;
+import org.apache.tapestry5.internal.parser.TokenType;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Location;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.ClasspathResource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.ioc.internal.util.LocationImpl;
+import org.apache.tapestry5.ioc.internal.util.TapestryException;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+/**
+ * tapestry-core's own parser needs Woodstox, which isn't on the test classpath; a second instance of this module's
+ * parser, configured to behave as the core parser does, stands in for it.
+ */
+public class ShadowVerifierImplTest extends InternalBaseTestCase
+{
+    /**
+     * Runs checks immediately, in the calling thread.
+     */
+    private static final Executor SAME_THREAD = new Executor()
+    {
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    private Resource getResource(String file)
+    {
+        String path = getClass().getPackage().getName().replace('.', '/') + "/" + file;
+
+        return new ClasspathResource(getClass().getClassLoader(), path);
+    }
+
+    private TemplateParser newParser(int textChunkSize)
+    {
+        return newParser(true, false, textChunkSize, getService(WhitespacePreservation.class));
+    }
+
+    private TemplateParser newParser(boolean compressWhitespace, boolean minify, int textChunkSize,
+            WhitespacePreservation whitespacePreservation)
+    {
+        return new SaxTemplateParserImpl(SaxParserModule.getEntityResources(), compressWhitespace, minify, true,
+                                         textChunkSize, whitespacePreservation, getService(TemplateLimits.class),
+                                         SaxTemplateReader.FACTORY, getService(TemplateParseScheduler.class),
+                                         new TemplateExtensionGraphImpl(
+                                                 LoggerFactory.getLogger(ShadowVerifierImplTest.class)));
+    }
+
+    /**
+     * Stands in for the core parser, which compresses whitespace but preserves it nowhere.
+     */
+    private TemplateParser newCoreParser(boolean compressWhitespace)
+    {
+        return newParser(compressWhitespace, false, 0,
+                         new WhitespacePreservationImpl(Collections.<String>emptyList()));
+    }
+
+    private ShadowVerifierImpl newVerifier(TemplateParser coreParser, double sampleRate)
+    {
+        return newVerifier(coreParser, sampleRate, false);
+    }
+
+    private ShadowVerifierImpl newVerifier(TemplateParser coreParser, double sampleRate, boolean minify)
+    {
+        return new ShadowVerifierImpl(coreParser, sampleRate, true, minify, getService(WhitespacePreservation.class),
+                                      SAME_THREAD, LoggerFactory.getLogger(ShadowVerifierImplTest.class));
+    }
+
+    @Test
+    public void matching_templates_are_verified()
+    {
+        ShadowVerifierImpl verifier = newVerifier(newParser(0), 1);
+
+        // Text split into chunks still matches.
+
+        TemplateParser parser = newParser(16);
+
+        for (String file : new String[] { "component.tml", "overrides.tml", "large_text.tml" })
+        {
+            Resource resource = getResource(file);
+
+            verifier.templateParsed(resource, parser.parseTemplate(resource));
+        }
+
+        assertEquals(verifier.getVerifiedCount(), 3);
+        assertTrue(verifier.getMismatches().isEmpty());
+    }
+
+    @Test
+    public void start_tags_may_be_reported_on_their_first_line()
+    {
+        // The core parser reports a start tag spanning several lines on the line where it starts.
+
+        TemplateParser core = new ShiftingTemplateParser(newParser(0))
+        {
+            protected int shift(TokenType type, int line)
+            {
+                return ShadowVerifierImpl.START_TAG_TYPES.contains(type) && (line == 3 || line == 5) ? -1 : 0;
+            }
+        };
+
+        ShadowVerifierImpl verifier = newVerifier(core, 1);
+
+        Resource resource = getResource("multiline_start_tag.tml");
+
+        verifier.templateParsed(resource, newParser(0).parseTemplate(resource));
+
+        assertEquals(verifier.getVerifiedCount(), 1);
+        assertTrue(verifier.getMismatches().isEmpty());
+    }
+
+    @Test
+    public void line_numbers_are_compared()
+    {
+        TemplateParser core = new ShiftingTemplateParser(newParser(0))
+        {
+            protected int shift(TokenType type, int line)
+            {
+                return 1;
+            }
+        };
+
+        ShadowVerifierImpl verifier = newVerifier(core, 1);
+
+        Resource resource = getResource("component.tml");
+
+        verifier.templateParsed(resource, newParser(0).parseTemplate(resource));
+
+        assertEquals(verifier.getVerifiedCount(), 1);
+        assertTrue(verifier.getMismatches().get(resource.toString()).contains("at line"));
+    }
+
+    @Test
+    public void whitespace_compared_loosely_where_minified_or_preserved()
+    {
+        ShadowVerifierImpl verifier = newVerifier(newCoreParser(true), 1, true);
+
+        Resource resource = getResource("minify.tml");
+
+        verifier.templateParsed(resource,
+                                newParser(true, true, 0, getService(WhitespacePreservation.class)).parseTemplate(
+                                        resource));
+
+        assertEquals(verifier.getVerifiedCount(), 1);
+        assertTrue(verifier.getMismatches().isEmpty());
+    }
+
+    @Test
+    public void whitespace_compared_elsewhere()
+    {
+        // The core parser doesn't compress whitespace, but this module does.
+
+        ShadowVerifierImpl verifier = newVerifier(newCoreParser(false), 1);
+
+        Resource resource = getResource("minify.tml");
+
+        verifier.templateParsed(resource, newParser(0).parseTemplate(resource));
+
+        assertEquals(verifier.getVerifiedCount(), 1);
+        assertEquals(verifier.getMismatches().size(), 1);
+    }
+
+    @Test
+    public void differences_are_recorded()
+    {
+        ShadowVerifierImpl verifier = newVerifier(newParser(0), 1);
+
+        Resource resource = getResource("component.tml");
+
+        ComponentTemplate template = newParser(0).parseTemplate(resource);
+
+        List<TemplateToken> tokens = template.getTokens().subList(0, template.getTokens().size() - 1);
+
+        verifier.templateParsed(resource, new ComponentTemplateImpl(resource, tokens, template.getComponentIds(),
+                                                                     false, null));
+
+        assertEquals(verifier.getVerifiedCount(), 1);
+
+        Map<String, String> mismatches = verifier.getMismatches();
+
+        assertEquals(mismatches.keySet().iterator().next(), resource.toString());
+        assertTrue(mismatches.get(resource.toString()).contains("tokens has"));
+    }
+
+    @Test
+    public void failure_of_core_parser_is_recorded()
+    {
+        TemplateParser failing = new TemplateParser()
+        {
+            public ComponentTemplate parseTemplate(Resource templateResource)
+            {
+                throw new TapestryException("Unexpected element.", null);
+            }
+        };
+
+        ShadowVerifierImpl verifier = newVerifier(failing, 1);
+
+        Resource resource = getResource("component.tml");
+
+        verifier.templateParsed(resource, newParser(0).parseTemplate(resource));
+
+        assertTrue(verifier.getMismatches().get(resource.toString()).contains("Unexpected element."));
+    }
+
+    @Test
+    public void nothing_checked_when_sample_rate_is_zero()
+    {
+        TemplateParser parser = newMock(TemplateParser.class);
+
+        replay();
+
+        ShadowVerifierImpl verifier = newVerifier(parser, 0);
+
+        Resource resource = getResource("component.tml");
+
+        verifier.templateParsed(resource, newParser(0).parseTemplate(resource));
+
+        assertEquals(verifier.getVerifiedCount(), 0);
+
+        verify();
+    }
+
+    /**
+     * Parses with another parser, then moves tokens (and component ids, as for their start tags) to other lines.
+     */
+    private static abstract class ShiftingTemplateParser implements TemplateParser
+    {
+        private final TemplateParser parser;
+
+        ShiftingTemplateParser(TemplateParser parser)
+        {
+            this.parser = parser;
+        }
+
+        protected abstract int shift(TokenType type, int line);
+
+        public ComponentTemplate parseTemplate(Resource templateResource)
+        {
+            ComponentTemplate template = parser.parseTemplate(templateResource);
+
+            List<TemplateToken> tokens = CollectionFactory.newList();
+
+            for (TemplateToken token : template.getTokens())
+                tokens.add(TemplateTokens.copy(token, shift(token.getTokenType(), token.getLocation())));
+
+            Map<String, Location> componentIds = CollectionFactory.newCaseInsensitiveMap();
+
+            for (Map.Entry<String, Location> entry : template.getComponentIds().entrySet())
+                componentIds.put(entry.getKey(), shift(TokenType.START_COMPONENT, entry.getValue()));
+
+            return new ComponentTemplateImpl(templateResource, tokens, componentIds, template.isExtension(), null);
+        }
+
+        private Location shift(TokenType type, Location location)
+        {
+            return new LocationImpl(location.getResource(),
+                                    location.getLine() + shift(type, location.getLine()));
+        }
+    }
+}
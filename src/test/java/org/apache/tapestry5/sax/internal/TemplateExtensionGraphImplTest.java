@@ -0,0 +1,90 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.ClasspathResource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+public class TemplateExtensionGraphImplTest extends InternalBaseTestCase
+{
+    private final Resource layout = new ClasspathResource("Layout.tml");
+
+    private final Resource page = new ClasspathResource("Page.tml");
+
+    private final Resource subpage = new ClasspathResource("SubPage.tml");
+
+    private final Resource other = new ClasspathResource("Other.tml");
+
+    private TemplateExtensionGraphImpl newGraph()
+    {
+        TemplateExtensionGraphImpl graph = new TemplateExtensionGraphImpl(LoggerFactory.getLogger(
+                TemplateExtensionGraphImplTest.class));
+
+        graph.extensionResolved(page, layout);
+        graph.extensionResolved(subpage, page);
+        graph.templateParsed(other, false, Collections.<String>emptySet());
+
+        return graph;
+    }
+
+    @Test
+    public void dependents_are_transitive()
+    {
+        TemplateExtensionGraphImpl graph = newGraph();
+
+        assertEquals(graph.getDependents(layout), CollectionFactory.newSet(page, subpage));
+        assertEquals(graph.getDependents(page), CollectionFactory.newSet(subpage));
+        assertTrue(graph.getDependents(subpage).isEmpty());
+        assertTrue(graph.getDependents(other).isEmpty());
+
+        assertSame(graph.getParent(subpage), page);
+    }
+
+    @Test
+    public void template_no_longer_an_extension_is_detached()
+    {
+        TemplateExtensionGraphImpl graph = newGraph();
+
+        graph.templateParsed(page, false, Collections.<String>emptySet());
+
+        assertTrue(graph.getDependents(layout).isEmpty());
+        assertNull(graph.getParent(page));
+        assertEquals(graph.getDependents(page), CollectionFactory.newSet(subpage));
+    }
+
+    @Test
+    public void listeners_informed_of_exactly_the_dependents()
+    {
+        TemplateExtensionGraphImpl graph = newGraph();
+
+        final Set<Resource> notified = CollectionFactory.newSet();
+
+        graph.addChangeListener(new TemplateChangeListener()
+        {
+            public void templatesChanged(Set<Resource> resources)
+            {
+                notified.addAll(resources);
+            }
+        });
+
+        graph.templatesChanged(CollectionFactory.<Resource, Resource>newSet(page));
+
+        assertEquals(notified, CollectionFactory.newSet(page, subpage));
+    }
+
+    @Test
+    public void parser_records_extension_points()
+    {
+        Resource resource = new ClasspathResource("org/apache/tapestry5/sax/internal/extension_point.tml");
+
+        getService("TemplateParserOverride", TemplateParser.class).parseTemplate(resource);
+
+        assertEquals(getService(TemplateExtensionGraph.class).getExtensionPointIds(resource),
+                     CollectionFactory.newSet("title"));
+    }
+}
@@ -0,0 +1,500 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.ClasspathResource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simulates the template storm that follows a deploy or a reload: many threads requesting templates at once, from a
+ * cold cache, while templates keep changing. A corpus of templates is generated in a temporary directory and served
+ * through the {@link CachingTemplateParser} layer, as in an application; a script thread rewrites a few templates at
+ * a time, and now and then rewrites them all (a "redeploy"), notifying the cache as the file system watcher would.
+ * This is not a test, and is run by hand:
+ * <p/>
+ * <code>TemplateLoadHarness [&lt;threads&gt; [&lt;requests-per-thread&gt; [&lt;templates&gt;
+ * [&lt;change-interval-millis&gt;]]]]</code>
+ * <p/>
+ * Reports the latency of template requests (p50, p99, p999 and maximum), throughput, the number of parses performed
+ * (requests not served from the cache) and the peak heap usage.
+ */
+public class TemplateLoadHarness
+{
+    /**
+     * Every this many scripted changes, all templates are changed at once.
+     */
+    private static final int REDEPLOY_EVERY = 10;
+
+    /**
+     * The fraction of templates changed by each (ordinary) scripted change.
+     */
+    private static final double CHANGED_FRACTION = 0.05;
+
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    public static void main(String[] args) throws Exception
+    {
+        int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int requestsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int templateCount = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        long changeIntervalMillis = args.length > 3 ? Long.parseLong(args[3]) : 100;
+
+        Logger logger = LoggerFactory.getLogger(TemplateLoadHarness.class);
+
+        File directory = createTempDirectory();
+
+        TemplateParseSchedulerImpl scheduler = new TemplateParseSchedulerImpl(0, false, logger);
+
+        try
+        {
+            Corpus corpus = new Corpus(directory, templateCount);
+
+            ScriptedChangeWatcher watcher = new ScriptedChangeWatcher();
+
+            CountingTemplateParser counter = new CountingTemplateParser(newParser(scheduler));
+
+            CachingTemplateParserImpl parser = new CachingTemplateParserImpl(counter, watcher, scheduler, false,
+                                                                             logger);
+
+            watcher.addChangeListener(parser);
+
+            System.out.printf("%d threads, %d requests per thread, %d templates, changes every %d ms%n", threadCount,
+                              requestsPerThread, templateCount, changeIntervalMillis);
+
+            run(parser, corpus, watcher, counter, threadCount, requestsPerThread, changeIntervalMillis);
+        }
+        finally
+        {
+            scheduler.registryDidShutdown();
+
+            delete(directory);
+        }
+    }
+
+    private static TemplateParser newParser(TemplateParseScheduler scheduler)
+    {
+        return new SaxTemplateParserImpl(SaxParserModule.getEntityResources(), true, false, true, 0,
+                                         new WhitespacePreservationImpl(SaxParserModule.DEFAULT_PRESERVED_ELEMENTS),
+                                         TemplateLimits.UNLIMITED, SaxTemplateReader.FACTORY, scheduler,
+                                         new TemplateExtensionGraphImpl(
+                                                 LoggerFactory.getLogger(TemplateLoadHarness.class)));
+    }
+
+    private static void run(final TemplateParser parser, final Corpus corpus, final ScriptedChangeWatcher watcher,
+            CountingTemplateParser counter, int threadCount, final int requestsPerThread,
+            final long changeIntervalMillis) throws Exception
+    {
+        final long[][] latencies = new long[threadCount][];
+        final AtomicInteger failures = new AtomicInteger();
+        final List<Throwable> firstFailures = new CopyOnWriteArrayList<Throwable>();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(threadCount);
+
+        for (int i = 0; i < threadCount; i++)
+        {
+            final int threadIndex = i;
+
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    Random random = new Random(threadIndex);
+
+                    long[] times = new long[requestsPerThread];
+
+                    try
+                    {
+                        start.await();
+
+                        for (int j = 0; j < requestsPerThread; j++)
+                        {
+                            Resource resource = corpus.pick(random);
+
+                            long requestStart = System.nanoTime();
+
+                            try
+                            {
+                                parser.parseTemplate(resource);
+                            }
+                            catch (RuntimeException ex)
+                            {
+                                if (failures.incrementAndGet() <= 5) firstFailures.add(ex);
+                            }
+
+                            times[j] = System.nanoTime() - requestStart;
+                        }
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally
+                    {
+                        latencies[threadIndex] = times;
+
+                        finished.countDown();
+                    }
+                }
+            }, "LoadHarness-" + i);
+
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        final AtomicInteger changeCount = new AtomicInteger();
+
+        Thread script = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                Random random = new Random();
+
+                try
+                {
+                    while (true)
+                    {
+                        Thread.sleep(changeIntervalMillis);
+
+                        boolean redeploy = changeCount.incrementAndGet() % REDEPLOY_EVERY == 0;
+
+                        watcher.changed(corpus.change(random, redeploy ? 1 : CHANGED_FRACTION));
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    // Finished.
+                }
+                catch (IOException ex)
+                {
+                    ex.printStackTrace();
+                }
+            }
+        }, "LoadHarness-script");
+
+        script.setDaemon(true);
+
+        resetPeakHeapUsage();
+
+        long startNanos = System.nanoTime();
+
+        script.start();
+        start.countDown();
+        finished.await();
+
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        script.interrupt();
+        script.join();
+
+        report(latencies, elapsedNanos, counter.getParseCount(), changeCount.get(), failures.get());
+
+        for (Throwable failure : firstFailures)
+            failure.printStackTrace();
+    }
+
+    private static void report(long[][] latencies, long elapsedNanos, int parses, int changes, int failures)
+    {
+        int total = 0;
+
+        for (long[] times : latencies)
+            total += times.length;
+
+        long[] all = new long[total];
+
+        int offset = 0;
+
+        for (long[] times : latencies)
+        {
+            System.arraycopy(times, 0, all, offset, times.length);
+            offset += times.length;
+        }
+
+        Arrays.sort(all);
+
+        double elapsedSeconds = elapsedNanos / (NANOS_PER_MILLI * 1000);
+
+        System.out.printf("requests    %10d in %.2f s (%.0f per second)%n", total, elapsedSeconds,
+                          total / elapsedSeconds);
+        System.out.printf("parses      %10d (%d scripted changes, %d failed requests)%n", parses, changes, failures);
+        System.out.printf("p50         %10.3f ms%n", percentile(all, 0.50));
+        System.out.printf("p99         %10.3f ms%n", percentile(all, 0.99));
+        System.out.printf("p999        %10.3f ms%n", percentile(all, 0.999));
+        System.out.printf("max         %10.3f ms%n", all.length == 0 ? 0 : all[all.length - 1] / NANOS_PER_MILLI);
+        System.out.printf("peak heap   %10.1f MB%n", getPeakHeapUsage() / (1024d * 1024d));
+    }
+
+    private static double percentile(long[] sorted, double fraction)
+    {
+        if (sorted.length == 0) return 0;
+
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+
+        return sorted[Math.max(0, index)] / NANOS_PER_MILLI;
+    }
+
+    private static void resetPeakHeapUsage()
+    {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * The sum of the peak usage of each heap memory pool (the pools don't peak at the same time, so this overstates
+     * the true peak somewhat).
+     */
+    private static long getPeakHeapUsage()
+    {
+        long result = 0;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP) result += pool.getPeakUsage().getUsed();
+        }
+
+        return result;
+    }
+
+    private static File createTempDirectory() throws IOException
+    {
+        File file = File.createTempFile("template-load", "");
+
+        if (!file.delete() || !file.mkdir()) throw new IOException("Unable to create directory " + file);
+
+        return file;
+    }
+
+    private static void delete(File directory)
+    {
+        File[] files = directory.listFiles();
+
+        if (files != null)
+        {
+            for (File file : files)
+                file.delete();
+        }
+
+        directory.delete();
+    }
+
+    /**
+     * The generated templates. Each is a page of a different size, with components, expansions and static markup; a
+     * change rewrites a template with a new revision number, so that its content (and so its content hash) differs.
+     */
+    private static class Corpus
+    {
+        private final File directory;
+
+        private final Resource[] resources;
+
+        private final int[] revisions;
+
+        Corpus(File directory, int count) throws IOException
+        {
+            this.directory = directory;
+
+            resources = new Resource[count];
+            revisions = new int[count];
+
+            ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() }, null);
+
+            for (int i = 0; i < count; i++)
+            {
+                write(i);
+
+                resources[i] = new ClasspathResource(loader, name(i));
+            }
+        }
+
+        /**
+         * Picks a template; a few templates (the layout, the home page) are requested far more often than the rest.
+         */
+        Resource pick(Random random)
+        {
+            double r = random.nextDouble();
+
+            return resources[(int) (r * r * r * resources.length)];
+        }
+
+        /**
+         * Rewrites a random selection of the templates.
+         *
+         * @return the templates changed
+         */
+        synchronized Set<Resource> change(Random random, double fraction) throws IOException
+        {
+            Set<Resource> result = CollectionFactory.newSet();
+
+            for (int i = 0; i < resources.length; i++)
+            {
+                if (fraction < 1 && random.nextDouble() >= fraction) continue;
+
+                revisions[i]++;
+
+                write(i);
+
+                result.add(resources[i]);
+            }
+
+            return result;
+        }
+
+        private static String name(int index)
+        {
+            return "Page" + index + ".tml";
+        }
+
+        /**
+         * Writes the template to a new file, then renames it into place, so that a request never sees a partly
+         * written template.
+         */
+        private void write(int index) throws IOException
+        {
+            File temp = new File(directory, name(index) + ".tmp");
+
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+
+            try
+            {
+                writer.write(content(index, revisions[index]));
+            }
+            finally
+            {
+                writer.close();
+            }
+
+            File file = new File(directory, name(index));
+
+            if (!temp.renameTo(file)) throw new IOException("Unable to replace " + file);
+        }
+
+        private static String content(int index, int revision)
+        {
+            StringBuilder builder = new StringBuilder();
+
+            builder.append("<html xmlns:t=\"http://tapestry.apache.org/schema/tapestry_5_1_0.xsd\"");
+            builder.append(" xmlns:p=\"tapestry:parameter\">\n");
+            builder.append("    <!-- Page ").append(index).append(", revision ").append(revision).append(" -->\n");
+            builder.append("    <head><title>${title}</title></head>\n");
+            builder.append("    <body>\n");
+
+            // Sizes vary from a few lines to several hundred.
+
+            int sections = 1 + (index * 7) % 40;
+
+            for (int i = 0; i < sections; i++)
+            {
+                builder.append("        <div class=\"section s").append(i).append("\">\n");
+                builder.append("            <h2>Section ").append(i).append(" of ${pageName}</h2>\n");
+                builder.append("            <p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do");
+                builder.append(" eiusmod tempor incididunt ut labore et dolore magna aliqua: ${item").append(i);
+                builder.append("}.</p>\n");
+
+                if (i % 3 == 0)
+                {
+                    builder.append("            <t:loop t:id=\"loop").append(i);
+                    builder.append("\" source=\"items\" value=\"item\">\n");
+                    builder.append("                <a t:type=\"pagelink\" page=\"Page").append(i);
+                    builder.append("\">${item.label}</a>\n");
+                    builder.append("            </t:loop>\n");
+                }
+
+                if (i % 5 == 0)
+                {
+                    builder.append("            <t:if test=\"showDetails\">\n");
+                    builder.append("                <span t:id=\"detail").append(i).append("\" t:type=\"output\"");
+                    builder.append(" value=\"detail\" format=\"format\"/>\n");
+                    builder.append("                <p:else>No details.</p:else>\n");
+                    builder.append("            </t:if>\n");
+                }
+
+                builder.append("        </div>\n");
+            }
+
+            builder.append("    </body>\n");
+            builder.append("</html>\n");
+
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Stands in for the file system watcher: every template is watched, and changes are reported when the script
+     * makes them.
+     */
+    private static class ScriptedChangeWatcher implements TemplateChangeWatcher
+    {
+        private final List<TemplateChangeListener> listeners = new CopyOnWriteArrayList<TemplateChangeListener>();
+
+        public boolean watch(Resource resource)
+        {
+            return true;
+        }
+
+        public boolean isPending(Resource resource)
+        {
+            return false;
+        }
+
+        public void addChangeListener(TemplateChangeListener listener)
+        {
+            listeners.add(listener);
+        }
+
+        void changed(Set<Resource> resources)
+        {
+            for (TemplateChangeListener listener : listeners)
+                listener.templatesChanged(resources);
+        }
+    }
+
+    /**
+     * Counts the parses that reach the parser (that is, those not served from the cache).
+     */
+    private static class CountingTemplateParser implements TemplateParser
+    {
+        private final TemplateParser delegate;
+
+        private final AtomicInteger parseCount = new AtomicInteger();
+
+        CountingTemplateParser(TemplateParser delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        public ComponentTemplate parseTemplate(Resource templateResource)
+        {
+            parseCount.incrementAndGet();
+
+            return delegate.parseTemplate(templateResource);
+        }
+
+        int getParseCount()
+        {
+            return parseCount.get();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tapestry5.ioc.Invokable;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.slf4j.Logger;
+import org.testng.annotations.Test;
+
+public class TemplateParseSchedulerImplTest extends InternalBaseTestCase
+{
+    @Test
+    public void concurrent_parses_are_bounded() throws Exception
+    {
+        Logger logger = newMock(Logger.class);
+
+        replay();
+
+        final TemplateParseSchedulerImpl scheduler = new TemplateParseSchedulerImpl(2, false, logger);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        List<Future<Integer>> futures = CollectionFactory.newList();
+
+        for (int i = 0; i < 6; i++)
+        {
+            final int index = i;
+
+            futures.add(scheduler.submit(new Invokable<Integer>()
+            {
+                public Integer invoke()
+                {
+                    int now = running.incrementAndGet();
+
+                    synchronized (maxRunning)
+                    {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        throw new RuntimeException(ex);
+                    }
+
+                    running.decrementAndGet();
+
+                    return index;
+                }
+            }));
+        }
+
+        // Wait for both parses to be running, not just admitted by the scheduler.
+
+        while (running.get() < 2)
+            Thread.sleep(5);
+
+        assertEquals(scheduler.getActiveParses(), 2);
+        assertEquals(scheduler.getQueueDepth(), 4);
+
+        release.countDown();
+
+        for (int i = 0; i < 6; i++)
+            assertEquals(futures.get(i).get(5, TimeUnit.SECONDS).intValue(), i);
+
+        assertEquals(maxRunning.get(), 2);
+        assertEquals(scheduler.getQueueDepth(), 0);
+        assertEquals(scheduler.getActiveParses(), 0);
+        assertEquals(scheduler.getScheduledParses(), 6);
+        assertTrue(scheduler.getMaxWaitMillis() >= scheduler.getAverageWaitMillis());
+
+        scheduler.registryDidShutdown();
+
+        verify();
+    }
+
+    @Test
+    public void execute_runs_in_calling_thread()
+    {
+        Logger logger = newMock(Logger.class);
+
+        replay();
+
+        TemplateParseSchedulerImpl scheduler = new TemplateParseSchedulerImpl(0, false, logger);
+
+        final Thread caller = Thread.currentThread();
+
+        Thread thread = scheduler.execute(new Invokable<Thread>()
+        {
+            public Thread invoke()
+            {
+                return Thread.currentThread();
+            }
+        });
+
+        assertSame(thread, caller);
+        assertEquals(scheduler.getMaxConcurrentParses(), Runtime.getRuntime().availableProcessors());
+        assertEquals(scheduler.getScheduledParses(), 1);
+
+        scheduler.registryDidShutdown();
+
+        verify();
+    }
+
+    @Test
+    public void nested_parse_runs_in_slot_already_held() throws Exception
+    {
+        Logger logger = newMock(Logger.class);
+
+        replay();
+
+        final TemplateParseSchedulerImpl scheduler = new TemplateParseSchedulerImpl(1, false, logger);
+
+        Future<String> future = scheduler.submit(new Invokable<String>()
+        {
+            public String invoke()
+            {
+                return scheduler.execute(new Invokable<String>()
+                {
+                    public String invoke()
+                    {
+                        return "nested";
+                    }
+                });
+            }
+        });
+
+        assertEquals(future.get(5, TimeUnit.SECONDS), "nested");
+        assertEquals(scheduler.getScheduledParses(), 1);
+
+        scheduler.registryDidShutdown();
+
+        verify();
+    }
+}
@@ -17,9 +17,23 @@ package org.apache.tapestry5.sax.internal;
 
 import static java.lang.String.format;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.tapestry5.internal.parser.AttributeToken;
 import org.apache.tapestry5.internal.parser.BlockToken;
@@ -42,9 +56,11 @@ import org.apache.tapestry5.internal.services.TemplateParser;
 import org.apache.tapestry5.ioc.Locatable;
 import org.apache.tapestry5.ioc.Location;
 import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.AbstractResource;
 import org.apache.tapestry5.ioc.internal.util.ClasspathResource;
 import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
 import org.apache.tapestry5.ioc.internal.util.TapestryException;
+import org.slf4j.LoggerFactory;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
@@ -584,6 +600,84 @@ public class TemplateParserImplTest extends InternalBaseTestCase
         assertEquals(token1.getValue(), "${not-an-expansion}");
     }
 
+    @Test
+    public void attribute_expansions_are_prescanned()
+    {
+        List<TemplateToken> tokens = tokens("attribute_expansions.tml");
+
+        ScannedAttributeToken literal = get(tokens, 2);
+
+        assertEquals(literal.getName(), "href");
+        assertFalse(literal.hasExpansions());
+
+        ScannedAttributeToken title = get(tokens, 3);
+
+        assertEquals(title.getExpansionCount(), 2);
+        assertEquals(title.getExpansionStart(0), 0);
+        assertEquals(title.getExpansionEnd(0), 8);
+        assertEquals(title.getExpansion(0), "title");
+        assertEquals(title.getExpansionStart(1), 11);
+        assertEquals(title.getExpansion(1), "site.name");
+
+        // Unclosed expansions are not expansions at all.
+
+        ScannedAttributeToken broken = get(tokens, 4);
+
+        assertFalse(broken.hasExpansions());
+    }
+
+    @Test
+    public void expansions_are_split_at_parse_time()
+    {
+        SaxComponentTemplate template = (SaxComponentTemplate) parse("expansion_bindings.tml");
+
+        List<SplitExpansionToken> expansions = CollectionFactory.newList();
+
+        for (TemplateToken token : template.getTokens())
+        {
+            if (token.getTokenType() == TokenType.EXPANSION) expansions.add((SplitExpansionToken) token);
+        }
+
+        assertEquals(expansions.size(), 3);
+
+        SplitExpansionToken first = expansions.get(0);
+
+        assertEquals(first.getBindingPrefix(), "prop");
+        assertEquals(first.getBindingExpression(), "user.name");
+
+        SplitExpansionToken second = expansions.get(1);
+
+        assertNull(second.getBindingPrefix());
+        assertEquals(second.getBindingExpression(), "count");
+
+        // Repeated expressions are shared.
+
+        assertSame(expansions.get(2).getExpression(), first.getExpression());
+        assertSame(expansions.get(2).getBindingExpression(), first.getBindingExpression());
+
+        assertEquals(CollectionFactory.newList(template.getExpressions()),
+                     Arrays.asList("message:title", "prop:user.name", "count"));
+    }
+
+    @Test
+    public void template_statistics()
+    {
+        SaxComponentTemplate template = (SaxComponentTemplate) parse("template_statistics.tml");
+
+        TemplateStatistics statistics = template.getStatistics();
+
+        assertEquals(statistics.getTokenCount(), template.getTokens().size());
+        assertEquals(statistics.getTokenCount(TokenType.START_ELEMENT), 3);
+        assertEquals(statistics.getComponentCount(), 2);
+        assertEquals(statistics.getBlockCount(), 1);
+        assertEquals(statistics.getParameterCount(), 1);
+        assertEquals(statistics.getExpansionCount(), 3);
+
+        // html, body, grid, empty, div
+
+        assertEquals(statistics.getMaxDepth(), 5);
+    }
+
     @Test
     public void parameter_element()
     {
@@ -940,4 +1034,689 @@ public class TemplateParserImplTest extends InternalBaseTestCase
 
         checkType(title, 2, TokenType.END_ELEMENT);
     }
+
+    @Test
+    public void batch_parse() throws Exception
+    {
+        BatchTemplateParser parser = getService("TemplateParserOverride", BatchTemplateParser.class);
+
+        Resource component = getResource("component.tml");
+        Resource overrides = getResource("overrides.tml");
+        Resource invalid = getResource("invalid_component_id.tml");
+        Resource doctype = getResource("xhtml1_strict_doctype.tml");
+
+        BatchParseResult result = parser.parseTemplates(Arrays.asList(component, invalid, overrides, doctype,
+                                                                      component));
+
+        assertTrue(result.hasFailures());
+
+        Map<Resource, ComponentTemplate> templates = result.getTemplates();
+
+        assertEquals(templates.size(), 3);
+        assertEquals(templates.get(component).getTokens().size(), 6);
+        assertTrue(templates.get(overrides).isExtension());
+        assertEquals(templates.get(doctype).getTokens().size(), 12);
+
+        TapestryException failure = result.getFailures().get(invalid);
+
+        assertEquals(failure.getMessage(), getMessage(invalid));
+        assertEquals(failure.getLocation().getLine(), 2);
+    }
+
+    @Test
+    public void async_parse_from_chunks() throws Exception
+    {
+        BatchTemplateParser parser = getService("TemplateParserOverride", BatchTemplateParser.class);
+
+        ChunkedTestResource resource = new ChunkedTestResource(getResource("xhtml1_strict_doctype.tml"));
+
+        Future<ComponentTemplate> future = parser.parseTemplateAsync(resource);
+
+        resource.deliver(3, 10);
+
+        assertFalse(future.isDone());
+
+        try
+        {
+            future.get(0, TimeUnit.MILLISECONDS);
+
+            unreachable();
+        }
+        catch (TimeoutException ex)
+        {
+            // Expected: the content is still arriving.
+        }
+
+        // The content is being delivered elsewhere; there's nothing to cancel.
+
+        assertFalse(future.cancel(true));
+
+        resource.deliver(5, 7);
+        resource.complete();
+
+        ComponentTemplate template = future.get(10, TimeUnit.SECONDS);
+
+        assertNull(TemplateTokens.findDifference(parse("xhtml1_strict_doctype.tml"), template));
+    }
+
+    @Test
+    public void async_parse_failure() throws Exception
+    {
+        BatchTemplateParser parser = getService("TemplateParserOverride", BatchTemplateParser.class);
+
+        Resource invalid = getResource("invalid_component_id.tml");
+
+        ChunkedTestResource resource = new ChunkedTestResource(invalid);
+
+        Future<ComponentTemplate> future = parser.parseTemplateAsync(resource);
+
+        resource.complete();
+
+        try
+        {
+            future.get(10, TimeUnit.SECONDS);
+
+            unreachable();
+        }
+        catch (ExecutionException ex)
+        {
+            TapestryException failure = (TapestryException) ex.getCause();
+
+            assertMessageContains(failure, "Component id 'not-valid' is not valid");
+            assertEquals(failure.getLocation().getLine(), 2);
+        }
+
+        resource = new ChunkedTestResource(invalid);
+
+        future = parser.parseTemplateAsync(resource);
+
+        resource.deliver(1, 64);
+        resource.fail(new IOException("Connection reset."));
+
+        try
+        {
+            future.get(10, TimeUnit.SECONDS);
+
+            unreachable();
+        }
+        catch (ExecutionException ex)
+        {
+            assertTrue(ex.getCause() instanceof TapestryException);
+            assertMessageContains(ex.getCause(), "Connection reset.");
+        }
+    }
+
+    /**
+     * Stands in for a remote resource: the test delivers the content, a chunk at a time.
+     */
+    private static class ChunkedTestResource extends AbstractResource implements ChunkedResource
+    {
+        private final Resource resource;
+
+        private final byte[] content;
+
+        private ChunkReceiver receiver;
+
+        private int offset;
+
+        ChunkedTestResource(Resource resource) throws IOException
+        {
+            super(resource.getPath());
+
+            this.resource = resource;
+
+            InputStream stream = resource.openStream();
+
+            try
+            {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+                int b;
+
+                while ((b = stream.read()) >= 0)
+                    bytes.write(b);
+
+                content = bytes.toByteArray();
+            }
+            finally
+            {
+                stream.close();
+            }
+        }
+
+        public InputStream openStream() throws IOException
+        {
+            throw new IOException("Content is only available in chunks.");
+        }
+
+        public URL toURL()
+        {
+            return resource.toURL();
+        }
+
+        protected Resource newResource(String path)
+        {
+            return new ClasspathResource(path);
+        }
+
+        public void readChunks(ChunkReceiver receiver)
+        {
+            this.receiver = receiver;
+        }
+
+        /**
+         * Delivers the next part of the content, in chunks of the given size; all that remains if chunks is 0.
+         */
+        void deliver(int chunks, int chunkSize)
+        {
+            int end = chunks == 0 ? content.length : Math.min(content.length, offset + chunks * chunkSize);
+
+            // A shared buffer, overwritten for each chunk, as a network client might use.
+
+            byte[] buffer = new byte[chunkSize];
+
+            while (offset < end)
+            {
+                int length = Math.min(chunkSize, end - offset);
+
+                System.arraycopy(content, offset, buffer, 0, length);
+
+                receiver.chunk(buffer, 0, length);
+
+                offset += length;
+            }
+        }
+
+        void complete()
+        {
+            deliver(0, 64);
+
+            receiver.complete();
+        }
+
+        void fail(Throwable cause)
+        {
+            receiver.failed(cause);
+        }
+    }
+
+    @Test
+    public void identical_content_is_parsed_once() throws Exception
+    {
+        File directory = File.createTempFile("templates", "");
+
+        directory.delete();
+        directory.mkdirs();
+
+        File index = new File(directory, "Index.tml");
+        File german = new File(directory, "Index_de.tml");
+
+        String content = "<html xmlns:t='http://tapestry.apache.org/schema/tapestry_5_1_0.xsd'>\n" +
+                "<p>${message}</p>\n<t:foo t:id='bar'/></html>";
+
+        write(index, content);
+        write(german, content);
+
+        try
+        {
+            ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() }, null);
+
+            Resource indexResource = new ClasspathResource(loader, "Index.tml");
+            Resource germanResource = new ClasspathResource(loader, "Index_de.tml");
+
+            ComponentTemplate template1 = getParser().parseTemplate(indexResource);
+            ComponentTemplate template2 = getParser().parseTemplate(germanResource);
+
+            assertEquals(template2.getTokens().size(), template1.getTokens().size());
+
+            ExpansionToken expansion1 = firstExpansion(template1);
+            ExpansionToken expansion2 = firstExpansion(template2);
+
+            // The tokens share content, but each has its own location.
+
+            assertSame(expansion2.getExpression(), expansion1.getExpression());
+            assertEquals(expansion1.getLocation().getResource(), indexResource);
+            assertEquals(expansion2.getLocation().getResource(), germanResource);
+            assertEquals(expansion2.getLocation().getLine(), 2);
+            assertEquals(template2.getComponentIds().get("bar").getResource(), germanResource);
+
+            // Once the content differs, so does the template.
+
+            write(german, content.replace("message", "nachricht"));
+
+            ExpansionToken expansion3 = firstExpansion(getParser().parseTemplate(germanResource));
+
+            assertEquals(expansion3.getExpression(), "nachricht");
+        }
+        finally
+        {
+            index.delete();
+            german.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void content_index_forgets_content_when_invalidated()
+    {
+        Resource first = new ClasspathResource("First.tml");
+        Resource second = new ClasspathResource("Second.tml");
+
+        byte[] content = "<p>first</p>".getBytes();
+
+        SaxComponentTemplate template = new SaxComponentTemplate(first, CollectionFactory.<TemplateToken>newList(),
+                                                                 CollectionFactory.<String, Location>newMap(), false,
+                                                                 null, 42);
+
+        TemplateContentIndex index = new TemplateContentIndex();
+
+        index.put(template, TemplateContentIndex.digest(content));
+
+        assertNull(index.get(second, TemplateContentIndex.digest("<p>other</p>".getBytes())));
+        assertSame(index.get(first, TemplateContentIndex.digest(content.clone())), template);
+
+        // Say, First.tml was deleted.
+
+        index.clear();
+
+        assertEquals(index.getContentCount(), 0);
+        assertNull(index.get(second, TemplateContentIndex.digest(content)));
+    }
+
+    @Test
+    public void encoding_detected_from_bom_or_declaration() throws Exception
+    {
+        File directory = File.createTempFile("templates", "");
+
+        directory.delete();
+        directory.mkdirs();
+
+        File latin1 = new File(directory, "Latin1.tml");
+        File utf16 = new File(directory, "Utf16.tml");
+        File utf8 = new File(directory, "Utf8.tml");
+        File invalid = new File(directory, "Invalid.tml");
+
+        write(latin1, new byte[0], "<?xml version='1.0' encoding='ISO-8859-1'?>\n<html><p>caf\u00e9</p></html>",
+              "ISO-8859-1");
+        write(utf16, new byte[] { (byte) 0xFF, (byte) 0xFE }, "<html>\n<p>\u00fcber</p></html>", "UTF-16LE");
+        write(utf8, new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF }, "<html>\n\n<p>\u20ac</p></html>", "UTF-8");
+
+        // A lone continuation byte is not valid UTF-8.
+
+        write(invalid, new byte[0], "<html><p>\u0080</p></html>", "ISO-8859-1");
+
+        try
+        {
+            ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() }, null);
+
+            assertEquals(paragraphText(new ClasspathResource(loader, "Latin1.tml")), "caf\u00e9 at line 2");
+            assertEquals(paragraphText(new ClasspathResource(loader, "Utf16.tml")), "\u00fcber at line 2");
+            assertEquals(paragraphText(new ClasspathResource(loader, "Utf8.tml")), "\u20ac at line 3");
+
+            try
+            {
+                getParser().parseTemplate(new ClasspathResource(loader, "Invalid.tml"));
+
+                unreachable();
+            }
+            catch (TapestryException ex)
+            {
+                assertMessageContains(ex, "Invalid.tml");
+            }
+        }
+        finally
+        {
+            latin1.delete();
+            utf16.delete();
+            utf8.delete();
+            invalid.delete();
+            directory.delete();
+        }
+    }
+
+    private String paragraphText(Resource resource)
+    {
+        TextToken token = get(getParser().parseTemplate(resource).getTokens(), 2);
+
+        return token.getText() + " at line " + token.getLocation().getLine();
+    }
+
+    @DataProvider
+    public Object[][] all_templates_and_limits() throws Exception
+    {
+        List<String> names = TemplateReaderTest.getTemplateNames(getClass());
+
+        // The default limits, then limits that some templates exceed.
+
+        TemplateLimits[] limits = { getService(TemplateLimits.class), new TemplateLimits(0, 5, 0, 0),
+                new TemplateLimits(3, 0, 0, 0), new TemplateLimits(0, 0, 20, 0) };
+
+        Object[][] result = new Object[names.size() * limits.length][];
+
+        for (int i = 0; i < names.size(); i++)
+        {
+            for (int j = 0; j < limits.length; j++)
+                result[i * limits.length + j] = new Object[] { names.get(i), limits[j] };
+        }
+
+        return result;
+    }
+
+    @Test(dataProvider = "all_templates_and_limits")
+    public void plain_markup_fast_path_matches_full_parse(String file, TemplateLimits limits) throws Exception
+    {
+        Resource resource = getResource(file);
+
+        TemplateParser fastPath = newParser(true, limits);
+        TemplateParser fullParse = newParser(false, limits);
+
+        ComponentTemplate expected;
+
+        try
+        {
+            expected = fullParse.parseTemplate(resource);
+        }
+        catch (TapestryException ex)
+        {
+            try
+            {
+                fastPath.parseTemplate(resource);
+
+                unreachable();
+            }
+            catch (TapestryException ex2)
+            {
+                assertEquals(ex2.getMessage(), ex.getMessage());
+            }
+
+            return;
+        }
+
+        assertNull(TemplateTokens.findDifference(expected, fastPath.parseTemplate(resource)), file);
+    }
+
+    @Test
+    public void plain_markup_detected() throws Exception
+    {
+        assertTrue(TemplateContent.isPlainMarkup(TemplateContent.read(getResource("plain_markup.tml"))));
+        assertFalse(TemplateContent.isPlainMarkup(TemplateContent.read(getResource("component.tml"))));
+
+        // The pre-scan can be fooled; the parse falls back to looking for Tapestry markup.
+
+        Resource tricky = getResource("plain_markup_char_reference.tml");
+
+        assertTrue(TemplateContent.isPlainMarkup(TemplateContent.read(tricky)));
+
+        ComponentTemplate template = newParser(true, getService(TemplateLimits.class)).parseTemplate(tricky);
+
+        assertEquals(template.getComponentIds().keySet(), Arrays.asList("counter"));
+    }
+
+    private TemplateParser newParser(boolean plainMarkupFastPath)
+    {
+        return newParser(plainMarkupFastPath, getService(TemplateLimits.class));
+    }
+
+    private TemplateParser newParser(boolean plainMarkupFastPath, TemplateLimits limits)
+    {
+        return new SaxTemplateParserImpl(SaxParserModule.getEntityResources(), true, false, plainMarkupFastPath, 0,
+                                         getService(WhitespacePreservation.class), limits,
+                                         SaxTemplateReader.FACTORY, getService(TemplateParseScheduler.class),
+                                         new TemplateExtensionGraphImpl(
+                                                 LoggerFactory.getLogger(TemplateParserImplTest.class)));
+    }
+
+    @Test
+    public void large_text_split_into_chunks() throws Exception
+    {
+        Resource resource = getResource("large_text.tml");
+
+        for (boolean minify : new boolean[] { false, true })
+        {
+            List<TemplateToken> whole = newParser(minify, 0).parseTemplate(resource).getTokens();
+            List<TemplateToken> chunked = newParser(minify, 16).parseTemplate(resource).getTokens();
+
+            assertTrue(chunked.size() > whole.size());
+
+            // Once adjacent text (and adjacent CDATA) is merged back together, the tokens are the same.
+
+            assertNull(TemplateTokens.findDifference("tokens", mergeText(whole), mergeText(chunked)));
+        }
+    }
+
+    private List<TemplateToken> mergeText(List<TemplateToken> tokens)
+    {
+        List<TemplateToken> result = CollectionFactory.newList();
+
+        for (TemplateToken token : tokens)
+        {
+            TemplateToken previous = result.isEmpty() ? null : result.get(result.size() - 1);
+
+            if (previous instanceof TextToken && token instanceof TextToken)
+            {
+                String text = ((TextToken) previous).getText() + ((TextToken) token).getText();
+
+                result.set(result.size() - 1, new TextToken(text, previous.getLocation()));
+                continue;
+            }
+
+            if (previous instanceof CDATAToken && token instanceof CDATAToken)
+            {
+                String content = ((CDATAToken) previous).getContent() + ((CDATAToken) token).getContent();
+
+                result.set(result.size() - 1, new CDATAToken(content, previous.getLocation()));
+                continue;
+            }
+
+            result.add(token);
+        }
+
+        return result;
+    }
+
+    private TemplateParser newParser(boolean minify, int textChunkSize)
+    {
+        return new SaxTemplateParserImpl(SaxParserModule.getEntityResources(), true, minify, true, textChunkSize,
+                                         getService(WhitespacePreservation.class), getService(TemplateLimits.class),
+                                         SaxTemplateReader.FACTORY, getService(TemplateParseScheduler.class),
+                                         new TemplateExtensionGraphImpl(
+                                                 LoggerFactory.getLogger(TemplateParserImplTest.class)));
+    }
+
+    @DataProvider
+    public Object[][] limit_data()
+    {
+        TemplateReaderFactory sax = SaxTemplateReader.FACTORY;
+        TemplateReaderFactory stax = StaxTemplateReader.FACTORY;
+
+        TemplateLimits depth = new TemplateLimits(3, 0, 0, 0);
+        TemplateLimits tokens = new TemplateLimits(0, 5, 0, 0);
+        TemplateLimits text = new TemplateLimits(0, 0, 20, 0);
+        TemplateLimits entities = new TemplateLimits(0, 0, 0, 50);
+
+        // The StAX parser gives no way to find where an entity was referenced, so that line isn't checked.
+
+        return new Object[][] {
+                { sax, depth, "limits.tml", "nested more than 3 deep", 4 },
+                { stax, depth, "limits.tml", "nested more than 3 deep", 4 },
+                { sax, tokens, "limits.tml", "more than 5 tokens", 5 },
+                { stax, tokens, "limits.tml", "more than 5 tokens", 5 },
+                { sax, tokens, "limit_attributes.tml", "more than 5 tokens", 2 },
+                { stax, tokens, "limit_attributes.tml", "more than 5 tokens", 2 },
+                { sax, text, "limits.tml", "longer than 20 characters", 5 },
+                { stax, text, "limits.tml", "longer than 20 characters", 5 },
+                { sax, entities, "entity_expansion.tml", "\"50\" entity expansions", 7 },
+                { stax, entities, "entity_expansion.tml", "\"50\" entity expansions", -1 } };
+    }
+
+    @Test(dataProvider = "limit_data")
+    public void template_exceeds_limit(TemplateReaderFactory factory, TemplateLimits limits, String file,
+            String errorMessageSubstring, int expectedLine)
+    {
+        TemplateParser parser = new SaxTemplateParserImpl(SaxParserModule.getEntityResources(), true, false, true, 0,
+                                                          getService(WhitespacePreservation.class), limits, factory,
+                                                          getService(TemplateParseScheduler.class),
+                                                          getService(TemplateExtensionGraph.class));
+
+        try
+        {
+            parser.parseTemplate(getResource(file));
+            unreachable();
+        }
+        catch (TapestryException ex)
+        {
+            assertMessageContains(ex, errorMessageSubstring);
+
+            if (expectedLine > 0) assertEquals(ex.getLocation().getLine(), expectedLine);
+        }
+
+        // The default limits are generous.
+
+        parse(file);
+    }
+
+    @Test
+    public void reused_handler_gives_independent_results()
+    {
+        // A single parse at a time, so that each parse reuses the same handler.
+
+        TemplateParser parser = newParser(false);
+
+        ComponentTemplate first = parser.parseTemplate(getResource("component.tml"));
+
+        try
+        {
+            parser.parseTemplate(getResource("mixin_requires_id_or_type.tml"));
+            unreachable();
+        }
+        catch (TapestryException ex)
+        {
+            // Expected.
+        }
+
+        ComponentTemplate second = parser.parseTemplate(getResource("overrides.tml"));
+        ComponentTemplate third = parser.parseTemplate(getResource("large_text.tml"));
+
+        TemplateParser fresh = newParser(false);
+
+        assertNull(TemplateTokens.findDifference(fresh.parseTemplate(getResource("component.tml")), first));
+        assertNull(TemplateTokens.findDifference(fresh.parseTemplate(getResource("overrides.tml")), second));
+        assertNull(TemplateTokens.findDifference(fresh.parseTemplate(getResource("large_text.tml")), third));
+    }
+
+    @Test
+    public void whitespace_preserved_in_configured_elements()
+    {
+        List<TemplateToken> tokens = tokens("preserved_elements.tml");
+
+        TextToken pre = get(tokens, 2);
+        assertEquals(pre.getText(), "\n  two\n    spaces\n");
+
+        // An explicit xml:space attribute wins.
+
+        TextToken textarea = get(tokens, 5);
+        assertEquals(textarea.getText(), "\ncompressed\n");
+
+        TextToken after = get(tokens, 7);
+        assertEquals(after.getText(), "\ncompressed again\n");
+    }
+
+    @Test
+    public void remove_within_preserved_element()
+    {
+        List<TemplateToken> tokens = tokens("remove_in_preserved_element.tml");
+
+        StringBuilder text = new StringBuilder();
+
+        for (TemplateToken token : tokens)
+        {
+            if (token.getTokenType() == TokenType.TEXT)
+                text.append(((TextToken) token).getText()).append('|');
+        }
+
+        // Whitespace is compressed again once the <pre> element ends.
+
+        assertEquals(text.toString(), "x|  y|\ncompressed\n|");
+    }
+
+    @Test
+    public void minified_template()
+    {
+        TemplateParseSchedulerImpl scheduler = new TemplateParseSchedulerImpl(1, false, LoggerFactory.getLogger(
+                TemplateParserImplTest.class));
+
+        try
+        {
+            TemplateParser parser = new SaxTemplateParserImpl(SaxParserModule.getEntityResources(), true, true, true, 0,
+                                                              getService(WhitespacePreservation.class),
+                                                              getService(TemplateLimits.class),
+                                                              SaxTemplateReader.FACTORY, scheduler,
+                                                              getService(TemplateExtensionGraph.class));
+
+            List<TemplateToken> tokens = parser.parseTemplate(getResource("minify.tml")).getTokens();
+
+            assertEquals(tokens.size(), 15);
+
+            // The developer note is gone, the conditional comment stays.
+
+            CommentToken comment = get(tokens, 1);
+            assertEquals(comment.getComment(), "[if IE]><p>Old browser</p><![endif]");
+
+            // Whitespace next to <p> and </p> is removed, but not next to the inline <b>.
+
+            TextToken hello = get(tokens, 4);
+            assertEquals(hello.getText(), "Hello, ");
+
+            TextToken exclamation = get(tokens, 8);
+            assertEquals(exclamation.getText(), " !");
+
+            TextToken preformatted = get(tokens, 12);
+            assertEquals(preformatted.getText(), "\n  keep   this\n    ");
+        }
+        finally
+        {
+            scheduler.registryDidShutdown();
+        }
+    }
+
+    private ExpansionToken firstExpansion(ComponentTemplate template)
+    {
+        for (TemplateToken token : template.getTokens())
+        {
+            if (token.getTokenType() == TokenType.EXPANSION) return (ExpansionToken) token;
+        }
+
+        return null;
+    }
+
+    private void write(File file, String content) throws IOException
+    {
+        Writer writer = new FileWriter(file);
+
+        writer.write(content);
+        writer.close();
+    }
+
+    private void write(File file, byte[] byteOrderMark, String content, String encoding) throws IOException
+    {
+        OutputStream stream = new FileOutputStream(file);
+
+        stream.write(byteOrderMark);
+        stream.write(content.getBytes(encoding));
+        stream.close();
+    }
+
+    private String getMessage(Resource resource)
+    {
+        try
+        {
+            getParser().parseTemplate(resource);
+
+            return null;
+        }
+        catch (TapestryException ex)
+        {
+            return ex.getMessage();
+        }
+    }
 }
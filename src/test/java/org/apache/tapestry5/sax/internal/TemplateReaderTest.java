@@ -0,0 +1,116 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.ClasspathResource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.apache.tapestry5.ioc.internal.util.TapestryException;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that every backend produces exactly the templates produced by the standard SAX backend, for every template
+ * used by the parser tests.
+ */
+public class TemplateReaderTest extends InternalBaseTestCase
+{
+    private final String directory = getClass().getPackage().getName().replace('.', '/');
+
+    private TemplateParser newParser(TemplateReaderFactory factory)
+    {
+        return new SaxTemplateParserImpl(SaxParserModule.getEntityResources(), true, false, true, 0,
+                                         getService(WhitespacePreservation.class), getService(TemplateLimits.class),
+                                         factory,
+                                         getService(TemplateParseScheduler.class),
+                                         new TemplateExtensionGraphImpl(LoggerFactory.getLogger(
+                                                 TemplateReaderTest.class)));
+    }
+
+    /**
+     * Every template used by the tests.
+     */
+    static List<String> getTemplateNames(Class<?> testClass) throws Exception
+    {
+        File directory = new File(testClass.getResource("component.tml").toURI()).getParentFile();
+
+        List<String> result = CollectionFactory.newList();
+
+        for (String name : directory.list())
+        {
+            if (name.endsWith(".tml")) result.add(name);
+        }
+
+        return result;
+    }
+
+    @DataProvider(name = "templates")
+    public Object[][] templates() throws Exception
+    {
+        List<String> names = getTemplateNames(getClass());
+
+        Object[][] result = new Object[names.size()][];
+
+        for (int i = 0; i < names.size(); i++)
+            result[i] = new Object[] { names.get(i) };
+
+        return result;
+    }
+
+    @Test(dataProvider = "templates")
+    public void stax_backend_matches_sax_backend(String name)
+    {
+        Resource resource = new ClasspathResource(getClass().getClassLoader(), directory + "/" + name);
+
+        ComponentTemplate expected;
+
+        try
+        {
+            expected = newParser(SaxTemplateReader.FACTORY).parseTemplate(resource);
+        }
+        catch (TapestryException ex)
+        {
+            // Invalid templates must be rejected by both.
+
+            try
+            {
+                newParser(StaxTemplateReader.FACTORY).parseTemplate(resource);
+
+                unreachable();
+            }
+            catch (TapestryException ex2)
+            {
+                assertEquals(ex2.getLocation().getLine(), ex.getLocation().getLine(), ex2.getMessage());
+            }
+
+            return;
+        }
+
+        ComponentTemplate actual = newParser(StaxTemplateReader.FACTORY).parseTemplate(resource);
+
+        assertEquals(TemplateTokens.findDifference(expected, actual), null, name);
+    }
+
+    @Test
+    public void backend_is_selected_by_symbol() throws Exception
+    {
+        assertTrue(getService(TemplateReaderFactory.class).newTemplateReader(null, 0) instanceof SaxTemplateReader);
+
+        try
+        {
+            SaxParserModule.selectTemplateReaderFactory(CollectionFactory.<String, TemplateReaderFactory>newMap(),
+                                                        "dom");
+
+            unreachable();
+        }
+        catch (RuntimeException ex)
+        {
+            assertEquals(ex.getMessage(), "Unknown template parser backend 'dom'. Available backends: (none).");
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.services.ComponentTemplateSource;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.ClasspathResource;
+import org.apache.tapestry5.model.ComponentModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+public class TemplateUsageRecorderImplTest extends InternalBaseTestCase
+{
+    private final ClassLoader loader = getClass().getClassLoader();
+
+    private final Logger logger = LoggerFactory.getLogger(TemplateUsageRecorderImplTest.class);
+
+    private Resource getResource(String file)
+    {
+        String path = getClass().getPackage().getName().replace('.', '/') + "/" + file;
+
+        return new ClasspathResource(loader, path);
+    }
+
+    @Test
+    public void usage_is_saved_and_restored_most_used_first() throws Exception
+    {
+        File file = File.createTempFile("template-usage", ".txt");
+
+        file.delete();
+
+        try
+        {
+            TemplateUsageRecorderImpl recorder = new TemplateUsageRecorderImpl(file, 0, loader, logger);
+
+            Resource component = getResource("component.tml");
+            Resource comment = getResource("comment.tml");
+
+            recorder.templateUsed(comment);
+            recorder.templateUsed(component);
+            recorder.templateUsed(component);
+
+            recorder.registryDidShutdown();
+
+            assertTrue(file.exists());
+
+            TemplateUsageRecorderImpl restored = new TemplateUsageRecorderImpl(file, 0, loader, logger);
+
+            assertEquals(restored.getTemplatesByUsage(), Arrays.asList(component, comment));
+
+            // Counts accumulate across runs.
+
+            restored.templateUsed(comment);
+            restored.templateUsed(comment);
+
+            assertEquals(restored.getTemplatesByUsage(), Arrays.asList(comment, component));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void warm_up_parses_most_used_templates()
+    {
+        TemplateUsageRecorderImpl recorder = new TemplateUsageRecorderImpl(null, 0, loader, logger);
+
+        Resource component = getResource("component.tml");
+        Resource comment = getResource("comment.tml");
+        Resource missing = getResource("missing.tml");
+
+        recorder.templateUsed(comment);
+        recorder.templateUsed(component);
+        recorder.templateUsed(component);
+        recorder.templateUsed(missing);
+
+        TemplateParser parser = newMock(TemplateParser.class);
+        ComponentTemplate template = newMock(ComponentTemplate.class);
+
+        // Missing templates are skipped.
+
+        expect(parser.parseTemplate(component)).andReturn(template);
+        expect(parser.parseTemplate(comment)).andReturn(template);
+
+        replay();
+
+        assertEquals(recorder.warmUp(parser, 60000), 2);
+
+        verify();
+
+        assertEquals(recorder.getTemplatesByUsage().get(0), component);
+        assertEquals(recorder.warmUp(parser, 0), 0);
+    }
+
+    @Test
+    public void each_template_request_is_counted()
+    {
+        TemplateUsageRecorderImpl recorder = new TemplateUsageRecorderImpl(null, 0, loader, logger);
+
+        Resource component = getResource("component.tml");
+        Resource comment = getResource("comment.tml");
+
+        ComponentTemplateSource source = newMock(ComponentTemplateSource.class);
+        ComponentModel model = newMock(ComponentModel.class);
+        ComponentModel otherModel = newMock(ComponentModel.class);
+        ComponentTemplate template = newMock(ComponentTemplate.class);
+        ComponentTemplate otherTemplate = newMock(ComponentTemplate.class);
+        CachingTemplateParser parser = newMock(CachingTemplateParser.class);
+        TemplateExtensionGraph extensionGraph = newMock(TemplateExtensionGraph.class);
+
+        // Tapestry caches the template, so the parser is only asked once; each request for it is a use.
+
+        expect(source.getTemplate(model, Locale.ENGLISH)).andReturn(template).times(3);
+        expect(source.getTemplate(otherModel, Locale.ENGLISH)).andReturn(otherTemplate).times(2);
+
+        expect(template.isMissing()).andReturn(false).anyTimes();
+        expect(template.isExtension()).andReturn(false).anyTimes();
+        expect(template.getResource()).andReturn(comment).anyTimes();
+        expect(otherTemplate.isMissing()).andReturn(false).anyTimes();
+        expect(otherTemplate.isExtension()).andReturn(false).anyTimes();
+        expect(otherTemplate.getResource()).andReturn(component).anyTimes();
+        expect(parser.getCurrentTemplate(template)).andReturn(template).times(3);
+        expect(parser.getCurrentTemplate(otherTemplate)).andReturn(otherTemplate).times(2);
+        expect(model.getParentModel()).andReturn(null).anyTimes();
+        expect(otherModel.getParentModel()).andReturn(null).anyTimes();
+
+        replay();
+
+        ComponentTemplateSourceWrapper wrapper = new ComponentTemplateSourceWrapper(source, parser, extensionGraph,
+                                                                                    recorder, null);
+
+        for (int i = 0; i < 3; i++)
+            wrapper.getTemplate(model, Locale.ENGLISH);
+
+        for (int i = 0; i < 2; i++)
+            wrapper.getTemplate(otherModel, Locale.ENGLISH);
+
+        verify();
+
+        assertEquals(recorder.getTemplatesByUsage(), Arrays.asList(comment, component));
+    }
+}
@@ -0,0 +1,141 @@
+package org.apache.tapestry5.sax.internal;
+
+import java.util.List;
+
+import org.apache.tapestry5.internal.parser.AttributeToken;
+import org.apache.tapestry5.internal.parser.ComponentTemplate;
+import org.apache.tapestry5.internal.parser.StartElementToken;
+import org.apache.tapestry5.internal.parser.TemplateToken;
+import org.apache.tapestry5.internal.parser.TextToken;
+import org.apache.tapestry5.internal.parser.TokenType;
+import org.apache.tapestry5.internal.services.TemplateParser;
+import org.apache.tapestry5.ioc.Resource;
+import org.apache.tapestry5.ioc.internal.util.ClasspathResource;
+import org.apache.tapestry5.ioc.internal.util.CollectionFactory;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+public class TokenCanonicalizerImplTest extends InternalBaseTestCase
+{
+    private ComponentTemplate parse(String file)
+    {
+        String path = getClass().getPackage().getName().replace('.', '/') + "/" + file;
+
+        return getService("TemplateParserOverride", TemplateParser.class).parseTemplate(
+                new ClasspathResource(getClass().getClassLoader(), path));
+    }
+
+    private int indexOfElement(List<TemplateToken> tokens, String name)
+    {
+        for (int i = 0; i < tokens.size(); i++)
+        {
+            TemplateToken token = tokens.get(i);
+
+            if (token.getTokenType() == TokenType.START_ELEMENT && ((StartElementToken) token).getName().equals(name))
+                return i;
+        }
+
+        return -1;
+    }
+
+    @Test
+    public void identical_static_subtrees_are_shared()
+    {
+        TokenCanonicalizerImpl canonicalizer = new TokenCanonicalizerImpl(LoggerFactory.getLogger(
+                TokenCanonicalizerImplTest.class));
+
+        ComponentTemplate a = canonicalizer.canonicalize(parse("shared_footer_a.tml"));
+
+        ComponentTemplate original = parse("shared_footer_b.tml");
+        ComponentTemplate b = canonicalizer.canonicalize(original);
+
+        assertNotSame(b, original);
+        assertEquals(b.getTokens().size(), original.getTokens().size());
+
+        int footerA = indexOfElement(a.getTokens(), "div");
+        int footerB = indexOfElement(b.getTokens(), "div");
+
+        // <div>, class attribute, <p>, text, <a>, href attribute, text, </a>, </p>, </div>; each template keeps its
+        // own tokens and locations, but the text and attribute values are shared.
+
+        for (int i = 0; i < 10; i++)
+        {
+            TemplateToken tokenA = a.getTokens().get(footerA + i);
+            TemplateToken tokenB = b.getTokens().get(footerB + i);
+
+            assertNotSame(tokenB, tokenA);
+            assertEquals(tokenB.getLocation(), original.getTokens().get(footerB + i).getLocation());
+
+            if (tokenB.getTokenType() == TokenType.TEXT)
+                assertSame(((TextToken) tokenB).getText(), ((TextToken) tokenA).getText());
+
+            if (tokenB.getTokenType() == TokenType.ATTRIBUTE)
+                assertSame(((AttributeToken) tokenB).getValue(), ((AttributeToken) tokenA).getValue());
+        }
+
+        // Dynamic content is never shared, nor is the <html> element that contains it.
+
+        assertNotSame(b.getTokens().get(0), a.getTokens().get(0));
+
+        // Element names are already interned, so only the two text and two attribute tokens gain anything.
+
+        assertEquals(canonicalizer.getSharedTokenCount(), 4);
+        assertTrue(canonicalizer.getEstimatedBytesSaved() > 4 * 56);
+    }
+
+    @Test
+    public void tokens_at_the_same_location_are_shared()
+    {
+        TokenCanonicalizerImpl canonicalizer = new TokenCanonicalizerImpl(LoggerFactory.getLogger(
+                TokenCanonicalizerImplTest.class));
+
+        ComponentTemplate original = parse("shared_footer_a.tml");
+
+        ComponentTemplate a = canonicalizer.canonicalize(original);
+
+        // An equal template with its own token objects, as when re-parsed.
+
+        ComponentTemplate again = canonicalizer.canonicalize(
+                TemplateTokens.relocate((SaxComponentTemplate) original, original.getResource()));
+
+        int footer = indexOfElement(a.getTokens(), "div");
+
+        for (int i = 0; i < 10; i++)
+            assertSame(again.getTokens().get(footer + i), a.getTokens().get(footer + i));
+
+        assertEquals(canonicalizer.getSharedTokenCount(), 10);
+    }
+
+    @Test
+    public void runs_discarded_when_their_template_changes()
+    {
+        TokenCanonicalizerImpl canonicalizer = new TokenCanonicalizerImpl(LoggerFactory.getLogger(
+                TokenCanonicalizerImplTest.class));
+
+        ComponentTemplate a = canonicalizer.canonicalize(parse("shared_footer_a.tml"));
+
+        assertEquals(canonicalizer.getCanonicalRunCount(), 1);
+
+        canonicalizer.templatesChanged(CollectionFactory.<Resource, Resource>newSet(parse("shared_footer_b.tml")
+                .getResource()));
+
+        assertEquals(canonicalizer.getCanonicalRunCount(), 1);
+
+        canonicalizer.templatesChanged(CollectionFactory.<Resource, Resource>newSet(a.getResource()));
+
+        assertEquals(canonicalizer.getCanonicalRunCount(), 0);
+    }
+
+    @Test
+    public void templates_without_shared_content_are_unchanged()
+    {
+        TokenCanonicalizerImpl canonicalizer = new TokenCanonicalizerImpl(LoggerFactory.getLogger(
+                TokenCanonicalizerImplTest.class));
+
+        ComponentTemplate template = parse("shared_footer_a.tml");
+
+        assertSame(canonicalizer.canonicalize(template), template);
+        assertEquals(canonicalizer.getCanonicalRunCount(), 1);
+        assertEquals(canonicalizer.getSharedTokenCount(), 0);
+    }
+}